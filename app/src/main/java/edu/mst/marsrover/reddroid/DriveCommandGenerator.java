@@ -0,0 +1,233 @@
+package edu.mst.marsrover.reddroid;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.mst.marsrover.reddroid.rovecomm.LatencyHistogram;
+
+/**
+ * Turns throttle positions into drive commands at a fixed control rate. The UI only publishes the
+ * latest target to a ThrottleSlot; a scheduler thread samples it each period and sends when either
+ * side has moved further than the deadband from what was last sent, or the keep-alive comes due.
+ * The network sees at most one command per period however fast the throttle moves, and the time
+ * from each touch to its command being sent is kept as a histogram.
+ */
+public class DriveCommandGenerator {
+
+    /**
+     * Where drive commands go, normally rovecomm. Called on the scheduler thread.
+     */
+    public interface Output {
+
+        void sendDrive(int left, int right);
+    }
+
+    private final Output output;
+    private final long period;
+    private final int deadband;
+    private final long keepAlive;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Written by the UI, or by setTarget() for commands that don't come from a touch
+    private final ThrottleSlot slot;
+    private volatile boolean enabled = true;
+
+    // Microseconds from a touch to the first command carrying it
+    private final LatencyHistogram touchToSend = new LatencyHistogram();
+
+    // Only the scheduler thread touches these
+    private ScheduledFuture<?> sampling;
+    private final ThrottleSlot.Reading reading = new ThrottleSlot.Reading();
+    private int sentVersion = -1;
+    private int sentLeft;
+    private int sentRight;
+    private long sentAt;
+    private boolean sentAny;
+    private volatile long sentCount;
+
+    /**
+     * Constructor for a generator. Nothing is sent until start() is called.
+     * @param output Where commands are sent
+     * @param slot Where the throttle publishes its position
+     * @param rate Samples per second
+     * @param deadband Change in power on either side that is too small to send on its own
+     * @param keepAlive Longest time between commands while running, even if nothing changed
+     * @param unit Unit of keepAlive
+     */
+    public DriveCommandGenerator(Output output, ThrottleSlot slot, int rate, int deadband,
+                                 long keepAlive, TimeUnit unit) {
+
+        if (rate < 1) {
+            throw new IllegalArgumentException("Rate must be at least 1 per second");
+        }
+
+        this.output = output;
+        this.slot = slot;
+        this.period = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.deadband = deadband;
+        this.keepAlive = unit.toNanos(keepAlive);
+
+        scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "RED-drive");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MAX_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Sets the powers to drive at, as of now. Only call on the thread that publishes to the slot.
+     * @param left power, -1000 <-> 1000
+     * @param right power, -1000 <-> 1000
+     */
+    public void setTarget(int left, int right) {
+        slot.publish(left, right, System.nanoTime());
+    }
+
+    /**
+     * Method to allow or stop sending, such as from the send packets setting. Sampling carries on
+     * while disabled, so enabling sends the current target straight away.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts sampling at the control rate, if not already
+     */
+    public void start() {
+
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sampling == null) {
+                    sentAny = false;
+                    sampling = scheduler.scheduleAtFixedRate(sampleRunnable, 0, period,
+                            TimeUnit.NANOSECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Zeroes the target and sends a stop without waiting for the next sample
+     */
+    public void stop() {
+
+        setTarget(0, 0);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                sample(System.nanoTime(), true);
+            }
+        });
+    }
+
+    /**
+     * Sends a stop and stops sampling until start() is called again, such as while the app is
+     * in the background
+     */
+    public void pause() {
+
+        setTarget(0, 0);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                sample(System.nanoTime(), true);
+                if (sampling != null) {
+                    sampling.cancel(false);
+                    sampling = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a stop and ends the scheduler thread for good
+     */
+    public void shutdown() {
+
+        pause();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Finds a percentile of the time from touch to command
+     * @param percentile Between 0 and 100
+     * @return Microseconds from a throttle position being published to its first command being
+     * handed to the output
+     */
+    public long getTouchToSendLatency(double percentile) {
+        return touchToSend.percentile(percentile);
+    }
+
+    /**
+     * @return Number of commands sent
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Samples the target once and sends it if it is worth sending. Only run on the scheduler
+     * thread, or by tests.
+     * @param now Current time, in System.nanoTime() terms
+     * @param force True to send even if nothing changed
+     * @return True if a command was sent
+     */
+    boolean sample(long now, boolean force) {
+
+        if (!enabled) {
+            // So the current target goes out as soon as sending is enabled again
+            sentAny = false;
+            return false;
+        }
+
+        slot.read(reading);
+        int left = reading.getLeft();
+        int right = reading.getRight();
+
+        boolean send = force || !sentAny || now - sentAt >= keepAlive
+                || Math.abs(left - sentLeft) > deadband || Math.abs(right - sentRight) > deadband
+                // Stopping is never held back by the deadband
+                || (left == 0 && sentLeft != 0) || (right == 0 && sentRight != 0);
+        if (!send) {
+            return false;
+        }
+
+        output.sendDrive(left, right);
+        if (reading.getVersion() != sentVersion) {
+            sentVersion = reading.getVersion();
+            touchToSend.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+                    - reading.getTouchTime()));
+        }
+        sentLeft = left;
+        sentRight = right;
+        sentAt = now;
+        sentAny = true;
+        sentCount++;
+        return true;
+    }
+
+    /**
+     * Runnable sampling the target each period
+     */
+    private final Runnable sampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            // An exception would cancel the schedule and leave the rover without keep-alives
+            try {
+                sample(System.nanoTime(), false);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+}
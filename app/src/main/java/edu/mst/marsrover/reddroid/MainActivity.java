@@ -1,7 +1,9 @@
 package edu.mst.marsrover.reddroid;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -10,34 +12,113 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
-import android.widget.SeekBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
+import edu.mst.marsrover.reddroid.rovecomm.DriveWatchdog;
+import edu.mst.marsrover.reddroid.rovecomm.LinkMonitor;
 import edu.mst.marsrover.reddroid.rovecomm.RoveComm;
+import edu.mst.marsrover.reddroid.rovecomm.RoveNode;
+import edu.mst.marsrover.reddroid.rovecomm.SendQueue;
+import edu.mst.marsrover.reddroid.rovecomm.TelemetryRecorder;
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
 
-public class MainActivity extends AppCompatActivity implements RoveComm.OnReceiveData, SeekBar.OnSeekBarChangeListener {
+public class MainActivity extends AppCompatActivity {
 
+    // How often the drive board should get drive powers
+    private static final int DRIVE_MAX_RATE = 50;
+
+    // Slider movement too small to send on its own, and the longest gap between drive powers
+    // while the activity is in front, so the board knows we're still here
+    private static final int DRIVE_DEADBAND = 5;
+    private static final int DRIVE_KEEP_ALIVE_MS = 200;
+
+    // Pings per second to the drive board, and how often the overlay shows the results
+    private static final int PING_RATE = 5;
+    private static final int OVERLAY_PERIOD_MS = 500;
+
+    // Recordings kept in the app's files, this run's included. Older ones are deleted when a new
+    // one starts.
+    private static final int MAX_RECORDINGS = 5;
 
     private RoveComm roveComm;
 
-    private SeekBar seekLeft, seekRight;
-    private boolean forwardLeft = true;
-    private boolean forwardRight = true;
+    // Every packet sent and received this run, or null if recording is switched off in settings
+    // or couldn't be started
+    private TelemetryRecorder recorder;
+
+    // Drive board from the address book in settings, or null if its address is unusable. Read
+    // on the drive generator's thread.
+    private volatile RoveNode driveBoard;
+
+    // Samples the sliders at the drive rate and sends when they have moved
+    private DriveCommandGenerator driveGenerator;
+
+    // Re-sends drive powers to the drive board and stops the rover if its link goes bad. Only
+    // running while in front with sending switched on. Read on the drive generator's thread.
+    private volatile DriveWatchdog driveWatchdog;
+    private boolean resumed;
+    private boolean sendPackets;
+
+    // Both throttles, publishing straight to the slot the drive generator samples
+    private ThrottleView throttle;
+    private final ThrottleSlot throttleSlot = new ThrottleSlot();
+    private TextView linkOverlay;
+    private final Handler handler = new Handler();
+
+    // Settings are read once here and again only when they change. Preferences only keep a weak
+    // reference to the listener, so it's held here.
+    private SharedPreferences preferences;
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    loadPreferences();
+                }
+            };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Create instance of rovecomm to use for life of activity
-        roveComm = new RoveComm(this);
+        // Create instance of rovecomm to use for life of activity. NIO, as only it marks each
+        // packet with its priority for the Wi-Fi. Recording is started by loadPreferences() if
+        // it's switched on.
+        roveComm = new RoveComm(null, RoveComm.Transport.NIO);
+
+        // Only the newest drive power matters, so don't let a backlog build up. Drive powers,
+        // stops included, go ahead of everything else.
+        roveComm.setCoalesced(DrivePower.DATA_ID, DRIVE_MAX_RATE);
+        roveComm.setPriority(DrivePower.DATA_ID, SendQueue.Priority.CRITICAL);
 
-        seekLeft = findViewById(R.id.fullscreen_power_seek_left);
-        seekRight = findViewById(R.id.fullscreen_power_seek_right);
+        // Keep an eye on the drive board's link so degradation shows before commands lag. The
+        // board itself is looked up in onResume() so changes in settings take effect.
+        roveComm.startLinkMonitor(PING_RATE);
+        linkOverlay = findViewById(R.id.link_overlay);
 
-        seekLeft.setOnSeekBarChangeListener(this);
-        seekRight.setOnSeekBarChangeListener(this);
+        throttle = findViewById(R.id.fullscreen_throttle);
+        throttle.setSlot(throttleSlot);
+
+        driveGenerator = new DriveCommandGenerator(new DriveCommandGenerator.Output() {
+            @Override
+            public void sendDrive(int left, int right) {
+                sendNewDrivePower(left, right);
+            }
+        }, throttleSlot, DRIVE_MAX_RATE, DRIVE_DEADBAND, DRIVE_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+
+        preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        loadPreferences();
 
         // Onclick logic for directional button
         findViewById(R.id.fullscreen_direction_button_left).setOnClickListener(new View.OnClickListener() {
@@ -50,7 +131,7 @@ public class MainActivity extends AppCompatActivity implements RoveComm.OnReceiv
                 } else {
                     button.setText(R.string.reverse);
                 }
-                forwardLeft = !forwardLeft;
+                throttle.setReversed(ThrottleView.LEFT, !throttle.isReversed(ThrottleView.LEFT));
             }
         });
 
@@ -64,7 +145,7 @@ public class MainActivity extends AppCompatActivity implements RoveComm.OnReceiv
                 } else {
                     button.setText(R.string.reverse);
                 }
-                forwardRight = !forwardRight;
+                throttle.setReversed(ThrottleView.RIGHT, !throttle.isReversed(ThrottleView.RIGHT));
             }
         });
 
@@ -92,78 +173,245 @@ public class MainActivity extends AppCompatActivity implements RoveComm.OnReceiv
 
     @Override
     protected void onDestroy() {
+        preferences.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        driveGenerator.shutdown();
+        if (driveWatchdog != null) {
+            driveWatchdog.stop();
+        }
+        stopRecording();
         roveComm.onDestroy();
         super.onDestroy();
     }
 
-    @Override
-    protected void onResume() {
-        int max = Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(this).getString("drive_speed","0"));
-
-        if(max != -1) {
-            seekLeft.setMax(max);
-            seekRight.setMax(max);
+    /**
+     * Method to start recording this run's telemetry to its own directory, named by start time.
+     * The oldest recordings are deleted first so no more than MAX_RECORDINGS are kept.
+     */
+    private void startRecording() {
+
+        File telemetry = new File(getFilesDir(), "telemetry");
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File directory = new File(telemetry, name);
+        pruneRecordings(telemetry, MAX_RECORDINGS - 1);
+
+        try {
+            recorder = new TelemetryRecorder(directory);
+            roveComm.setRecorder(recorder);
+            Log.i("RoveComm", "Recording telemetry to " + directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            recorder = null;
         }
-        super.onResume();
     }
 
-    @Override
-    public void onProgressChanged(SeekBar seekBar, int i, boolean b) {
+    /**
+     * Method to stop recording, flushing what was recorded to disk
+     */
+    private void stopRecording() {
+
+        if (recorder != null) {
+            roveComm.setRecorder(null);
+            recorder.close();
+            recorder = null;
+        }
+    }
 
-        int left = seekLeft.getProgress();
-        int right = seekRight.getProgress();
+    /**
+     * Method to delete the oldest recordings. Directory names are start times, so they sort
+     * oldest first.
+     * @param telemetry Directory holding a directory per recording
+     * @param keep Number of the newest recordings to keep
+     */
+    private static void pruneRecordings(File telemetry, int keep) {
 
-        if(!forwardLeft) left *= -1;
-        if(!forwardRight) right *= -1;
+        File[] recordings = telemetry.listFiles();
+        if (recordings == null || recordings.length <= keep) {
+            return;
+        }
 
-        sendNewDrivePower(left, right);
+        Arrays.sort(recordings);
+        for (int i = 0; i < recordings.length - keep; i++) {
+            File[] segments = recordings[i].listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    segment.delete();
+                }
+            }
+            if (!recordings[i].delete()) {
+                Log.w("RoveComm", "Could not delete old recording " + recordings[i]);
+            }
+        }
     }
 
     @Override
-    public void onStartTrackingTouch(SeekBar seekBar) { }
+    protected void onResume() {
+        resumed = true;
+        updateWatchdog();
+        driveGenerator.start();
+        handler.post(updateLinkOverlay);
+        super.onResume();
+    }
 
     @Override
-    public void onStopTrackingTouch(SeekBar seekBar) { }
+    protected void onPause() {
+        // Nothing should keep driving the rover while the controls can't be seen
+        throttle.reset();
+        driveGenerator.pause();
+        Log.i("RoveComm", String.format(Locale.US, "Touch to send latency: p50 %d us, p99 %d us",
+                driveGenerator.getTouchToSendLatency(50), driveGenerator.getTouchToSendLatency(99)));
+        resumed = false;
+        updateWatchdog();
+        handler.removeCallbacks(updateLinkOverlay);
+        super.onPause();
+    }
 
     /**
-     * Method to stop drive
+     * Method to apply the current settings. Runs at startup and whenever one changes.
      */
-    private void stopDrive() {
-        seekLeft.setProgress(0);
-        seekRight.setProgress(0);
-        sendNewDrivePower(0,0);
+    private void loadPreferences() {
+
+        int max = Integer.valueOf(preferences.getString("drive_speed","0"));
+
+        if(max != -1) {
+            throttle.setMax(max);
+        }
+
+        if (preferences.getBoolean("record_telemetry_switch", false)) {
+            if (recorder == null) {
+                startRecording();
+            }
+        } else {
+            stopRecording();
+        }
+
+        sendPackets = preferences.getBoolean("send_packets_switch", false);
+        driveGenerator.setEnabled(sendPackets);
+        loadDriveBoard(preferences.getString("drive_board_ip", getString(R.string.pref_default_drive_board_ip)));
+        updateWatchdog();
     }
 
     /**
-     * Method called to format and send a packet with left & right motor power
-     * @param left power, -1000 <-> 1000
-     * @param right power, -1000 <-> 1000
+     * Method to run the drive watchdog only while driving is possible: in front, with sending
+     * switched on and a drive board to send to. Stopping it sends the board a stop.
      */
-    private void sendNewDrivePower(int left, int right) {
+    private void updateWatchdog() {
 
-        // Send power, two byte[2]
-        byte[] data = new byte[4];
-        data[0] = (byte) (left & 0xFF);
-        data[1] = (byte) ((left >>> 8) & 0xFF);
-        data[2] = (byte) (right & 0xFF);
-        data[3] = (byte) ((right >>> 8) & 0xFF);
+        DriveWatchdog watchdog = driveWatchdog;
+        boolean wanted = resumed && sendPackets && driveBoard != null;
 
-        if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("send_packets_switch", false)) {
+        if (watchdog != null && (!wanted || watchdog.getBoard() != driveBoard)) {
+            watchdog.stop();
+            driveWatchdog = null;
+        }
 
-            // Send specifically to drive board
-            roveComm.sendData(528, data, "192.168.1.130");
-            Log.e("RoveComm", "Sending Drive Powers: " + left + ", " + right);
+        if (wanted && driveWatchdog == null) {
+            driveWatchdog = new DriveWatchdog(roveComm, driveBoard, watchdogListener);
+            driveWatchdog.start();
         }
     }
 
     /**
-     * Implemented method to handle received packets. Is called automatically.
-     * @param id DataID of the packet
-     * @param contents data[]
+     * Lets the driver know the rover was stopped for a bad link, and when it's back
      */
-    @Override
-    public void receiveData(int id, byte[] contents) {
+    private final DriveWatchdog.Listener watchdogListener = new DriveWatchdog.Listener() {
+        @Override
+        public void onLinkLost(final DriveWatchdog.Reason reason) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    String message = getString(R.string.link_lost,
+                            reason.name().toLowerCase(Locale.US));
+                    linkOverlay.setText(message);
+                    Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
 
-        Log.e("RoveComm", "You have mail! " + Arrays.toString(contents));
+        @Override
+        public void onLinkRestored() {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(MainActivity.this, R.string.link_restored,
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
+
+    /**
+     * Method to point drive commands and link monitoring at the drive board's address, if it changed
+     * @param ip Address from settings. Settings only accepts numeric addresses, so this doesn't
+     *           touch the network.
+     */
+    private void loadDriveBoard(String ip) {
+
+        if (driveBoard != null && driveBoard.getIp().equals(ip)) {
+            return;
+        }
+
+        if (driveBoard != null) {
+            roveComm.stopMonitoringLink(driveBoard);
+        }
+
+        try {
+            driveBoard = new RoveNode(ip);
+            roveComm.monitorLink(driveBoard);
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            driveBoard = null;
+        }
+    }
+
+    /**
+     * Refreshes the link stats overlay, then schedules itself again while the activity is resumed
+     */
+    private final Runnable updateLinkOverlay = new Runnable() {
+        @Override
+        public void run() {
+
+            LinkMonitor.LinkSnapshot link = (driveBoard == null) ? null
+                    : roveComm.getLinkSnapshot(driveBoard);
+            DriveWatchdog watchdog = driveWatchdog;
+            DriveWatchdog.Reason tripped = (watchdog == null) ? null : watchdog.getTripped();
+            if (tripped != null) {
+                linkOverlay.setText(getString(R.string.link_lost,
+                        tripped.name().toLowerCase(Locale.US)));
+            } else if (link == null || link.getSamples() == 0) {
+                linkOverlay.setText(R.string.link_waiting);
+            } else {
+                linkOverlay.setText(getString(R.string.link_stats,
+                        TimeUnit.NANOSECONDS.toMillis(link.getP50()),
+                        TimeUnit.NANOSECONDS.toMillis(link.getP95()),
+                        TimeUnit.NANOSECONDS.toMillis(link.getP99()),
+                        TimeUnit.NANOSECONDS.toMillis(link.getJitter()),
+                        Math.round(link.getLossRate() * 100)));
+            }
+
+            handler.postDelayed(this, OVERLAY_PERIOD_MS);
+        }
+    };
+
+    /**
+     * Method to stop drive
+     */
+    private void stopDrive() {
+        throttle.reset();
+        driveGenerator.stop();
+    }
+
+    /**
+     * Method called on the drive generator's thread to hand left & right motor power to the
+     * watchdog, which sends it to the drive board and keeps re-sending it. The generator only
+     * calls it while sending is switched on in settings.
+     * @param left power, -1000 <-> 1000
+     * @param right power, -1000 <-> 1000
+     */
+    private void sendNewDrivePower(int left, int right) {
+
+        DriveWatchdog watchdog = driveWatchdog;
+        if(watchdog != null) {
+            watchdog.setDrive(left, right);
+        }
     }
 }
@@ -9,7 +9,9 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.ActionBar;
+import android.util.Patterns;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 public class SettingsActivity extends AppCompatPreferenceActivity {
 
@@ -40,6 +42,25 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         }
     };
 
+    /**
+     * Like sBindPreferenceSummaryToValueListener, but for board addresses. Anything other than a
+     * numeric IPv4 address is rejected so rovecomm never has to look a board up by name.
+     */
+    private static Preference.OnPreferenceChangeListener sBindAddressSummaryToValueListener = new Preference.OnPreferenceChangeListener() {
+        @Override
+        public boolean onPreferenceChange(Preference preference, Object value) {
+            String stringValue = value.toString().trim();
+
+            if (!Patterns.IP_ADDRESS.matcher(stringValue).matches()) {
+                Toast.makeText(preference.getContext(), R.string.pref_invalid_ip, Toast.LENGTH_SHORT).show();
+                return false;
+            }
+
+            preference.setSummary(stringValue);
+            return true;
+        }
+    };
+
     /**
      * Binds a preference's summary to its value. More specifically, when the
      * preference's value is changed, its summary (line of text below the
@@ -106,6 +127,12 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // When their values change, their summaries are updated
             // to reflect the new value, per the Android Design guidelines.
             bindPreferenceSummaryToValue(findPreference("drive_speed"));
+
+            // Board addresses are validated as well as shown
+            Preference driveBoard = findPreference("drive_board_ip");
+            driveBoard.setOnPreferenceChangeListener(sBindAddressSummaryToValueListener);
+            driveBoard.setSummary(PreferenceManager.getDefaultSharedPreferences(getActivity())
+                    .getString("drive_board_ip", getString(R.string.pref_default_drive_board_ip)));
         }
     }
 }
@@ -0,0 +1,89 @@
+package edu.mst.marsrover.reddroid;
+
+/**
+ * Latest throttle position, handed from the UI thread to the drive thread without locking. The
+ * UI thread is the only writer and never waits. Readers retry the rare read that overlaps a
+ * write, so they always see a left, right and touch time that were published together.
+ */
+public class ThrottleSlot {
+
+    /**
+     * One consistent read of the slot. Reused by its reader so sampling doesn't allocate.
+     */
+    public static class Reading {
+
+        int left;
+        int right;
+        long touchTime;
+        int version;
+
+        public int getLeft() {
+            return left;
+        }
+
+        public int getRight() {
+            return right;
+        }
+
+        /**
+         * @return When the touch behind this position happened, in System.nanoTime() terms
+         */
+        public long getTouchTime() {
+            return touchTime;
+        }
+
+        /**
+         * @return Number of times the slot had been published to, so a reader can tell a new
+         * position from one it has already seen
+         */
+        public int getVersion() {
+            return version / 2;
+        }
+    }
+
+    // Odd while a write is under way. The fields are volatile too, so reads of them can't move
+    // outside the two reads of sequence.
+    private volatile int sequence;
+    private volatile int left;
+    private volatile int right;
+    private volatile long touchTime;
+
+    /**
+     * Publishes a new position. Only one thread may publish.
+     * @param left power, -1000 <-> 1000
+     * @param right power, -1000 <-> 1000
+     * @param touchTime When the touch behind it happened, in System.nanoTime() terms
+     */
+    public void publish(int left, int right, long touchTime) {
+
+        int current = sequence;
+        sequence = current + 1;
+        this.left = left;
+        this.right = right;
+        this.touchTime = touchTime;
+        sequence = current + 2;
+    }
+
+    /**
+     * Reads the latest position
+     * @param into Where to put it
+     */
+    public void read(Reading into) {
+
+        while (true) {
+
+            int before = sequence;
+            if ((before & 1) == 0) {
+                into.left = left;
+                into.right = right;
+                into.touchTime = touchTime;
+                if (sequence == before) {
+                    into.version = before;
+                    return;
+                }
+            }
+            // The writer is mid publish, which only takes a few instructions
+            Thread.yield();
+        }
+    }
+}
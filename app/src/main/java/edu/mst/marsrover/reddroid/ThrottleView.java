@@ -0,0 +1,242 @@
+package edu.mst.marsrover.reddroid;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two vertical throttles, one at each edge of the view, driven by as many fingers as are on
+ * them. Every sample in a touch event is read, including the batched history, and the resulting
+ * powers are published to a ThrottleSlot for the drive thread to pick up. Nothing is called back
+ * and nothing is laid out again; the view only invalidates itself when a level changes.
+ */
+public class ThrottleView extends View {
+
+    public final static int LEFT = 0;
+    public final static int RIGHT = 1;
+
+    // Width of each throttle when the layout doesn't give one
+    private final static int DEFAULT_TRACK_WIDTH_DP = 100;
+
+    private final Paint trackPaint = new Paint();
+    private final Paint levelPaint = new Paint();
+    private final Paint reversedPaint = new Paint();
+    private final int trackWidth;
+
+    private ThrottleSlot slot;
+    private int max = 1000;
+
+    // For each side: the finger driving it, or -1, its level from 0 to max, and its direction
+    private final int[] pointers = {-1, -1};
+    private final int[] levels = new int[2];
+    private final boolean[] reversed = new boolean[2];
+
+    public ThrottleView(Context context) {
+        this(context, null);
+    }
+
+    public ThrottleView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public ThrottleView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.ThrottleView, defStyle, 0);
+        trackWidth = a.getDimensionPixelSize(R.styleable.ThrottleView_trackWidth,
+                Math.round(DEFAULT_TRACK_WIDTH_DP * getResources().getDisplayMetrics().density));
+        a.recycle();
+
+        trackPaint.setColor(0xFFFFFFFF);
+        levelPaint.setColor(getResources().getColor(R.color.colorAccent));
+        reversedPaint.setColor(getResources().getColor(R.color.colorPrimary));
+    }
+
+    /**
+     * @param slot Where positions are published, normally the drive generator's
+     */
+    public void setSlot(ThrottleSlot slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * Sets the top of each throttle, such as from the drive speed setting. Levels already set
+     * are kept in proportion.
+     * @param max Power at the top of each throttle, up to 1000. Anything below 1 is ignored.
+     */
+    public void setMax(int max) {
+
+        if (max < 1) {
+            return;
+        }
+        for (int side = LEFT; side <= RIGHT; side++) {
+            levels[side] = levels[side] * max / this.max;
+        }
+        this.max = max;
+        publish(System.nanoTime());
+    }
+
+    /**
+     * @param side LEFT or RIGHT
+     * @param reversed True to drive that side backwards
+     */
+    public void setReversed(int side, boolean reversed) {
+
+        this.reversed[side] = reversed;
+        publish(System.nanoTime());
+    }
+
+    public boolean isReversed(int side) {
+        return reversed[side];
+    }
+
+    /**
+     * Drops both throttles to zero, and lets go of any fingers on them
+     */
+    public void reset() {
+
+        pointers[LEFT] = -1;
+        pointers[RIGHT] = -1;
+        levels[LEFT] = 0;
+        levels[RIGHT] = 0;
+        publish(System.nanoTime());
+    }
+
+    /**
+     * @param side LEFT or RIGHT
+     * @return Power that side is driving at, negative if reversed
+     */
+    public int getPower(int side) {
+        return reversed[side] ? -levels[side] : levels[side];
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        if (!isEnabled()) {
+            return false;
+        }
+
+        int action = event.getActionMasked();
+        int index = event.getActionIndex();
+
+        switch (action) {
+
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                // A finger takes whichever free throttle it lands on
+                int side = sideAt(event.getX(index));
+                if (side >= 0 && pointers[side] < 0) {
+                    pointers[side] = event.getPointerId(index);
+                }
+                break;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+            case MotionEvent.ACTION_CANCEL:
+                // Throttles stay where they were let go
+                for (side = LEFT; side <= RIGHT; side++) {
+                    if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL
+                            || pointers[side] == event.getPointerId(index)) {
+                        pointers[side] = -1;
+                    }
+                }
+                return true;
+        }
+
+        track(event);
+        return true;
+    }
+
+    /**
+     * Moves each throttle to the newest position of its finger, and publishes with the time of
+     * the first sample in the event that moved it, so touch to command latency counts from when
+     * the finger started moving rather than when the event was delivered
+     */
+    private void track(MotionEvent event) {
+
+        long firstChange = 0;
+        boolean changed = false;
+        int history = event.getHistorySize();
+
+        for (int side = LEFT; side <= RIGHT; side++) {
+
+            int index = (pointers[side] < 0) ? -1 : event.findPointerIndex(pointers[side]);
+            if (index < 0) {
+                continue;
+            }
+
+            int level = levels[side];
+            for (int h = 0; h <= history; h++) {
+
+                float y = (h < history) ? event.getHistoricalY(index, h) : event.getY(index);
+                int sample = levelAt(y);
+                if (sample != level) {
+
+                    long time = (h < history) ? event.getHistoricalEventTime(h)
+                            : event.getEventTime();
+                    if (!changed || time < firstChange) {
+                        firstChange = time;
+                    }
+                    changed = true;
+                    level = sample;
+                }
+            }
+            levels[side] = level;
+        }
+
+        // Event times are uptimeMillis(), which shares System.nanoTime()'s clock on Android
+        if (changed) {
+            publish(TimeUnit.MILLISECONDS.toNanos(firstChange));
+        }
+    }
+
+    private void publish(long touchTime) {
+
+        if (slot != null) {
+            slot.publish(getPower(LEFT), getPower(RIGHT), touchTime);
+        }
+        invalidate();
+    }
+
+    /**
+     * @return Throttle under an x position, or -1 if it's between them
+     */
+    private int sideAt(float x) {
+
+        if (x < trackWidth) {
+            return LEFT;
+        }
+        if (x >= getWidth() - trackWidth) {
+            return RIGHT;
+        }
+        return -1;
+    }
+
+    private int levelAt(float y) {
+
+        int level = max - Math.round(max * y / getHeight());
+        return Math.max(0, Math.min(max, level));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+
+        int height = getHeight();
+        for (int side = LEFT; side <= RIGHT; side++) {
+
+            float left = (side == LEFT) ? 0 : getWidth() - trackWidth;
+            float right = left + trackWidth;
+            float top = height - (float) height * levels[side] / max;
+
+            canvas.drawRect(left, 0, right, height, trackPaint);
+            canvas.drawRect(left, top, right, height, reversed[side] ? reversedPaint : levelPaint);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.mst.marsrover.reddroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the drive generator only sends what is worth sending, by sampling it by hand
+ */
+public class DriveCommandGeneratorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final List<int[]> sent = new ArrayList<>();
+    private final ThrottleSlot slot = new ThrottleSlot();
+    private DriveCommandGenerator generator;
+
+    @Before
+    public void setUp() {
+        generator = new DriveCommandGenerator(new DriveCommandGenerator.Output() {
+            @Override
+            public void sendDrive(int left, int right) {
+                sent.add(new int[]{left, right});
+            }
+        }, slot, 50, 5, 200, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        generator.setEnabled(false);
+        generator.shutdown();
+    }
+
+    @Test
+    public void movesWithinTheDeadband_waitForTheKeepAlive() {
+
+        generator.setTarget(100, 100);
+        assertTrue(generator.sample(0, false));
+
+        generator.setTarget(104, 97);
+        assertFalse(generator.sample(20 * MS, false));
+        assertFalse(generator.sample(40 * MS, false));
+
+        // Nothing changed enough, but the board still hears from us
+        assertTrue(generator.sample(200 * MS, false));
+        assertArrayEquals(new int[]{104, 97}, sent.get(1));
+
+        generator.setTarget(110, 97);
+        assertTrue(generator.sample(220 * MS, false));
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void stopping_isNeverHeldBackByTheDeadband() {
+
+        generator.setTarget(3, -3);
+        assertTrue(generator.sample(0, false));
+
+        generator.setTarget(0, -3);
+        assertTrue(generator.sample(20 * MS, false));
+        assertArrayEquals(new int[]{0, -3}, sent.get(1));
+    }
+
+    @Test
+    public void disabled_sendsNothingThenCatchesUpWhenEnabled() {
+
+        generator.setEnabled(false);
+        generator.setTarget(500, 500);
+        assertFalse(generator.sample(0, false));
+        assertTrue(sent.isEmpty());
+
+        generator.setEnabled(true);
+        assertTrue(generator.sample(20 * MS, false));
+        assertArrayEquals(new int[]{500, 500}, sent.get(0));
+    }
+
+    @Test
+    public void touchToSendLatency_countsEachPositionOnce() {
+
+        // Touched 30 ms before the sample, then sent again by the keep-alive
+        slot.publish(200, 200, System.nanoTime() - 30 * MS);
+        assertTrue(generator.sample(0, false));
+        assertTrue(generator.sample(200 * MS, false));
+
+        long latency = generator.getTouchToSendLatency(100);
+        assertTrue(latency >= 28000 && latency < 60000);
+        assertEquals(latency, generator.getTouchToSendLatency(0));
+    }
+
+    @Test
+    public void running_sendsAtMostOncePerPeriod() throws Exception {
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final List<int[]> commands = new ArrayList<>();
+        DriveCommandGenerator running = new DriveCommandGenerator(
+                new DriveCommandGenerator.Output() {
+                    @Override
+                    public void sendDrive(int left, int right) {
+                        synchronized (commands) {
+                            commands.add(new int[]{left, right});
+                        }
+                        if (left == 0 && right == 0) {
+                            stopped.countDown();
+                        }
+                    }
+                }, new ThrottleSlot(), 50, 5, 200, TimeUnit.MILLISECONDS);
+
+        // Far more slider movements than the control rate allows through, none of them a stop
+        running.setTarget(1, 1000);
+        running.start();
+        long start = System.nanoTime();
+        for (int i = 1; i <= 10000; i++) {
+            running.setTarget(i % 1000 + 1, 1000 - i % 1000);
+        }
+        Thread.sleep(200);
+        running.pause();
+        assertTrue(stopped.await(1, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        running.shutdown();
+
+        synchronized (commands) {
+            // One per sample plus the stop, with a sample's grace for timing
+            assertTrue(commands.size() <= elapsed / (20 * MS) + 3);
+            assertArrayEquals(new int[]{0, 0}, commands.get(commands.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package edu.mst.marsrover.reddroid;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks a reader never sees a position torn between two publishes
+ */
+public class ThrottleSlotTest {
+
+    @Test
+    public void reads_areNeverTornWhilePublishing() throws Exception {
+
+        final ThrottleSlot slot = new ThrottleSlot();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        // Every publish keeps right and the touch time in step with left
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (running.get()) {
+                    i++;
+                    slot.publish(i, -i, 1000L * i);
+                }
+            }
+        });
+        writer.start();
+
+        ThrottleSlot.Reading reading = new ThrottleSlot.Reading();
+        int lastVersion = 0;
+        try {
+            for (int n = 0; n < 1000000; n++) {
+
+                slot.read(reading);
+                assertEquals(-reading.getLeft(), reading.getRight());
+                assertEquals(1000L * reading.getLeft(), reading.getTouchTime());
+                assertTrue(reading.getVersion() >= lastVersion);
+                lastVersion = reading.getVersion();
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package edu.mst.marsrover.reddroid.rovecomm.codegen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Build time generator for the typed messages in the DataID schema. Every message becomes a
+ * RoveMessage class whose encode and decode read and write the fields one byte at a time, in the
+ * schema's byte order, straight between the fields and the send or receive buffer.
+ *
+ * Run by the generateCodecs task in rovecomm/build.gradle:
+ *   CodecGenerator <schema file> <output source directory>
+ */
+public class CodecGenerator {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static String PACKAGE = "edu.mst.marsrover.reddroid.rovecomm.messages";
+
+    /**
+     * Field types the schema allows, with their size and the Java type they are held in
+     */
+    enum Type {
+
+        INT8(1, "int"),
+        UINT8(1, "int"),
+        INT16(2, "int"),
+        UINT16(2, "int"),
+        INT32(4, "int"),
+        UINT32(4, "long"),
+        INT64(8, "long"),
+        FLOAT32(4, "float"),
+        FLOAT64(8, "double");
+
+        final int size;
+        final String javaType;
+
+        Type(int size, String javaType) {
+            this.size = size;
+            this.javaType = javaType;
+        }
+    }
+
+    static class Field {
+
+        final Type type;
+        final String name;
+
+        Field(Type type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    static class Message {
+
+        final String name;
+        final int dataId;
+        final boolean little;
+        final List<String> comment;
+        final List<Field> fields = new ArrayList<>();
+
+        Message(String name, int dataId, boolean little, List<String> comment) {
+            this.name = name;
+            this.dataId = dataId;
+            this.little = little;
+            this.comment = comment;
+        }
+
+        int size() {
+
+            int size = 0;
+            for (Field field : fields) {
+                size += field.type.size;
+            }
+            return size;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2) {
+            System.err.println("Usage: CodecGenerator <schema file> <output source directory>");
+            System.exit(1);
+        }
+
+        File schema = new File(args[0]);
+        List<Message> messages = parse(schema.getName(),
+                Files.readAllLines(schema.toPath(), UTF_8));
+
+        File directory = new File(args[1], PACKAGE.replace('.', File.separatorChar));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        for (Message message : messages) {
+            write(new File(directory, message.name + ".java"),
+                    generateMessage(message, schema.getName()));
+        }
+        write(new File(directory, "DataIds.java"), generateDataIds(messages, schema.getName()));
+    }
+
+    /**
+     * Reads the schema, failing on the first line that doesn't make sense
+     * @param source Name of the schema, for error messages
+     * @param lines Lines of the schema
+     * @return Messages in the order they appear
+     */
+    static List<Message> parse(String source, List<String> lines) {
+
+        List<Message> messages = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Set<Integer> ids = new HashSet<>();
+        List<String> comment = new ArrayList<>();
+        Message current = null;
+
+        for (int number = 1; number <= lines.size(); number++) {
+
+            String line = lines.get(number - 1);
+            String trimmed = line.trim();
+            String where = source + ":" + number + ": ";
+
+            // A comment right above a message becomes its doc comment
+            if (trimmed.isEmpty()) {
+                comment = new ArrayList<>();
+                continue;
+            } else if (trimmed.startsWith("#")) {
+                comment.add(trimmed.substring(1).trim());
+                continue;
+            }
+
+            String[] words = trimmed.split("\\s+");
+            boolean indented = Character.isWhitespace(line.charAt(0));
+
+            if (!indented && words[0].equals("message")) {
+
+                if (words.length < 3 || words.length > 4) {
+                    throw new IllegalArgumentException(where
+                            + "expected message <Name> <DataID> [little|big]");
+                }
+
+                String name = words[1];
+                if (!isIdentifier(name) || !Character.isUpperCase(name.charAt(0))) {
+                    throw new IllegalArgumentException(where + "bad message name " + name);
+                }
+
+                int dataId;
+                try {
+                    dataId = Integer.decode(words[2]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(where + "bad DataID " + words[2]);
+                }
+                if (dataId < 0 || dataId > 0xFFFF) {
+                    throw new IllegalArgumentException(where + "DataID out of range " + dataId);
+                }
+
+                boolean little = true;
+                if (words.length == 4) {
+                    if (words[3].equals("big")) {
+                        little = false;
+                    } else if (!words[3].equals("little")) {
+                        throw new IllegalArgumentException(where + "bad byte order " + words[3]);
+                    }
+                }
+
+                if (!names.add(name)) {
+                    throw new IllegalArgumentException(where + "message " + name + " defined twice");
+                }
+                if (!ids.add(dataId)) {
+                    throw new IllegalArgumentException(where + "DataID " + dataId + " used twice");
+                }
+
+                current = new Message(name, dataId, little, comment);
+                messages.add(current);
+                comment = new ArrayList<>();
+
+            } else if (indented && current != null) {
+
+                if (words.length != 2) {
+                    throw new IllegalArgumentException(where + "expected <type> <field>");
+                }
+
+                Type type;
+                try {
+                    type = Type.valueOf(words[0].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(where + "unknown type " + words[0]);
+                }
+
+                String name = words[1];
+                if (!isIdentifier(name)) {
+                    throw new IllegalArgumentException(where + "bad field name " + name);
+                }
+                for (Field field : current.fields) {
+                    if (field.name.equals(name)) {
+                        throw new IllegalArgumentException(where + "field " + name + " defined twice");
+                    }
+                }
+
+                current.fields.add(new Field(type, name));
+
+            } else {
+                throw new IllegalArgumentException(where + "expected a message or an indented field");
+            }
+        }
+
+        for (Message message : messages) {
+            if (message.fields.isEmpty()) {
+                throw new IllegalArgumentException(source + ": message " + message.name
+                        + " has no fields");
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @param message Message from the schema
+     * @param source Name of the schema, for the generated header
+     * @return Source of the message's class
+     */
+    static String generateMessage(Message message, String source) {
+
+        StringBuilder out = new StringBuilder();
+        String name = message.name;
+
+        out.append("// Generated from ").append(source).append(" by CodecGenerator. Do not edit.\n");
+        out.append("package ").append(PACKAGE).append(";\n\n");
+        out.append("import java.nio.ByteBuffer;\n\n");
+        out.append("import edu.mst.marsrover.reddroid.rovecomm.PacketView;\n");
+        out.append("import edu.mst.marsrover.reddroid.rovecomm.RoveMessage;\n\n");
+
+        out.append("/**\n");
+        for (String line : message.comment) {
+            out.append(" * ").append(line).append("\n");
+        }
+        if (!message.comment.isEmpty()) {
+            out.append(" *\n");
+        }
+        out.append(" * DataID ").append(message.dataId).append(", ").append(message.size())
+                .append(" bytes, ").append(message.little ? "little" : "big").append(" endian:\n");
+        for (Field field : message.fields) {
+            out.append(" *   ").append(field.type.name().toLowerCase()).append(" ")
+                    .append(field.name).append("\n");
+        }
+        out.append(" */\n");
+        out.append("public final class ").append(name).append(" implements RoveMessage {\n\n");
+
+        out.append("    public final static int DATA_ID = ").append(message.dataId).append(";\n");
+        out.append("    public final static int SIZE = ").append(message.size()).append(";\n\n");
+
+        for (Field field : message.fields) {
+            out.append("    private ").append(field.type.javaType).append(" ").append(field.name)
+                    .append(";\n");
+        }
+        out.append("\n");
+
+        // Set all fields at once
+        out.append("    /**\n");
+        out.append("     * Sets every field, ready to send\n");
+        out.append("     * @return This message\n");
+        out.append("     */\n");
+        out.append("    public ").append(name).append(" set(");
+        for (int i = 0; i < message.fields.size(); i++) {
+            Field field = message.fields.get(i);
+            out.append(i == 0 ? "" : ", ").append(field.type.javaType).append(" ").append(field.name);
+        }
+        out.append(") {\n\n");
+        for (Field field : message.fields) {
+            out.append("        this.").append(field.name).append(" = ").append(field.name)
+                    .append(";\n");
+        }
+        out.append("        return this;\n");
+        out.append("    }\n\n");
+
+        for (Field field : message.fields) {
+
+            String capitalized = Character.toUpperCase(field.name.charAt(0))
+                    + field.name.substring(1);
+
+            out.append("    public ").append(field.type.javaType).append(" get").append(capitalized)
+                    .append("() {\n");
+            out.append("        return ").append(field.name).append(";\n");
+            out.append("    }\n\n");
+
+            out.append("    /**\n");
+            out.append("     * @param ").append(field.name).append(" Sent as ")
+                    .append(field.type.name().toLowerCase());
+            if (field.type.size < 8 && !field.type.javaType.equals("float")) {
+                out.append(", higher bits are dropped");
+            }
+            out.append("\n");
+            out.append("     */\n");
+            out.append("    public void set").append(capitalized).append("(")
+                    .append(field.type.javaType).append(" ").append(field.name).append(") {\n");
+            out.append("        this.").append(field.name).append(" = ").append(field.name)
+                    .append(";\n");
+            out.append("    }\n\n");
+        }
+
+        out.append("    @Override\n");
+        out.append("    public int getDataId() {\n");
+        out.append("        return DATA_ID;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public int getSize() {\n");
+        out.append("        return SIZE;\n");
+        out.append("    }\n\n");
+
+        // Encode
+        out.append("    @Override\n");
+        out.append("    public int encode(byte[] buffer, int offset) {\n\n");
+        int offset = 0;
+        for (Field field : message.fields) {
+
+            String value = field.name;
+            if (field.type == Type.FLOAT32) {
+                value = "Float.floatToRawIntBits(" + field.name + ")";
+            } else if (field.type == Type.FLOAT64) {
+                value = "Double.doubleToRawLongBits(" + field.name + ")";
+            }
+            if (field.type.size > 1 && !value.equals(field.name)) {
+                String bits = field.name + "Bits";
+                out.append("        ").append(field.type.size == 8 ? "long " : "int ").append(bits)
+                        .append(" = ").append(value).append(";\n");
+                value = bits;
+            }
+
+            for (int i = 0; i < field.type.size; i++) {
+                int shift = 8 * (message.little ? i : field.type.size - 1 - i);
+                out.append("        buffer[offset").append(plus(offset + i)).append("] = (byte) ");
+                out.append(shift == 0 ? value : "(" + value + " >>> " + shift + ")").append(";\n");
+            }
+            offset += field.type.size;
+        }
+        out.append("        return SIZE;\n");
+        out.append("    }\n\n");
+
+        // Decode from any buffer. Bytes are read one at a time, so the buffer's order is ignored.
+        out.append("    @Override\n");
+        out.append("    public void decode(ByteBuffer buffer, int offset) {\n\n");
+        offset = 0;
+        for (Field field : message.fields) {
+            out.append("        ").append(field.name).append(" = ")
+                    .append(decodeExpression(field.type, offset, message.little)).append(";\n");
+            offset += field.type.size;
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public boolean decode(PacketView view) {\n\n");
+        out.append("        if (view.getDataId() != DATA_ID || view.getDataLength() != SIZE) {\n");
+        out.append("            return false;\n");
+        out.append("        }\n\n");
+        out.append("        ByteBuffer data = view.getData();\n");
+        out.append("        decode(data, data.position());\n");
+        out.append("        return true;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public String toString() {\n");
+        out.append("        return \"").append(name).append("{");
+        for (int i = 0; i < message.fields.size(); i++) {
+            Field field = message.fields.get(i);
+            out.append(i == 0 ? "" : ", ").append(field.name).append("=\" + ")
+                    .append(field.name).append(" + \"");
+        }
+        out.append("}\";\n");
+        out.append("    }\n");
+        out.append("}\n");
+
+        return out.toString();
+    }
+
+    /**
+     * @return Source of a class with every message's DataID, for code that only has the number
+     */
+    static String generateDataIds(List<Message> messages, String source) {
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated from ").append(source).append(" by CodecGenerator. Do not edit.\n");
+        out.append("package ").append(PACKAGE).append(";\n\n");
+        out.append("/**\n");
+        out.append(" * Every DataID in the schema\n");
+        out.append(" */\n");
+        out.append("public final class DataIds {\n\n");
+        for (Message message : messages) {
+            out.append("    public final static int ").append(constantName(message.name))
+                    .append(" = ").append(message.dataId).append(";\n");
+        }
+        out.append("\n");
+        out.append("    private DataIds() {\n");
+        out.append("    }\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * @return Expression reading a field of the given type from buffer at offset + at
+     */
+    private static String decodeExpression(Type type, int at, boolean little) {
+
+        // Assemble the raw bits in an int, or a long when they don't fit in one
+        boolean wide = type.size == 8 || type == Type.UINT32;
+        StringBuilder bits = new StringBuilder();
+        for (int i = 0; i < type.size; i++) {
+
+            int shift = 8 * (little ? i : type.size - 1 - i);
+            String value = "(buffer.get(offset" + plus(at + i) + ") & 0xFF" + (wide ? "L" : "") + ")";
+
+            bits.append(i == 0 ? "" : " | ").append(value);
+            if (shift != 0) {
+                bits.append(" << ").append(shift);
+            }
+        }
+
+        switch (type) {
+            case INT8:
+                return "buffer.get(offset" + plus(at) + ")";
+            case INT16:
+                return "(short) (" + bits + ")";
+            case FLOAT32:
+                return "Float.intBitsToFloat(" + bits + ")";
+            case FLOAT64:
+                return "Double.longBitsToDouble(" + bits + ")";
+            default:
+                return bits.toString();
+        }
+    }
+
+    private static String plus(int offset) {
+        return offset == 0 ? "" : " + " + offset;
+    }
+
+    /**
+     * @return DrivePower as DRIVE_POWER
+     */
+    private static String constantName(String name) {
+
+        StringBuilder constant = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (i > 0 && Character.isUpperCase(c) && !Character.isUpperCase(name.charAt(i - 1))) {
+                constant.append('_');
+            }
+            constant.append(Character.toUpperCase(c));
+        }
+        return constant.toString();
+    }
+
+    private static boolean isIdentifier(String name) {
+
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(File file, String source) throws IOException {
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+    }
+}
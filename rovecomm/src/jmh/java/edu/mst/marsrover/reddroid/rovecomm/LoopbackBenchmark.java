@@ -0,0 +1,136 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full rovecomm instance on loopback, for each transport. A plain socket plays the other node:
+ * it pings rovecomm and waits for the reply to measure round trips, and sinks whatever rovecomm
+ * sends to measure sustained packets per second.
+ *
+ * Rovecomm binds the default port, so nothing else may be using it while these run.
+ */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final int PING = 1;
+    private static final int DATA_ID = 528;
+
+    @Param({"BLOCKING", "NIO"})
+    RoveComm.Transport transport;
+
+    private RoveComm roveComm;
+    private DatagramSocket peer;
+    private RoveNode peerNode;
+
+    private final byte[] payload = {1, 2, 3, 4};
+    private final byte[] pingPacket = new byte[64];
+    private DatagramPacket ping;
+    private DatagramPacket reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        // Block rather than drop so the send benchmark measures what actually leaves the socket
+        roveComm = new RoveComm(null, transport, 64, SendQueue.OverflowPolicy.BLOCK);
+
+        peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        peer.setSoTimeout(1000);
+        peerNode = new RoveNode("127.0.0.1", peer.getLocalPort());
+
+        int length = RoveProtocol.encodePacket(PING, new byte[LinkMonitor.PROBE_SIZE], 0,
+                LinkMonitor.PROBE_SIZE, 0, false, pingPacket, 0);
+        ping = new DatagramPacket(pingPacket, length, InetAddress.getLoopbackAddress(),
+                roveComm.getPort());
+        reply = new DatagramPacket(new byte[1500], 1500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        roveComm.onDestroy();
+        peer.close();
+    }
+
+    /**
+     * PING to rovecomm and back
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTrip() throws IOException {
+
+        peer.send(ping);
+        try {
+            peer.receive(reply);
+        } catch (SocketTimeoutException e) {
+            // Lost on loopback, which shows up as a 1s sample
+            return -1;
+        }
+        return reply.getLength();
+    }
+
+    /**
+     * Packets queued to a node, with the send queue blocking whenever rovecomm falls behind
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void sustainedSend(SinkState state) {
+        roveComm.sendData(DATA_ID, payload, peerNode);
+    }
+
+    /**
+     * Drains the peer socket during the send benchmark so its receive buffer never fills
+     */
+    @State(Scope.Benchmark)
+    public static class SinkState {
+
+        private volatile boolean running;
+        private Thread thread;
+
+        @Setup(Level.Iteration)
+        public void start(final LoopbackBenchmark benchmark) {
+
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                    while (running) {
+                        try {
+                            benchmark.peer.receive(packet);
+                        } catch (IOException e) {
+                            // Timed out or closed, check whether to stop
+                        }
+                    }
+                }
+            }, "benchmark-sink");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() throws InterruptedException {
+
+            running = false;
+            thread.join();
+        }
+    }
+}
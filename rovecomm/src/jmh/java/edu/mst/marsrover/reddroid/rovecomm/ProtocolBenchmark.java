@@ -0,0 +1,103 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput, and the send queue they sit behind. Run with the gc profiler
+ * (the default in build.gradle) to see allocation per op; everything but the legacy byte[]
+ * methods should report close to 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+
+    private static final int DATA_ID = 528;
+
+    @Param({"4", "64", "1024"})
+    int payloadSize;
+
+    private byte[] payload;
+    private byte[] encoded;
+    private final byte[] packet = new byte[1500];
+    private final ByteBuffer directPacket = ByteBuffer.allocateDirect(1500);
+
+    private PacketView view;
+    private int encodedLength;
+
+    private SendQueue queue;
+    private SendQueue.Entry entry;
+    private final InetSocketAddress node = new InetSocketAddress("192.168.1.130",
+            RoveComm.DEFAULT_PORT);
+
+    @Setup
+    public void setUp() {
+
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        encoded = RoveProtocol.encodePacket(DATA_ID, payload, 0, false);
+
+        // A view over its own copy of the encoded packet, decoded again on every op
+        view = new PacketView(ByteBuffer.allocate(1500));
+        view.getBuffer().put(encoded);
+        encodedLength = encoded.length;
+
+        queue = new SendQueue(64, SendQueue.OverflowPolicy.DROP_OLDEST, 1500 - RoveProtocol.HEADER_SIZE);
+        entry = queue.newEntry();
+    }
+
+    @Benchmark
+    public byte[] encodeAllocating() {
+        return RoveProtocol.encodePacket(DATA_ID, payload, 0, false);
+    }
+
+    @Benchmark
+    public int encodeIntoArray() {
+        return RoveProtocol.encodePacket(DATA_ID, payload, 0, payload.length, 0, false, packet, 0);
+    }
+
+    @Benchmark
+    public int encodeIntoDirectBuffer() {
+
+        directPacket.clear();
+        RoveProtocol.encodePacket(DATA_ID, payload, 0, payload.length, 0, false, directPacket);
+        return directPacket.position();
+    }
+
+    @Benchmark
+    public RoveProtocol.DataObject decodeAllocating() throws Exception {
+        return RoveProtocol.decodePacket(encoded);
+    }
+
+    @Benchmark
+    public int decodeIntoView() throws Exception {
+
+        ByteBuffer buffer = view.getBuffer();
+        buffer.clear();
+        buffer.limit(encodedLength);
+        RoveProtocol.decodePacket(view);
+        return view.getDataLength();
+    }
+
+    @Benchmark
+    public int queueAndEncode() throws InterruptedException {
+
+        queue.offer(DATA_ID, payload, node);
+        queue.take(entry);
+        return RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length, entry.seqNum,
+                entry.requireAck, packet, 0);
+    }
+}
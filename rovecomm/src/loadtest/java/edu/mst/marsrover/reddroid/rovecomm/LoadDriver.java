@@ -0,0 +1,264 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+/**
+ * Drives a full rovecomm instance against a RoverSimulator and reports what got through: the
+ * telemetry throughput, loss and reordering seen, and the latency from the simulator sending
+ * each packet to rovecomm handing it over, as percentiles.
+ *
+ * By default the simulator runs in the same process. With --external the driver talks to one
+ * started separately, which must be on the same machine for the latencies to mean anything.
+ *
+ *   --transport BLOCKING|NIO  Rovecomm transport, default NIO
+ *   --port N                  Port for rovecomm to bind, default 11001
+ *   --sim-port N              Port of the simulator, default 11000
+ *   --duration S              Seconds to measure for, default 10
+ *   --warmup S                Seconds to run before measuring, default 2
+ *   --drive-rate HZ           Drive powers sent per second, default 50
+ *   --external                Use a simulator that is already running
+ *   --metrics                 Collect rovecomm's own metrics and print them too
+ *
+ * plus the simulator's --telemetry, --loss, --reorder, --reorder-delay, --delay and --jitter
+ * when it runs in process.
+ */
+public class LoadDriver {
+
+    private final RoveComm roveComm;
+    private final RoveNode simulator;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong unstamped = new AtomicLong();
+
+    // Sequence numbers seen, for each telemetry DataID. Only the receiving thread writes these.
+    private final int[] streamIds = new int[16];
+    private final long[] firstSeqNum = new long[16];
+    private final long[] highestSeqNum = new long[16];
+    private final long[] streamReceived = new long[16];
+    private volatile int streamCount;
+    private volatile boolean measuring;
+
+    /**
+     * Constructor for a driver, subscribing to the simulator straight away
+     * @param roveComm Rovecomm instance to drive
+     * @param simulator Simulated board
+     */
+    public LoadDriver(RoveComm roveComm, RoveNode simulator) {
+
+        this.roveComm = roveComm;
+        this.simulator = simulator;
+
+        roveComm.setOnReceivePacket(new RoveComm.OnReceivePacket() {
+            @Override
+            public void receivePacket(PacketView packet) {
+                onTelemetry(packet);
+            }
+        });
+        roveComm.subscribe(simulator);
+    }
+
+    /**
+     * Sends drive powers at a steady rate for a while, as the app would while driving
+     * @param rate Drive powers per second
+     * @param nanos How long to keep sending for
+     */
+    public void drive(int rate, long nanos) throws InterruptedException {
+
+        DrivePower drive = new DrivePower();
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long next = start;
+        int step = 0;
+
+        while (next - start < nanos) {
+
+            // Sweep through the power range so the board sees changing values
+            int power = (step++ % 2001) - 1000;
+            roveComm.sendData(drive.set(power, -power), simulator);
+
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /**
+     * Starts counting from zero
+     */
+    public void startMeasuring() {
+
+        measuring = false;
+        latency.reset();
+        RoveMetrics metrics = roveComm.getMetrics();
+        if (metrics != null) {
+            metrics.reset();
+        }
+        received.set(0);
+        bytes.set(0);
+        reordered.set(0);
+        unstamped.set(0);
+        streamCount = 0;
+        measuring = true;
+    }
+
+    public void stopMeasuring() {
+        measuring = false;
+    }
+
+    /**
+     * Counts and times a telemetry packet. Runs on rovecomm's receive path, so only touches
+     * counters.
+     */
+    private void onTelemetry(PacketView packet) {
+
+        long now = System.nanoTime();
+        if (!measuring) {
+            return;
+        }
+
+        received.incrementAndGet();
+        bytes.addAndGet(RoveProtocol.HEADER_SIZE + packet.getDataLength());
+        if (packet.getDataLength() < RoverSimulator.STAMP_SIZE) {
+            unstamped.incrementAndGet();
+            return;
+        }
+
+        ByteBuffer data = packet.getData();
+        long seqNum = data.getLong(data.position());
+        long sentAt = data.getLong(data.position() + 8);
+        latency.record(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+
+        int stream = streamOf(packet.getDataId(), seqNum);
+        if (stream < 0) {
+            return;
+        }
+        streamReceived[stream]++;
+        if (seqNum < highestSeqNum[stream]) {
+            reordered.incrementAndGet();
+        } else {
+            highestSeqNum[stream] = seqNum;
+        }
+    }
+
+    /**
+     * @return Index of a DataID's counters, started at seqNum if it is new, or -1 if there are
+     * too many DataIDs to track
+     */
+    private int streamOf(int dataId, long seqNum) {
+
+        int count = streamCount;
+        for (int i = 0; i < count; i++) {
+            if (streamIds[i] == dataId) {
+                return i;
+            }
+        }
+        if (count == streamIds.length) {
+            return -1;
+        }
+
+        streamIds[count] = dataId;
+        firstSeqNum[count] = seqNum;
+        highestSeqNum[count] = seqNum;
+        streamReceived[count] = 0;
+        streamCount = count + 1;
+        return count;
+    }
+
+    /**
+     * Prints what was measured
+     * @param seconds How long measuring went on for
+     */
+    public void report(double seconds) {
+
+        long packets = received.get();
+        long expected = 0;
+        long got = 0;
+        for (int i = 0; i < streamCount; i++) {
+            expected += highestSeqNum[i] - firstSeqNum[i] + 1;
+            got += streamReceived[i];
+        }
+        long lost = Math.max(0, expected - got);
+
+        System.out.println(String.format("transport         %s", roveComm.getTransport()));
+        System.out.println(String.format("telemetry         %d packets, %.0f packets/s, %.2f MB/s",
+                packets, packets / seconds, bytes.get() / seconds / 1e6));
+        System.out.println(String.format("lost              %d (%.3f%%)", lost,
+                expected == 0 ? 0 : 100.0 * lost / expected));
+        System.out.println(String.format("reordered         %d", reordered.get()));
+        System.out.println(String.format("latency (us)      p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+                latency.percentile(50), latency.percentile(90), latency.percentile(99),
+                latency.percentile(99.9), latency.percentile(100)));
+        System.out.println(String.format("drops             kernel %d, receive queue %d, "
+                        + "send queue %d, malformed %d",
+                roveComm.getKernelDropCount(), roveComm.getAppDropCount(),
+                roveComm.getSendQueue().getDroppedCount(), roveComm.getMalformedCount()));
+        if (unstamped.get() > 0) {
+            System.out.println(String.format("unstamped         %d", unstamped.get()));
+        }
+        RoveMetrics.Snapshot metrics = roveComm.getMetricsSnapshot();
+        if (metrics != null) {
+            System.out.println(metrics);
+        }
+    }
+
+    public void close() {
+
+        roveComm.unSubscribe(simulator);
+        roveComm.setOnReceivePacket(null);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        RoverSimulator.Options options = new RoverSimulator.Options(args);
+        int simulatorPort = options.getInt("sim-port", RoveComm.DEFAULT_PORT);
+        long duration = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        long warmup = TimeUnit.SECONDS.toNanos(options.getInt("warmup", 2));
+        int driveRate = options.getInt("drive-rate", 50);
+
+        RoverSimulator simulator = null;
+        if (!options.has("external")) {
+            simulator = new RoverSimulator(simulatorPort);
+            options.configure(simulator);
+            simulator.start();
+        }
+
+        RoveComm roveComm = new RoveComm(null,
+                RoveComm.Transport.valueOf(options.get("transport", "NIO")), 1024,
+                SendQueue.OverflowPolicy.DROP_OLDEST,
+                options.getInt("port", RoveComm.DEFAULT_PORT + 1));
+        if (options.has("metrics")) {
+            roveComm.enableMetrics();
+        }
+        LoadDriver driver = new LoadDriver(roveComm, new RoveNode("127.0.0.1", simulatorPort));
+
+        driver.drive(driveRate, warmup);
+        driver.startMeasuring();
+        long start = System.nanoTime();
+        driver.drive(driveRate, duration);
+        driver.stopMeasuring();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        driver.report(seconds);
+        if (simulator != null) {
+            System.out.println(String.format("simulator         received %d, drive packets %d, "
+                            + "injected loss %d",
+                    simulator.getReceivedCount(), simulator.getDriveCount(),
+                    simulator.getInjectedLossCount()));
+        }
+
+        driver.close();
+        roveComm.onDestroy();
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+}
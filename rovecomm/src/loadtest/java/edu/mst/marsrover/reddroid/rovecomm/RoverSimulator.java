@@ -0,0 +1,599 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+/**
+ * Headless stand-in for a rover board, so the base station can be load tested without a rover.
+ * It binds on loopback and speaks rovecomm with its own plain socket: it answers PING and ACKs
+ * reliable packets, keeps subscribers, takes drive powers, and streams synthetic telemetry to
+ * its subscribers.
+ *
+ * Telemetry data starts with a sequence number and the System.nanoTime() it was sent at, so a
+ * receiver on the same machine can measure loss, reordering and latency. Everything the
+ * simulator sends can be put through injected loss, delay and reordering.
+ */
+public class RoverSimulator {
+
+    // Telemetry data starts with a long sequence number and a long send time
+    public final static int STAMP_SIZE = 16;
+
+    private final static int MAX_PACKET_SIZE = 1500;
+
+    private final DatagramSocket socket;
+    private final SubscriberSet subscribers = new SubscriberSet();
+    private final List<Stream> streams = new ArrayList<>();
+    private final Random random = new Random();
+
+    // Injected impairments, applied to everything sent
+    private volatile double loss;
+    private volatile double reorder;
+    private volatile long reorderDelay = TimeUnit.MILLISECONDS.toNanos(10);
+    private volatile long delay;
+    private volatile long jitter;
+
+    // Packets held back by delay or reordering, soonest first. Guarded by lock.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    private long delayedCount;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong drivePackets = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong injectedLoss = new AtomicLong();
+    private volatile int lastLeft;
+    private volatile int lastRight;
+
+    private volatile boolean running;
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * Constructor for a simulator bound to a loopback port
+     * @param port UDP port to bind, or 0 for any free one
+     * @throws SocketException If the port can't be bound
+     */
+    public RoverSimulator(int port) throws SocketException {
+
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        socket.setReceiveBufferSize(1 << 20);
+        socket.setSendBufferSize(1 << 20);
+    }
+
+    /**
+     * Adds a stream of synthetic telemetry, sent to every subscriber. Must be called before
+     * start().
+     * @param dataId DataID to send it as
+     * @param rate Packets per second to each subscriber
+     * @param size Bytes of data in each packet, at least STAMP_SIZE
+     */
+    public void addTelemetry(int dataId, int rate, int size) {
+
+        if (rate <= 0 || size < STAMP_SIZE || size > MAX_PACKET_SIZE - RoveProtocol.HEADER_SIZE) {
+            throw new IllegalArgumentException("Rate must be positive and size between "
+                    + STAMP_SIZE + " and " + (MAX_PACKET_SIZE - RoveProtocol.HEADER_SIZE));
+        }
+        streams.add(new Stream(dataId, rate, size));
+    }
+
+    /**
+     * @param probability Chance of each packet sent being dropped, 0 to 1
+     */
+    public void setLoss(double probability) {
+        this.loss = probability;
+    }
+
+    /**
+     * @param probability Chance of each packet sent being held back behind later ones, 0 to 1
+     * @param extraDelay How long a reordered packet is held back
+     * @param unit Unit of extraDelay
+     */
+    public void setReorder(double probability, long extraDelay, TimeUnit unit) {
+
+        this.reorder = probability;
+        this.reorderDelay = unit.toNanos(extraDelay);
+    }
+
+    /**
+     * @param delay Time every packet sent is held for
+     * @param jitter Most extra time, chosen at random for each packet, it is held for on top
+     * @param unit Unit of delay and jitter
+     */
+    public void setDelay(long delay, long jitter, TimeUnit unit) {
+
+        this.delay = unit.toNanos(delay);
+        this.jitter = unit.toNanos(jitter);
+    }
+
+    /**
+     * Starts receiving, sending and streaming telemetry, each on a thread of its own
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+        running = true;
+
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, "Simulator-receive");
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                delayLoop();
+            }
+        }, "Simulator-send");
+        if (!streams.isEmpty()) {
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    telemetryLoop();
+                }
+            }, "Simulator-telemetry");
+        }
+    }
+
+    /**
+     * Stops every thread and closes the socket
+     */
+    public synchronized void stop() {
+
+        running = false;
+        socket.close();
+
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        threads.clear();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return Number of datagrams received, batches counting once
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getMalformedCount() {
+        return malformed.get();
+    }
+
+    /**
+     * @return Number of drive power packets received
+     */
+    public long getDriveCount() {
+        return drivePackets.get();
+    }
+
+    public int getLastLeft() {
+        return lastLeft;
+    }
+
+    public int getLastRight() {
+        return lastRight;
+    }
+
+    /**
+     * @return Number of packets handed to the socket, after injected loss
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return Number of packets dropped on purpose by setLoss()
+     */
+    public long getInjectedLossCount() {
+        return injectedLoss.get();
+    }
+
+    private void startThread(Runnable runnable, String name) {
+
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Receives and handles datagrams until stopped
+     */
+    private void receiveLoop() {
+
+        byte[] buffer = new byte[MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        PacketView view = new PacketView(ByteBuffer.wrap(buffer));
+        DrivePower drive = new DrivePower();
+
+        while (running) {
+
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+
+            received.incrementAndGet();
+            view.getBuffer().clear();
+            view.setSource(packet.getAddress(), packet.getPort());
+            InetSocketAddress source = new InetSocketAddress(packet.getAddress(), packet.getPort());
+
+            if (RoveProtocol.decodePacket(view, 0, packet.getLength()) != RoveProtocol.Status.OK) {
+                malformed.incrementAndGet();
+                continue;
+            }
+
+            if (!view.isBatch()) {
+                handle(view, source, drive);
+                continue;
+            }
+
+            int next = view.getDataOffset();
+            int end = next + view.getDataLength();
+            while (next < end) {
+
+                if (RoveProtocol.decodeRecord(view, next, end - next) != RoveProtocol.Status.OK) {
+                    malformed.incrementAndGet();
+                    break;
+                }
+                next = view.getDataOffset() + view.getDataLength();
+                handle(view, source, drive);
+            }
+        }
+    }
+
+    /**
+     * Handles one packet the way a board would
+     */
+    private void handle(PacketView view, InetSocketAddress source, DrivePower drive) {
+
+        if (view.isRequiresAck()) {
+            int id = view.getDataId();
+            send(RoveComm.ACK, new byte[]{(byte) (id >> 8), (byte) (id & 0xFF)}, 2,
+                    view.getSeqNum(), source);
+        }
+
+        switch (view.getDataId()) {
+
+            case RoveComm.PING:
+                send(RoveComm.PING_REPLY, view.copyData(), view.getDataLength(), 0, source);
+                break;
+            case RoveComm.SUBSCRIBE:
+                subscribers.add(source);
+                break;
+            case RoveComm.UNSUBSCRIBE:
+                subscribers.remove(source);
+                break;
+            case DrivePower.DATA_ID:
+                if (drive.decode(view)) {
+                    lastLeft = drive.getLeft();
+                    lastRight = drive.getRight();
+                    drivePackets.incrementAndGet();
+                } else {
+                    malformed.incrementAndGet();
+                }
+                break;
+            default:
+                // Boards ignore DataIDs they don't know
+                break;
+        }
+    }
+
+    /**
+     * Sends each telemetry stream to every subscriber at its rate until stopped. Streams that
+     * fall behind catch up in a burst, so the average rate holds even when a wake up is late.
+     */
+    private void telemetryLoop() {
+
+        long start = System.nanoTime();
+        for (Stream stream : streams) {
+            stream.next = start;
+        }
+
+        while (running) {
+
+            long now = System.nanoTime();
+            long soonest = Long.MAX_VALUE;
+
+            for (Stream stream : streams) {
+
+                while (stream.next - now <= 0) {
+
+                    ByteBuffer data = ByteBuffer.wrap(stream.data);
+                    data.putLong(0, stream.seqNum++);
+                    data.putLong(8, System.nanoTime());
+
+                    InetSocketAddress[] current = subscribers.snapshot();
+                    for (int i = 0; i < current.length; i++) {
+                        send(stream.dataId, stream.data, stream.data.length, 0, current[i]);
+                    }
+                    stream.next += stream.period;
+                }
+                soonest = Math.min(soonest, stream.next);
+            }
+
+            LockSupport.parkNanos(soonest - System.nanoTime());
+        }
+    }
+
+    /**
+     * Sends a packet through the injected impairments
+     */
+    private void send(int dataId, byte[] data, int length, int seqNum,
+                      InetSocketAddress destination) {
+
+        Random random = this.random;
+        if (loss > 0 && random.nextDouble() < loss) {
+            injectedLoss.incrementAndGet();
+            return;
+        }
+
+        byte[] packet = new byte[RoveProtocol.HEADER_SIZE + length];
+        RoveProtocol.encodePacket(dataId, data, 0, length, seqNum, false, packet, 0);
+
+        long hold = delay;
+        if (jitter > 0) {
+            hold += (long) (random.nextDouble() * jitter);
+        }
+        if (reorder > 0 && random.nextDouble() < reorder) {
+            hold += reorderDelay;
+        }
+
+        if (hold <= 0) {
+            transmit(packet, destination);
+            return;
+        }
+
+        lock.lock();
+        try {
+            delayed.add(new Delayed(System.nanoTime() + hold, delayedCount++, packet, destination));
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends held back packets as they come due, until stopped
+     */
+    private void delayLoop() {
+
+        while (running) {
+
+            Delayed due;
+            lock.lock();
+            try {
+                while (true) {
+                    if (!running) {
+                        return;
+                    }
+                    Delayed head = delayed.peek();
+                    long wait = (head == null) ? Long.MAX_VALUE : head.due - System.nanoTime();
+                    if (wait <= 0) {
+                        due = delayed.poll();
+                        break;
+                    }
+                    changed.awaitNanos(wait);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            transmit(due.packet, due.destination);
+        }
+    }
+
+    private void transmit(byte[] packet, InetSocketAddress destination) {
+
+        try {
+            socket.send(new DatagramPacket(packet, packet.length, destination));
+            sent.incrementAndGet();
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One stream of synthetic telemetry. Only the telemetry thread touches these.
+     */
+    private static class Stream {
+
+        final int dataId;
+        final long period;
+        final byte[] data;
+        long next;
+        long seqNum;
+
+        Stream(int dataId, int rate, int size) {
+
+            this.dataId = dataId;
+            this.period = TimeUnit.SECONDS.toNanos(1) / rate;
+            this.data = new byte[size];
+        }
+    }
+
+    /**
+     * A packet held back by injected delay or reordering
+     */
+    private static class Delayed implements Comparable<Delayed> {
+
+        final long due;
+        final long order;
+        final byte[] packet;
+        final InetSocketAddress destination;
+
+        Delayed(long due, long order, byte[] packet, InetSocketAddress destination) {
+
+            this.due = due;
+            this.order = order;
+            this.packet = packet;
+            this.destination = destination;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+
+            long difference = due - other.due;
+            if (difference == 0) {
+                difference = order - other.order;
+            }
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Runs a simulator until killed, printing what it has seen every second.
+     *
+     *   --port N                 UDP port to bind, default 11000
+     *   --telemetry ID:RATE:SIZE Stream of synthetic telemetry, may be given more than once.
+     *                            Default 1000:100:32.
+     *   --loss P                 Chance of dropping each packet sent, 0 to 1
+     *   --reorder P              Chance of holding each packet back behind later ones
+     *   --reorder-delay MS       How long reordered packets are held back, default 10
+     *   --delay MS               Time every packet is held for
+     *   --jitter MS              Most extra random time each packet is held for
+     */
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options(args);
+        RoverSimulator simulator = new RoverSimulator(options.getInt("port", RoveComm.DEFAULT_PORT));
+        options.configure(simulator);
+        simulator.start();
+
+        System.out.println("Simulated board on 127.0.0.1:" + simulator.getPort());
+        while (true) {
+            Thread.sleep(1000);
+            System.out.println(String.format("subscribers %d, received %d, drive packets %d"
+                            + " (last %d, %d), sent %d, injected loss %d, malformed %d",
+                    simulator.getSubscriberCount(), simulator.getReceivedCount(),
+                    simulator.getDriveCount(), simulator.getLastLeft(), simulator.getLastRight(),
+                    simulator.getSentCount(), simulator.getInjectedLossCount(),
+                    simulator.getMalformedCount()));
+        }
+    }
+
+    /**
+     * Command line options shared by the simulator and the load driver, given as --name value
+     */
+    static class Options {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        Options(String[] args) {
+
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                }
+                names.add(args[i].substring(2));
+                // Options without a value are flags
+                boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                values.add(hasValue ? args[++i] : "");
+            }
+        }
+
+        boolean has(String name) {
+            return names.contains(name);
+        }
+
+        String get(String name, String fallback) {
+
+            int index = names.lastIndexOf(name);
+            return index < 0 ? fallback : values.get(index);
+        }
+
+        List<String> getAll(String name) {
+
+            List<String> all = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equals(name)) {
+                    all.add(values.get(i));
+                }
+            }
+            return all;
+        }
+
+        int getInt(String name, int fallback) {
+            return Integer.parseInt(get(name, String.valueOf(fallback)));
+        }
+
+        double getDouble(String name, double fallback) {
+            return Double.parseDouble(get(name, String.valueOf(fallback)));
+        }
+
+        /**
+         * Applies the telemetry and impairment options to a simulator
+         */
+        void configure(RoverSimulator simulator) {
+
+            List<String> telemetry = getAll("telemetry");
+            if (telemetry.isEmpty()) {
+                telemetry.add("1000:100:32");
+            }
+            for (String stream : telemetry) {
+                String[] parts = stream.split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Telemetry must be ID:RATE:SIZE, not "
+                            + stream);
+                }
+                simulator.addTelemetry(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]));
+            }
+
+            simulator.setLoss(getDouble("loss", 0));
+            simulator.setReorder(getDouble("reorder", 0), getInt("reorder-delay", 10),
+                    TimeUnit.MILLISECONDS);
+            simulator.setDelay(getInt("delay", 0), getInt("jitter", 0), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of resolved addresses for nodes given to rovecomm as strings. Least recently used
+ * entries are dropped once it is full. Failed lookups are not cached, so a node that comes up
+ * later is found on the next try.
+ */
+public class AddressCache {
+
+    private final int port;
+    private final LinkedHashMap<String, InetSocketAddress> addresses;
+
+    /**
+     * Constructor for an address cache
+     * @param capacity Most addresses kept at once
+     * @param port Port every cached address points at
+     */
+    public AddressCache(final int capacity, int port) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.port = port;
+
+        // Access order, so the eldest entry is the least recently used one
+        addresses = new LinkedHashMap<String, InetSocketAddress>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, InetSocketAddress> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a node, resolving it only if it isn't cached
+     * @param ip String ip or host name of node
+     * @return Address of the node
+     * @throws UnknownHostException If the node is not cached and could not be resolved
+     */
+    public InetSocketAddress get(String ip) throws UnknownHostException {
+
+        synchronized (this) {
+            InetSocketAddress address = addresses.get(ip);
+            if (address != null) {
+                return address;
+            }
+        }
+
+        // Resolve without the lock so a slow lookup does not hold up other senders
+        InetSocketAddress address = new InetSocketAddress(ip, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(ip);
+        }
+
+        synchronized (this) {
+            addresses.put(ip, address);
+        }
+        return address;
+    }
+
+    /**
+     * Forgets a node's address so it is resolved again the next time it is used
+     * @param ip String ip or host name of node
+     */
+    public synchronized void invalidate(String ip) {
+        addresses.remove(ip);
+    }
+
+    /**
+     * Forgets every address
+     */
+    public synchronized void clear() {
+        addresses.clear();
+    }
+
+    public synchronized int size() {
+        return addresses.size();
+    }
+}
@@ -0,0 +1,292 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs small packets for the same node into one datagram, saving a UDP/IP header and a send for
+ * every packet after the first. A batch goes out once the next packet would not fit, or once its
+ * oldest packet has waited the batch delay.
+ *
+ * Only DataIDs marked with setBatched() are held back. Everything else, and anything needing an
+ * ACK, is sent straight away, so an e-stop never waits behind a batch.
+ *
+ * Everything but setBatched(), clearBatched() and setDelay() must be called from the send thread.
+ */
+public class Batcher {
+
+    /**
+     * Where finished batches go, normally the transport's socket
+     */
+    public interface Output {
+
+        /**
+         * @param packet Batch from position to limit
+         * @param records Number of packets in it
+         * @param destination Node to send to
+         * @return False if the socket can't take it right now and it should be retried
+         */
+        boolean sendBatch(ByteBuffer packet, int records, InetSocketAddress destination);
+    }
+
+    // Nodes with a batch open at once. Opening one more sends the oldest early.
+    private final static int MAX_OPEN = 8;
+
+    private final Output output;
+    private final int maxPacketSize;
+
+    // Replaced, never modified, when the batched DataIDs change
+    private volatile int[] batchedIds = new int[0];
+    private volatile long delay;
+
+    private final Batch[] batches = new Batch[MAX_OPEN];
+
+    /**
+     * Constructor for a batcher
+     * @param output Where batches are sent
+     * @param maxPacketSize Largest datagram to build, header included
+     * @param delay Longest a packet waits for others to join it, in nanoseconds
+     * @param direct True to build batches in direct buffers, for NIO channels
+     */
+    public Batcher(Output output, int maxPacketSize, long delay, boolean direct) {
+
+        this.output = output;
+        this.maxPacketSize = maxPacketSize;
+        this.delay = delay;
+
+        for (int i = 0; i < MAX_OPEN; i++) {
+            batches[i] = new Batch(direct ? ByteBuffer.allocateDirect(maxPacketSize)
+                    : ByteBuffer.allocate(maxPacketSize));
+        }
+    }
+
+    /**
+     * Makes a DataID wait to be sent along with others
+     * @param id DataID to batch
+     */
+    public synchronized void setBatched(int id) {
+
+        int[] current = batchedIds;
+        if (indexOf(current, id) >= 0) {
+            return;
+        }
+
+        int[] next = new int[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = id;
+        batchedIds = next;
+    }
+
+    /**
+     * Returns a DataID to being sent as soon as it is queued. Values already in a batch still go
+     * out with it.
+     * @param id DataID to stop batching
+     */
+    public synchronized void clearBatched(int id) {
+
+        int[] current = batchedIds;
+        int index = indexOf(current, id);
+        if (index < 0) {
+            return;
+        }
+
+        int[] next = new int[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        batchedIds = next;
+    }
+
+    /**
+     * @param delay Longest a packet waits for others to join it
+     * @param unit Unit of delay
+     */
+    public void setDelay(long delay, TimeUnit unit) {
+        this.delay = unit.toNanos(delay);
+    }
+
+    /**
+     * @param entry Packet taken from the send queue
+     * @return True if the packet should be given to add() rather than sent alone
+     */
+    public boolean canBatch(SendQueue.Entry entry) {
+
+        return !entry.requireAck && indexOf(batchedIds, entry.id) >= 0
+                && 2 * RoveProtocol.HEADER_SIZE + entry.length <= maxPacketSize;
+    }
+
+    /**
+     * Adds a packet to its node's batch, sending the batch first if the packet won't fit
+     * @param entry Packet for which canBatch() is true. It is copied, so can be reused after.
+     * @param now Current time, in System.nanoTime() terms
+     * @return False if a batch had to be sent to make room and the socket wouldn't take it. The
+     * packet was not added and should be retried once the socket is writable.
+     */
+    public boolean add(SendQueue.Entry entry, long now) {
+
+        int size = RoveProtocol.HEADER_SIZE + entry.length;
+        Batch batch = find(entry.destination);
+
+        if (batch != null && batch.buffer.remaining() < size && !flush(batch)) {
+            return false;
+        }
+
+        if (batch == null || batch.destination == null) {
+            batch = open(entry.destination, now);
+            if (batch == null) {
+                return false;
+            }
+        }
+
+        RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length, entry.seqNum,
+                entry.requireAck, batch.buffer);
+        batch.records++;
+
+        // Nothing more can fit, so don't wait for the deadline
+        if (batch.buffer.remaining() <= RoveProtocol.HEADER_SIZE) {
+            flush(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Sends every batch whose deadline has passed
+     * @param now Current time, in System.nanoTime() terms
+     * @return False if the socket wouldn't take one, which should be retried once it is writable
+     */
+    public boolean flushDue(long now) {
+
+        for (Batch batch : batches) {
+            if (batch.destination != null && batch.deadline - now <= 0 && !flush(batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends every open batch regardless of its deadline
+     * @return False if the socket wouldn't take one
+     */
+    public boolean flushAll() {
+
+        for (Batch batch : batches) {
+            if (batch.destination != null && !flush(batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param now Current time, in System.nanoTime() terms
+     * @return Nanoseconds until the next batch is due, 0 if one already is, or -1 if none are open
+     */
+    public long nextDeadline(long now) {
+
+        long next = -1;
+        for (Batch batch : batches) {
+            if (batch.destination != null) {
+                long wait = Math.max(0, batch.deadline - now);
+                if (next < 0 || wait < next) {
+                    next = wait;
+                }
+            }
+        }
+        return next;
+    }
+
+    private Batch find(InetSocketAddress destination) {
+
+        for (Batch batch : batches) {
+            if (batch.destination != null && batch.destination.equals(destination)) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a batch for a node, sending the oldest open batch early if they are all in use
+     * @return The new batch, or null if there was no room and the socket wouldn't take the oldest
+     */
+    private Batch open(InetSocketAddress destination, long now) {
+
+        Batch oldest = null;
+        for (Batch batch : batches) {
+            if (batch.destination == null) {
+                oldest = batch;
+                break;
+            } else if (oldest == null || batch.deadline - oldest.deadline < 0) {
+                oldest = batch;
+            }
+        }
+
+        if (oldest.destination != null && !flush(oldest)) {
+            return null;
+        }
+
+        // Leave room for the batch header, written once the batch is complete
+        oldest.buffer.clear();
+        oldest.buffer.position(RoveProtocol.HEADER_SIZE);
+        oldest.destination = destination;
+        oldest.deadline = now + delay;
+        oldest.records = 0;
+        return oldest;
+    }
+
+    /**
+     * Sends a batch and closes it. A batch of one is sent as a plain packet, so nodes that don't
+     * understand batches still get it.
+     * @return False if the socket wouldn't take it, in which case it stays open
+     */
+    private boolean flush(Batch batch) {
+
+        ByteBuffer buffer = batch.buffer;
+        int end = buffer.position();
+
+        if (batch.records == 1) {
+            buffer.limit(end);
+            buffer.position(RoveProtocol.HEADER_SIZE);
+        } else {
+            RoveProtocol.encodeBatchHeader(buffer, 0, end - RoveProtocol.HEADER_SIZE);
+            buffer.flip();
+        }
+
+        if (!output.sendBatch(buffer, batch.records, batch.destination)) {
+            // Put the buffer back as it was so more can still be added
+            buffer.limit(buffer.capacity());
+            buffer.position(end);
+            return false;
+        }
+
+        batch.destination = null;
+        batch.records = 0;
+        return true;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Packets waiting for one node. Closed while destination is null.
+     */
+    private static class Batch {
+
+        final ByteBuffer buffer;
+        InetSocketAddress destination;
+        long deadline;
+        int records;
+
+        Batch(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out how another node's monotonic clock relates to this one's, the way NTP does, from ping
+ * exchanges that carry both nodes' times. Each exchange gives an offset between the clocks and the
+ * round trip it was measured over; the longer the round trip, the less the offset can be trusted.
+ * Exchanges close to the quickest seen are fitted with a straight line, giving the offset now and
+ * how fast the two clocks drift apart.
+ *
+ * Samples are added on the thread delivering packets. Estimates are immutable and can be read
+ * from any thread.
+ */
+public class ClockSync {
+
+    // Local time of a remote timestamp that can't be converted yet
+    public final static long UNKNOWN = Long.MIN_VALUE;
+
+    // Exchanges kept. At 5 pings a second this is the last 50 seconds or so.
+    private final static int WINDOW = 256;
+
+    // Exchanges fitted are those with a round trip within twice the quickest, plus this
+    private final static long DELAY_MARGIN = TimeUnit.MICROSECONDS.toNanos(200);
+
+    // Fewest exchanges, and least time covered, before drift is estimated rather than taken as 0
+    private final static int MIN_FIT_SAMPLES = 8;
+    private final static long MIN_FIT_SPAN = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Best guess at the remote clock, as remote = local + offset + drift * (local - reference)
+     */
+    public static class Estimate {
+
+        private final long reference;
+        private final long offset;
+        private final double drift;
+        private final long delay;
+        private final int samples;
+
+        Estimate(long reference, long offset, double drift, long delay, int samples) {
+            this.reference = reference;
+            this.offset = offset;
+            this.drift = drift;
+            this.delay = delay;
+            this.samples = samples;
+        }
+
+        /**
+         * @param remote Remote clock, in nanoseconds
+         * @return The same moment in System.nanoTime() terms
+         */
+        public long toLocal(long remote) {
+            return reference + Math.round((remote - offset - reference) / (1 + drift));
+        }
+
+        /**
+         * @param local Time in System.nanoTime() terms
+         * @return The same moment on the remote clock, in nanoseconds
+         */
+        public long toRemote(long local) {
+            return local + offset + Math.round(drift * (local - reference));
+        }
+
+        /**
+         * @return Remote clock minus local clock at the reference time, in nanoseconds
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return Local time the offset was measured at, in System.nanoTime() terms
+         */
+        public long getReference() {
+            return reference;
+        }
+
+        /**
+         * @return Nanoseconds the remote clock gains on this one per nanosecond, so 20e-6 is 20 ppm
+         */
+        public double getDrift() {
+            return drift;
+        }
+
+        /**
+         * @return Quickest round trip seen, less the time the other node held the ping. The
+         * offset can be out by up to half of this.
+         */
+        public long getDelay() {
+            return delay;
+        }
+
+        /**
+         * @return Number of exchanges the estimate is drawn from
+         */
+        public int getSamples() {
+            return samples;
+        }
+    }
+
+    // Ring of exchanges: local midpoint, offset and round trip, all in nanoseconds
+    private final long[] times = new long[WINDOW];
+    private final long[] offsets = new long[WINDOW];
+    private final long[] delays = new long[WINDOW];
+    private int count;
+    private int next;
+
+    private volatile Estimate estimate;
+
+    /**
+     * Adds one ping exchange. Only run on the thread delivering packets, or by tests.
+     * @param sent Local time the ping was sent
+     * @param received Remote time the ping arrived
+     * @param replied Remote time the reply was sent
+     * @param now Local time the reply arrived
+     */
+    void addSample(long sent, long received, long replied, long now) {
+
+        long delay = (now - sent) - (replied - received);
+        if (delay < 0) {
+            // Clock resolution on either end can make a very quick exchange look negative
+            delay = 0;
+        }
+
+        times[next] = sent + (now - sent) / 2;
+        offsets[next] = ((received - sent) + (replied - now)) / 2;
+        delays[next] = delay;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+
+        estimate = fit();
+    }
+
+    /**
+     * @return Latest estimate, or null before the first exchange
+     */
+    public Estimate getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * Fits a line through the exchanges whose round trips were quick enough to trust
+     */
+    private Estimate fit() {
+
+        int quickest = 0;
+        for (int i = 1; i < count; i++) {
+            if (delays[i] < delays[quickest]) {
+                quickest = i;
+            }
+        }
+        long limit = 2 * delays[quickest] + DELAY_MARGIN;
+
+        // Means first, relative to the quickest exchange so the sums stay small
+        long base = times[quickest];
+        long baseOffset = offsets[quickest];
+        int used = 0;
+        double meanTime = 0;
+        double meanOffset = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (delays[i] <= limit) {
+                used++;
+                meanTime += times[i] - base;
+                meanOffset += offsets[i] - baseOffset;
+                first = Math.min(first, times[i] - base);
+                last = Math.max(last, times[i] - base);
+            }
+        }
+        meanTime /= used;
+        meanOffset /= used;
+
+        if (used < MIN_FIT_SAMPLES || last - first < MIN_FIT_SPAN) {
+            return new Estimate(base, baseOffset, 0, delays[quickest], count);
+        }
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            if (delays[i] <= limit) {
+                double dt = times[i] - base - meanTime;
+                covariance += dt * (offsets[i] - baseOffset - meanOffset);
+                variance += dt * dt;
+            }
+        }
+
+        long reference = base + Math.round(meanTime);
+        long offset = baseOffset + Math.round(meanOffset);
+        return new Estimate(reference, offset, covariance / variance, delays[quickest], count);
+    }
+}
@@ -0,0 +1,283 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+/**
+ * Heartbeat and deadman switch for drive commands. Holds the current drive power and re-sends it
+ * to the drive board at a fixed rate from its own high priority thread, so a stalled UI can't
+ * leave the board without commands. Each beat it also checks the link: if nothing has been heard
+ * from the drive board for too long, or pings come back too slowly or too rarely, it sends a stop
+ * and tells the listener. Traffic from other boards doesn't count, as it says nothing about
+ * whether the drive board is there. Drive powers set while the link is down are held back, and
+ * the latest is sent once the link is back within budget.
+ */
+public class DriveWatchdog {
+
+    /**
+     * Told when the link goes out of budget and when it comes back. Called on the watchdog
+     * thread, so post to the UI rather than touching views.
+     */
+    public interface Listener {
+
+        void onLinkLost(Reason reason);
+
+        void onLinkRestored();
+    }
+
+    /**
+     * Which budget the link went over
+     */
+    public enum Reason {
+        SILENCE, LATENCY, LOSS
+    }
+
+    // Defaults: beats per second, and how bad the link may get before stopping
+    private final static int DEFAULT_RATE = 10;
+    private final static long DEFAULT_SILENCE = TimeUnit.MILLISECONDS.toNanos(750);
+    private final static long DEFAULT_LATENCY = TimeUnit.MILLISECONDS.toNanos(300);
+    private final static double DEFAULT_LOSS = 0.25;
+
+    // Ping replies needed before latency and loss are trusted
+    private final static int MIN_SAMPLES = 10;
+
+    private final RoveComm roveComm;
+    private final RoveNode board;
+    private final Listener listener;
+
+    private volatile long period = TimeUnit.SECONDS.toNanos(1) / DEFAULT_RATE;
+    private volatile long silenceBudget = DEFAULT_SILENCE;
+    private volatile long latencyBudget = DEFAULT_LATENCY;
+    private volatile double lossBudget = DEFAULT_LOSS;
+
+    // Left and right power packed into one value, so the two are always read as a pair
+    private volatile long drive;
+    private volatile Reason tripped;
+    private volatile long stopCount;
+
+    // Encodes every drive power sent, and is held from deciding what to send until it is sent,
+    // so a drive power can't land after the stop that should have replaced it
+    private final DrivePower drivePower = new DrivePower();
+    // Set by stop(), after which drive powers are held until start(). Guarded by drivePower.
+    private boolean stopped;
+
+    // Only the watchdog thread touches this
+    private long startTime;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructor for a watchdog. Nothing is sent until start() is called.
+     * @param roveComm Rovecomm instance to send through and watch
+     * @param board Drive board the commands go to
+     * @param listener Told when the link is lost and restored, or null
+     */
+    public DriveWatchdog(RoveComm roveComm, RoveNode board, Listener listener) {
+        this.roveComm = roveComm;
+        this.board = board;
+        this.listener = listener;
+    }
+
+    /**
+     * @param rate Heartbeats per second
+     */
+    public void setRate(int rate) {
+
+        if (rate < 1) {
+            throw new IllegalArgumentException("Rate must be at least 1 per second");
+        }
+        period = TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    /**
+     * Sets how bad the link may get before the rover is stopped. Latency and loss cover the link
+     * monitor's window, so once over budget they take a window or so to come back.
+     * @param silence Longest time with no ping reply or other packet from the drive board
+     * @param latency Highest 95th percentile round trip
+     * @param unit Unit of silence and latency
+     * @param loss Highest fraction of pings lost, from 0 to 1
+     */
+    public void setBudget(long silence, long latency, TimeUnit unit, double loss) {
+        silenceBudget = unit.toNanos(silence);
+        latencyBudget = unit.toNanos(latency);
+        lossBudget = loss;
+    }
+
+    /**
+     * Sets the drive power and sends it straight away, unless the link is down or the watchdog
+     * has been stopped
+     * @param left power, -1000 <-> 1000
+     * @param right power, -1000 <-> 1000
+     */
+    public void setDrive(int left, int right) {
+
+        synchronized (drivePower) {
+            drive = ((long) left << 32) | (right & 0xFFFFFFFFL);
+            if (tripped == null && !stopped) {
+                roveComm.sendData(drivePower.set(left, right), board);
+            }
+        }
+    }
+
+    /**
+     * Starts the heartbeat, and pings the board so its link can be watched
+     */
+    public synchronized void start() {
+
+        if (thread == null) {
+            synchronized (drivePower) {
+                stopped = false;
+            }
+            roveComm.monitorLink(board);
+            running = true;
+            thread = new Thread(new WatchdogRunnable(), "RoveComm-watchdog");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the heartbeat, then sends a stop. Waits for a beat already under way to finish, as
+     * drive powers are latest-wins and a beat landing after the stop would replace it with
+     * nothing following to put it right.
+     */
+    public synchronized void stop() {
+
+        drive = 0;
+        if (thread != null) {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Still send the stop, and leave the interrupt for the caller
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        synchronized (drivePower) {
+            stopped = true;
+            roveComm.sendData(drivePower.set(0, 0), board);
+        }
+    }
+
+    public RoveNode getBoard() {
+        return board;
+    }
+
+    /**
+     * @return Budget the link is over, or null while it is healthy
+     */
+    public Reason getTripped() {
+        return tripped;
+    }
+
+    /**
+     * @return Number of times the link went out of budget and the rover was stopped
+     */
+    public long getStopCount() {
+        return stopCount;
+    }
+
+    /**
+     * Checks the link and sends a heartbeat. Only run on the watchdog thread, or by tests.
+     * @param now Current time, in System.nanoTime() terms
+     * @param link Ping stats and latest packets for the board, or null if there are none
+     */
+    void beat(long now, LinkMonitor.LinkSnapshot link) {
+
+        Reason reason = check(now, link);
+        Reason previous;
+
+        synchronized (drivePower) {
+            previous = tripped;
+            tripped = reason;
+
+            // While tripped the board keeps hearing stops, in case the link comes back part way
+            long current = (reason == null) ? drive : 0;
+            roveComm.sendData(drivePower.set((int) (current >> 32), (int) current), board);
+        }
+
+        if (reason != null && previous == null) {
+            stopCount++;
+            if (listener != null) {
+                listener.onLinkLost(reason);
+            }
+        } else if (reason == null && previous != null && listener != null) {
+            listener.onLinkRestored();
+        }
+    }
+
+    /**
+     * Starts watching afresh, with silence counted from now. Only run on the watchdog thread, or
+     * by tests.
+     * @param now Current time, in System.nanoTime() terms
+     */
+    void begin(long now) {
+        startTime = now;
+        tripped = null;
+    }
+
+    /**
+     * @return Budget the link is over, or null if it is within all of them
+     */
+    private Reason check(long now, LinkMonitor.LinkSnapshot link) {
+
+        // Silence counts from start, so a board that never answers still trips
+        long heard = startTime;
+        if (link != null) {
+            heard = latest(heard, link.getLastReceived());
+            heard = latest(heard, link.getLastReply());
+        }
+        if (now - heard > silenceBudget) {
+            return Reason.SILENCE;
+        }
+
+        if (link != null && link.getSamples() >= MIN_SAMPLES) {
+            if (link.getP95() > latencyBudget) {
+                return Reason.LATENCY;
+            }
+            if (link.getLossRate() > lossBudget) {
+                return Reason.LOSS;
+            }
+        }
+        return null;
+    }
+
+    private static long latest(long heard, long time) {
+        return (time != LinkMonitor.NO_REPLY && time - heard > 0) ? time : heard;
+    }
+
+    /**
+     * Runnable beating each period until stop()
+     */
+    private class WatchdogRunnable implements Runnable {
+
+        @Override
+        public void run() {
+
+            long next = System.nanoTime();
+            begin(next);
+
+            try {
+                while (running) {
+
+                    long now = System.nanoTime();
+                    beat(now, roveComm.getLinkSnapshot(board));
+
+                    // Keep to the schedule rather than drifting by however long a beat took
+                    next += period;
+                    if (next - now < 0) {
+                        next = now + period;
+                    }
+                    TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts to end the thread
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table of handlers subscribed to particular DataIDs or ranges of them. Lookups happen on the
+ * receive thread for every packet, so they read an immutable int-keyed hash table without locks or
+ * boxing. Registering, which is rare, rebuilds the table and swaps it in.
+ *
+ * Each handler is run on the executor it was registered with, so a slow one (a UI update, a log
+ * write) only holds up its own DataIDs instead of the receive loop.
+ */
+public class HandlerRegistry {
+
+    /**
+     * Runs handlers right on the receive thread. Only for handlers that are fast.
+     */
+    public static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // Most packets a worker holds before dropping its oldest
+    private static final int WORKER_QUEUE_SIZE = 256;
+
+    // Every registration, guarded by this. The table is rebuilt from it.
+    private final ArrayList<Registration> registrations = new ArrayList<>();
+    private volatile Table table = new Table(registrations);
+
+    /**
+     * Creates a dedicated thread to run handlers on. If handlers fall behind, the oldest waiting
+     * packets are dropped rather than letting the backlog grow without bound.
+     * @param name Name of the thread
+     * @return Executor to register handlers with
+     */
+    public static Executor newWorker(final String name) {
+
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Subscribes a handler to a DataID, run inline with a view of the receive buffer. Replaces any
+     * handler already registered for the DataID.
+     * @param dataId DataID to handle
+     * @param handler Handler, which must not keep the view after returning
+     */
+    public void register(int dataId, RoveComm.OnReceivePacket handler) {
+        add(new PacketRegistration(dataId, dataId, handler));
+    }
+
+    /**
+     * Subscribes a handler to a DataID, run on the given executor with its own copy of the data.
+     * Replaces any handler already registered for the DataID.
+     * @param dataId DataID to handle
+     * @param handler Handler for the data
+     * @param executor INLINE, a worker from newWorker(), or something like a main thread executor
+     */
+    public void register(int dataId, RoveComm.OnReceiveData handler, Executor executor) {
+        add(new DataRegistration(dataId, dataId, handler, executor));
+    }
+
+    /**
+     * Subscribes a handler to an inclusive range of DataIDs, run inline with a view of the receive
+     * buffer. DataIDs registered on their own take precedence over ranges.
+     * @param first Lowest DataID to handle
+     * @param last Highest DataID to handle
+     * @param handler Handler, which must not keep the view after returning
+     */
+    public void registerRange(int first, int last, RoveComm.OnReceivePacket handler) {
+        add(new PacketRegistration(first, last, handler));
+    }
+
+    /**
+     * Subscribes a handler to an inclusive range of DataIDs, run on the given executor with its
+     * own copy of the data. DataIDs registered on their own take precedence over ranges.
+     * @param first Lowest DataID to handle
+     * @param last Highest DataID to handle
+     * @param handler Handler for the data
+     * @param executor INLINE, a worker from newWorker(), or something like a main thread executor
+     */
+    public void registerRange(int first, int last, RoveComm.OnReceiveData handler,
+                              Executor executor) {
+        add(new DataRegistration(first, last, handler, executor));
+    }
+
+    /**
+     * Removes every DataID and range a handler was registered for
+     * @param handler Handler passed to register() or registerRange()
+     */
+    public synchronized void unregister(Object handler) {
+
+        for (int i = registrations.size() - 1; i >= 0; i--) {
+            if (registrations.get(i).handler() == handler) {
+                registrations.remove(i);
+            }
+        }
+        table = new Table(registrations);
+    }
+
+    /**
+     * Hands a packet to its handler, if there is one
+     * @param view Decoded packet, valid until this returns
+     * @return False if no handler is registered for the packet's DataID
+     */
+    boolean dispatch(PacketView view) {
+
+        Registration registration = table.find(view.getDataId());
+        if (registration == null) {
+            return false;
+        }
+
+        registration.dispatch(view);
+        return true;
+    }
+
+    private synchronized void add(Registration registration) {
+
+        if (registration.first > registration.last) {
+            throw new IllegalArgumentException("Range is empty");
+        }
+
+        // A new registration for exactly the same DataIDs replaces the old one
+        for (int i = registrations.size() - 1; i >= 0; i--) {
+            Registration existing = registrations.get(i);
+            if (existing.first == registration.first && existing.last == registration.last) {
+                registrations.remove(i);
+            }
+        }
+
+        registrations.add(registration);
+        table = new Table(registrations);
+    }
+
+    /**
+     * Immutable lookup table. Single DataIDs live in an open addressing hash table keyed by int,
+     * ranges are checked in registration order after that misses.
+     */
+    private static class Table {
+
+        private static final int EMPTY = -1;
+
+        private final int[] keys;
+        private final Registration[] values;
+        private final int mask;
+
+        private final int[] rangeFirst;
+        private final int[] rangeLast;
+        private final Registration[] rangeValues;
+
+        Table(ArrayList<Registration> registrations) {
+
+            int singles = 0;
+            for (Registration registration : registrations) {
+                if (registration.first == registration.last) singles++;
+            }
+
+            // Keep the table at most half full so probes stay short
+            int size = 2;
+            while (size < singles * 2) {
+                size <<= 1;
+            }
+
+            keys = new int[size];
+            values = new Registration[size];
+            mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                keys[i] = EMPTY;
+            }
+
+            rangeFirst = new int[registrations.size() - singles];
+            rangeLast = new int[rangeFirst.length];
+            rangeValues = new Registration[rangeFirst.length];
+
+            int range = 0;
+            for (Registration registration : registrations) {
+
+                if (registration.first == registration.last) {
+                    int slot = hash(registration.first) & mask;
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = registration.first;
+                    values[slot] = registration;
+                } else {
+                    rangeFirst[range] = registration.first;
+                    rangeLast[range] = registration.last;
+                    rangeValues[range] = registration;
+                    range++;
+                }
+            }
+        }
+
+        Registration find(int dataId) {
+
+            int slot = hash(dataId) & mask;
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == dataId) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            for (int i = 0; i < rangeFirst.length; i++) {
+                if (dataId >= rangeFirst[i] && dataId <= rangeLast[i]) {
+                    return rangeValues[i];
+                }
+            }
+            return null;
+        }
+
+        private static int hash(int dataId) {
+            // DataIDs are often sequential, spread them out
+            int h = dataId * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * One handler and the DataIDs it covers
+     */
+    private abstract static class Registration {
+
+        final int first;
+        final int last;
+
+        Registration(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        abstract Object handler();
+
+        abstract void dispatch(PacketView view);
+    }
+
+    private static class PacketRegistration extends Registration {
+
+        private final RoveComm.OnReceivePacket handler;
+
+        PacketRegistration(int first, int last, RoveComm.OnReceivePacket handler) {
+            super(first, last);
+            this.handler = handler;
+        }
+
+        @Override
+        Object handler() {
+            return handler;
+        }
+
+        @Override
+        void dispatch(PacketView view) {
+            handler.receivePacket(view);
+        }
+    }
+
+    private static class DataRegistration extends Registration {
+
+        private final RoveComm.OnReceiveData handler;
+        private final Executor executor;
+
+        DataRegistration(int first, int last, RoveComm.OnReceiveData handler, Executor executor) {
+            super(first, last);
+            this.handler = handler;
+            this.executor = executor;
+        }
+
+        @Override
+        Object handler() {
+            return handler;
+        }
+
+        @Override
+        void dispatch(PacketView view) {
+
+            final int dataId = view.getDataId();
+            final byte[] data = view.copyData();
+
+            if (executor == INLINE) {
+                handler.receiveData(dataId, data);
+                return;
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handler.receiveData(dataId, data);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds. Buckets are log-linear: every power of two is
+ * split into 16 equal buckets, so any recorded value is reported to within about 6%. Recording is
+ * one atomic increment and never allocates, so it is safe on the receive thread.
+ */
+public class LatencyHistogram {
+
+    // Sub-buckets per power of two, as a shift
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Values at or above 2^MAX_EXPONENT microseconds (about 35 minutes) land in the last bucket
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Adds a value
+     * @param micros Latency in microseconds. Negative values count as 0.
+     */
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(micros));
+    }
+
+    /**
+     * Clears every bucket. Values recorded at the same time may or may not survive.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Adds this histogram's counts into an array, so several can be combined into one snapshot
+     * @param snapshot Array from newSnapshot()
+     */
+    public void addTo(long[] snapshot) {
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * @return Array sized for addTo()
+     */
+    public static long[] newSnapshot() {
+        return new long[BUCKETS];
+    }
+
+    /**
+     * @return Total number of values in a snapshot
+     */
+    public static long count(long[] snapshot) {
+
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Finds a percentile in a snapshot
+     * @param snapshot Array filled by addTo()
+     * @param percentile Between 0 and 100
+     * @return Upper bound of the bucket holding the percentile in microseconds, or 0 if empty
+     */
+    public static long percentile(long[] snapshot, double percentile) {
+
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+
+        // Rank of the value we want, counting from 1
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return Percentile of the values recorded so far, as with percentile(long[], double)
+     */
+    public long percentile(double percentile) {
+
+        long[] snapshot = newSnapshot();
+        addTo(snapshot);
+        return percentile(snapshot, percentile);
+    }
+
+    static int indexOf(long micros) {
+
+        if (micros < SUB_COUNT) {
+            return (micros < 0) ? 0 : (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBoundOf(int index) {
+
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,387 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Continuously pings nodes and keeps rolling round trip percentiles, jitter and loss for each. Stats
+ * cover the last one to two windows: every window the older half is cleared and becomes current.
+ *
+ * Ping data is a probe number and the send time, which the node echoes back in its PING_REPLY, so
+ * nothing has to be remembered per probe. Nodes are told apart by address and port, so boards
+ * sharing an ip on different ports are watched separately.
+ */
+public class LinkMonitor {
+
+    /**
+     * Where pings go out, normally rovecomm's send queue
+     */
+    public interface Output {
+
+        void sendPing(byte[] data, InetSocketAddress address);
+    }
+
+    // Bytes in a probe: probe number then System.nanoTime() when sent
+    final static int PROBE_SIZE = 12;
+
+    // Last reply time of a node that hasn't replied yet
+    public final static long NO_REPLY = Long.MIN_VALUE;
+
+    // Fastest pings per second to each node
+    private final static int MAX_RATE = 1000;
+
+    // Default rolling window
+    private final static long DEFAULT_WINDOW = TimeUnit.SECONDS.toNanos(10);
+
+    private final Output output;
+    private final long window;
+    private final Map<InetSocketAddress, LinkStats> links = new ConcurrentHashMap<>();
+
+    // The same stats as an array, replaced rather than modified, for the receive path to walk
+    private volatile LinkStats[] watched = new LinkStats[0];
+
+    private Thread thread;
+    private volatile int rate;
+
+    // Only used by the probe thread. Safe to reuse as the send queue copies it.
+    private final byte[] probeData = new byte[PROBE_SIZE];
+
+    /**
+     * Constructor for a link monitor. Nothing is pinged until start() is called.
+     * @param output Where pings are sent
+     */
+    public LinkMonitor(Output output) {
+        this(output, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor for a link monitor
+     * @param output Where pings are sent
+     * @param window Nanoseconds of history each half of the stats covers
+     */
+    public LinkMonitor(Output output, long window) {
+        this.output = output;
+        this.window = window;
+    }
+
+    /**
+     * Method to start watching a node
+     * @param address Address of node
+     */
+    public synchronized void addNode(InetSocketAddress address) {
+
+        if (!links.containsKey(address)) {
+            links.put(address, new LinkStats(address, System.nanoTime()));
+            watched = links.values().toArray(new LinkStats[0]);
+        }
+    }
+
+    /**
+     * Method to stop watching a node
+     * @param address Address of node
+     */
+    public synchronized void removeNode(InetSocketAddress address) {
+
+        if (links.remove(address) != null) {
+            watched = links.values().toArray(new LinkStats[0]);
+        }
+    }
+
+    /**
+     * Starts pinging every node on a background thread
+     * @param rate Pings per second sent to each node, from 1 to 1000
+     */
+    public synchronized void start(int rate) {
+
+        if (rate < 1 || rate > MAX_RATE) {
+            throw new IllegalArgumentException("Rate must be 1 to " + MAX_RATE + " per second");
+        }
+        this.rate = rate;
+
+        if (thread == null) {
+            thread = new Thread(new ProbeRunnable(), "RoveComm-ping");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops pinging. Stats collected so far are kept.
+     */
+    public synchronized void stop() {
+
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Called when a PING_REPLY arrives
+     * @param address Address of the node that replied
+     * @param data The reply's data, our probe echoed back
+     * @param now Current time, in System.nanoTime() terms
+     */
+    public void onPingReply(InetSocketAddress address, ByteBuffer data, long now) {
+
+        LinkStats stats = links.get(address);
+        if (stats == null || data.remaining() < PROBE_SIZE) {
+            return;
+        }
+
+        long sent = data.getLong(data.position() + 4);
+        stats.addReply(now - sent, now);
+    }
+
+    /**
+     * Called when any packet arrives, so a node's own traffic shows it is alive between pings.
+     * Doesn't allocate, as it runs for every packet received.
+     * @param address Address the packet came from
+     * @param port Port the packet came from
+     * @param now Current time, in System.nanoTime() terms
+     */
+    public void onReceived(InetAddress address, int port, long now) {
+
+        LinkStats[] current = watched;
+        for (int i = 0; i < current.length; i++) {
+            InetSocketAddress node = current[i].address;
+            if (node.getPort() == port && address.equals(node.getAddress())) {
+                current[i].lastReceived = now;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param address Address of node
+     * @return Current stats for the node, or null if it isn't being watched
+     */
+    public LinkSnapshot getSnapshot(InetSocketAddress address) {
+
+        LinkStats stats = links.get(address);
+        return (stats == null) ? null : stats.snapshot();
+    }
+
+    /**
+     * Sends one round of pings and rolls stats over when their window is up
+     * @param probe Probe number to send
+     * @param now Current time, in System.nanoTime() terms
+     */
+    void probe(int probe, long now) {
+
+        for (Map.Entry<InetSocketAddress, LinkStats> link : links.entrySet()) {
+
+            LinkStats stats = link.getValue();
+            if (now - stats.windowStart >= window) {
+                stats.roll(now);
+            }
+
+            putInt(probeData, 0, probe);
+            putLong(probeData, 4, now);
+            stats.sent.incrementAndGet();
+            output.sendPing(probeData, link.getKey());
+        }
+    }
+
+    private static void putInt(byte[] array, int index, int value) {
+        for (int i = 3; i >= 0; i--) {
+            array[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putLong(byte[] array, int index, long value) {
+        for (int i = 7; i >= 0; i--) {
+            array[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Runnable sending a round of pings each period
+     */
+    private class ProbeRunnable implements Runnable {
+
+        @Override
+        public void run() {
+
+            int probe = 0;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    probe(probe++, System.nanoTime());
+                    TimeUnit.NANOSECONDS.sleep(TimeUnit.SECONDS.toNanos(1) / rate);
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts to end the thread
+            }
+        }
+    }
+
+    /**
+     * Stats for one node. Written by the receive thread and the probe thread without locking.
+     */
+    private static class LinkStats {
+
+        private final InetSocketAddress address;
+
+        // Current and previous windows; the probe thread swaps them
+        private volatile Window current = new Window();
+        private volatile Window previous = new Window();
+        private volatile long windowStart;
+
+        private final AtomicLong sent = new AtomicLong();
+
+        // Smoothed difference between consecutive round trips (RFC 3550), and the last round trip.
+        // Only the receive thread writes these.
+        private volatile long jitter;
+        private volatile long lastRtt = -1;
+        private volatile long lastReply = NO_REPLY;
+
+        // Latest packet of any kind from the node, written by the receive thread
+        private volatile long lastReceived = NO_REPLY;
+
+        LinkStats(InetSocketAddress address, long now) {
+            this.address = address;
+            windowStart = now;
+        }
+
+        void addReply(long rtt, long now) {
+
+            current.rtts.record(TimeUnit.NANOSECONDS.toMicros(rtt));
+            current.received.incrementAndGet();
+
+            if (lastRtt >= 0) {
+                jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+            }
+            lastRtt = rtt;
+            lastReply = now;
+        }
+
+        void roll(long now) {
+
+            Window old = previous;
+            old.reset();
+            previous = current;
+            current = old;
+
+            // Probes sent so far belong to the window just finished
+            previous.sent = sent.getAndSet(0);
+            windowStart = now;
+        }
+
+        LinkSnapshot snapshot() {
+
+            Window older = previous;
+            Window newer = current;
+
+            long[] rtts = LatencyHistogram.newSnapshot();
+            older.rtts.addTo(rtts);
+            newer.rtts.addTo(rtts);
+
+            long sentCount = older.sent + sent.get();
+            long receivedCount = older.received.get() + newer.received.get();
+            double loss = (sentCount == 0) ? 0 : Math.max(0, 1 - (double) receivedCount / sentCount);
+
+            return new LinkSnapshot(
+                    TimeUnit.MICROSECONDS.toNanos(LatencyHistogram.percentile(rtts, 50)),
+                    TimeUnit.MICROSECONDS.toNanos(LatencyHistogram.percentile(rtts, 95)),
+                    TimeUnit.MICROSECONDS.toNanos(LatencyHistogram.percentile(rtts, 99)),
+                    jitter, loss, LatencyHistogram.count(rtts), lastReply, lastReceived);
+        }
+    }
+
+    /**
+     * One window's worth of replies
+     */
+    private static class Window {
+
+        final LatencyHistogram rtts = new LatencyHistogram();
+        final AtomicLong received = new AtomicLong();
+        volatile long sent;
+
+        void reset() {
+            rtts.reset();
+            received.set(0);
+            sent = 0;
+        }
+    }
+
+    /**
+     * Immutable stats for one node at a point in time. Times are in nanoseconds.
+     */
+    public static class LinkSnapshot {
+
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long jitter;
+        private final double lossRate;
+        private final long samples;
+        private final long lastReply;
+        private final long lastReceived;
+
+        LinkSnapshot(long p50, long p95, long p99, long jitter, double lossRate, long samples,
+                     long lastReply, long lastReceived) {
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.jitter = jitter;
+            this.lossRate = lossRate;
+            this.samples = samples;
+            this.lastReply = lastReply;
+            this.lastReceived = lastReceived;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getJitter() {
+            return jitter;
+        }
+
+        /**
+         * @return Fraction of pings without a reply, from 0 to 1. Pings still in flight count as
+         * lost until their reply arrives.
+         */
+        public double getLossRate() {
+            return lossRate;
+        }
+
+        /**
+         * @return Number of replies the percentiles are based on
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return When the latest reply arrived, in System.nanoTime() terms, or NO_REPLY if none
+         * has since the node was added
+         */
+        public long getLastReply() {
+            return lastReply;
+        }
+
+        /**
+         * @return When the latest packet of any kind arrived from the node, ping replies
+         * included, in System.nanoTime() terms, or NO_REPLY if none has since the node was added
+         */
+        public long getLastReceived() {
+            return lastReceived;
+        }
+    }
+}
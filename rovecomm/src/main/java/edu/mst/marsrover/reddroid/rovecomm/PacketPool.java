@@ -0,0 +1,83 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of receive buffers, each wrapped in the PacketView used to hand it to listeners. Buffers are
+ * recycled instead of allocating a new array for every datagram received.
+ */
+public class PacketPool {
+
+    private final PacketView[] free;
+    private final int bufferSize;
+    private final boolean direct;
+
+    // Number of free views on the stack, guarded by this
+    private int count;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor for a pool of receive buffers
+     * @param size Number of buffers kept in the pool
+     * @param bufferSize Size of each buffer, the largest packet that can be received into it
+     * @param direct Whether buffers are allocated outside the java heap, for NIO channels
+     */
+    public PacketPool(int size, int bufferSize, boolean direct) {
+
+        this.free = new PacketView[size];
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+
+        for (int i = 0; i < size; i++) {
+            free[i] = newView();
+        }
+        count = size;
+    }
+
+    /**
+     * Takes a buffer out of the pool. If the pool is empty a new one is allocated.
+     * @return Empty view ready to be received into
+     */
+    public PacketView acquire() {
+
+        synchronized (this) {
+            if (count > 0) {
+                PacketView view = free[--count];
+                free[count] = null;
+                return view;
+            }
+        }
+
+        misses.incrementAndGet();
+        return newView();
+    }
+
+    /**
+     * Returns a buffer to the pool. The view must not be used afterwards.
+     * @param view View from acquire()
+     */
+    public void release(PacketView view) {
+
+        view.reset();
+        synchronized (this) {
+            // Extra views allocated while the pool was empty are left for the GC
+            if (count < free.length) {
+                free[count++] = view;
+            }
+        }
+    }
+
+    /**
+     * @return Number of times the pool was empty and a buffer had to be allocated
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private PacketView newView() {
+        return new PacketView(direct ? ByteBuffer.allocateDirect(bufferSize)
+                : ByteBuffer.allocate(bufferSize));
+    }
+}
@@ -0,0 +1,172 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoded packet that reads its data straight out of the receive buffer instead of copying it.
+ * A view handed to a listener is only valid for the duration of the callback, as the buffer is
+ * reused for the next packet right after. Listeners that keep data need copyData().
+ */
+public class PacketView {
+
+    // Timestamp of a packet sent without one
+    public final static long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Whole packet as received, header included
+    private final ByteBuffer buffer;
+    // Read only window over the data part of buffer
+    private final ByteBuffer data;
+
+    private int dataId;
+    private int seqNum;
+    private boolean requiresAck;
+    private int dataOffset;
+    private int dataLength;
+    private boolean batch;
+    private long timestamp = NO_TIMESTAMP;
+
+    // Node the packet came from
+    private InetAddress sourceAddress;
+    private int sourcePort;
+
+    PacketView(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.data = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Buffer the packet is received into. Position and limit mark the received bytes.
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Called by RoveProtocol once the header has been read
+     */
+    void set(int dataId, int seqNum, boolean requiresAck, int dataOffset, int dataLength) {
+        set(dataId, seqNum, requiresAck, dataOffset, dataLength, false);
+    }
+
+    /**
+     * Called by RoveProtocol once the header has been read
+     * @param batch True if the data is a batch of whole packets rather than one DataID's data
+     */
+    void set(int dataId, int seqNum, boolean requiresAck, int dataOffset, int dataLength,
+             boolean batch) {
+
+        this.batch = batch;
+        this.dataId = dataId;
+        this.seqNum = seqNum;
+        this.requiresAck = requiresAck;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Called by RoveProtocol once the header has been read
+     * @param timestamp Sender's clock from the timestamped header, or NO_TIMESTAMP
+     */
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Called by the transport once the packet has been received
+     */
+    void setSource(InetAddress address, int port) {
+        this.sourceAddress = address;
+        this.sourcePort = port;
+    }
+
+    /**
+     * @return Index in the buffer of the first data byte
+     */
+    int getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return True if the data holds several packets, which rovecomm hands out one at a time
+     */
+    boolean isBatch() {
+        return batch;
+    }
+
+    void reset() {
+        buffer.clear();
+        set(0, 0, false, 0, 0);
+        setTimestamp(NO_TIMESTAMP);
+        setSource(null, 0);
+    }
+
+    public int getDataId() {
+        return dataId;
+    }
+
+    public int getSeqNum() {
+        return seqNum;
+    }
+
+    public boolean isRequiresAck() {
+        return requiresAck;
+    }
+
+    public InetAddress getSourceAddress() {
+        return sourceAddress;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    /**
+     * @return Read only buffer over the packet's data, from position to limit. Moving its position
+     * is allowed, but the bytes are only valid until the callback returns.
+     */
+    public ByteBuffer getData() {
+
+        data.limit(dataOffset + dataLength);
+        data.position(dataOffset);
+        return data;
+    }
+
+    /**
+     * @return True if the packet was sent with the timestamped header
+     */
+    public boolean hasTimestamp() {
+        return timestamp != NO_TIMESTAMP;
+    }
+
+    /**
+     * @return Sender's monotonic clock when it sent the packet, in microseconds, or NO_TIMESTAMP.
+     * RoveComm.toLocalTime() turns it into this node's System.nanoTime().
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return Copy of the packet's data, for listeners that keep it after the callback
+     */
+    public byte[] copyData() {
+
+        byte[] copy = new byte[dataLength];
+        for (int i = 0; i < dataLength; i++) {
+            copy[i] = buffer.get(dataOffset + i);
+        }
+        return copy;
+    }
+
+    /**
+     * @return Immutable copy of the whole packet, for listeners that keep it after the callback
+     */
+    public RoveProtocol.DataObject copy() {
+        return new RoveProtocol.DataObject(copyData(), dataId, seqNum, requiresAck);
+    }
+}
@@ -0,0 +1,477 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts payloads too big for one packet back together. Each chunk of a transfer is its own packet,
+ * with the chunk's index in the header's sequence number and a short fragment header at the front
+ * of its data naming the payload's DataID, the transfer and the payload's length.
+ *
+ * Payloads are assembled into buffers that are pooled and reused, and all of them together are
+ * kept within a memory budget. Transfers that stop arriving are thrown away after a timeout, and
+ * the oldest incomplete transfer makes way when a new one needs room. Chunks can also be handed
+ * out as they arrive, for consumers that would rather not wait for the whole payload.
+ *
+ * Only the thread delivering packets calls onFragment(), so none of this needs locking.
+ */
+public class Reassembler {
+
+    /**
+     * Interface for receiving each chunk as it arrives, which may not be in order
+     */
+    public interface OnReceiveChunk {
+
+        /**
+         * @param transfer Transfer the chunk belongs to, valid until this returns
+         * @param offset Index in the payload of the chunk's first byte
+         * @param chunk The chunk's bytes from position to limit, valid until this returns
+         */
+        void receiveChunk(Transfer transfer, int offset, ByteBuffer chunk);
+    }
+
+    /**
+     * Interface for receiving whole payloads once every chunk is in
+     */
+    public interface OnReceiveTransfer {
+
+        /**
+         * @param transfer Transfer that completed, valid until this returns
+         * @param payload The payload from position to limit. The buffer goes back to the pool
+         *                when this returns, so copy anything to keep.
+         */
+        void receiveTransfer(Transfer transfer, ByteBuffer payload);
+    }
+
+    // Fragment header: payload DataID, transfer id, then payload length
+    public final static int HEADER_SIZE = 8;
+
+    // Most chunks in one transfer, as the index is the 2 byte sequence number
+    public final static int MAX_CHUNKS = 1 << 16;
+
+    // Defaults for how much memory payloads may take and how long a transfer may stall
+    private final static long DEFAULT_MEMORY_BUDGET = 4 << 20;
+    private final static long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    // Most transfers assembled at once, and the smallest buffer kept in the pool
+    private final static int MAX_TRANSFERS = 16;
+    private final static int MIN_BUFFER_SIZE = 4096;
+
+    private final int chunkSize;
+    private volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile OnReceiveChunk onReceiveChunk;
+    private volatile OnReceiveTransfer onReceiveTransfer;
+
+    // Transfers under way, reused rather than created for each one
+    private final Transfer[] transfers = new Transfer[MAX_TRANSFERS];
+
+    // Payload buffers not in use, and the bytes held by every buffer in use or not
+    private final ArrayList<ByteBuffer> free = new ArrayList<>();
+    private volatile long allocated;
+
+    private volatile long completedCount;
+    private volatile long evictedCount;
+    private volatile long rejectedCount;
+
+    /**
+     * Constructor for a reassembler
+     * @param chunkSize Bytes of payload in every chunk but the last. Senders must use the same.
+     */
+    public Reassembler(int chunkSize) {
+
+        this.chunkSize = chunkSize;
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            transfers[i] = new Transfer();
+        }
+    }
+
+    /**
+     * Static method to write the fragment header at the front of a chunk's data
+     * @param chunk Array the chunk's data is built in
+     * @param dataId DataID of the whole payload
+     * @param transferId Number the sender gave this transfer
+     * @param length Length of the whole payload
+     */
+    public static void encodeHeader(byte[] chunk, int dataId, int transferId, int length) {
+
+        chunk[0] = (byte) (dataId >> 8);
+        chunk[1] = (byte) dataId;
+        chunk[2] = (byte) (transferId >> 8);
+        chunk[3] = (byte) transferId;
+        chunk[4] = (byte) (length >> 24);
+        chunk[5] = (byte) (length >> 16);
+        chunk[6] = (byte) (length >> 8);
+        chunk[7] = (byte) length;
+    }
+
+    /**
+     * @param memoryBudget Most bytes all payload buffers together may take. Payloads bigger than
+     *                     this are dropped.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @param timeout Longest a transfer may go without a new chunk before it is thrown away
+     * @param unit Unit of timeout
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param onReceiveChunk Listener for each chunk as it arrives, or null
+     */
+    public void setOnReceiveChunk(OnReceiveChunk onReceiveChunk) {
+        this.onReceiveChunk = onReceiveChunk;
+    }
+
+    /**
+     * Sets the listener for whole payloads. Without one, chunks are only handed out as they
+     * arrive and no memory is spent assembling them.
+     * @param onReceiveTransfer Listener for whole payloads, or null
+     */
+    public void setOnReceiveTransfer(OnReceiveTransfer onReceiveTransfer) {
+        this.onReceiveTransfer = onReceiveTransfer;
+    }
+
+    /**
+     * Takes in one chunk. Only run on the thread delivering packets.
+     * @param view Decoded chunk, valid until this returns
+     * @param now Current time, in System.nanoTime() terms
+     */
+    void onFragment(PacketView view, long now) {
+
+        expire(now);
+
+        int chunkLength = view.getDataLength() - HEADER_SIZE;
+        if (chunkLength < 0) {
+            rejectedCount++;
+            return;
+        }
+
+        ByteBuffer data = view.getData();
+        int start = data.position();
+        int dataId = data.getShort(start) & 0xFFFF;
+        int id = data.getShort(start + 2) & 0xFFFF;
+        int length = data.getInt(start + 4);
+        int index = view.getSeqNum();
+        int offset = index * chunkSize;
+
+        // Every chunk but the last is full, so a chunk of any other size is garbled
+        if (length <= 0 || offset >= length || chunkLength != Math.min(chunkSize, length - offset)
+                || chunkCount(length) > MAX_CHUNKS) {
+            rejectedCount++;
+            return;
+        }
+
+        Transfer transfer = find(view.getSourceAddress(), view.getSourcePort(), id);
+        if (transfer != null && (transfer.dataId != dataId || transfer.length != length)) {
+            // The sender's transfer ids wrapped round onto one that never finished
+            finish(transfer);
+            evictedCount++;
+            transfer = null;
+        }
+        if (transfer == null) {
+            transfer = begin(view.getSourceAddress(), view.getSourcePort(), id, dataId, length);
+            if (transfer == null) {
+                rejectedCount++;
+                return;
+            }
+        }
+
+        if (!transfer.mark(index)) {
+            // Duplicate
+            return;
+        }
+        transfer.received += chunkLength;
+        transfer.lastTime = now;
+
+        data.position(start + HEADER_SIZE);
+        if (transfer.payload != null) {
+            transfer.payload.position(offset);
+            transfer.payload.put(data);
+            data.position(start + HEADER_SIZE);
+        }
+
+        OnReceiveChunk chunkListener = onReceiveChunk;
+        if (chunkListener != null) {
+            chunkListener.receiveChunk(transfer, offset, data);
+        }
+
+        if (transfer.received == transfer.length) {
+
+            completedCount++;
+            OnReceiveTransfer transferListener = onReceiveTransfer;
+            if (transferListener != null && transfer.payload != null) {
+                transfer.payload.clear();
+                transfer.payload.limit(transfer.length);
+                transferListener.receiveTransfer(transfer, transfer.payload);
+            }
+            finish(transfer);
+        }
+    }
+
+    /**
+     * @return Number of transfers with every chunk received
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return Number of incomplete transfers thrown away, for timing out or to make room
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return Number of chunks dropped for being garbled or belonging to a payload too big for the
+     * memory budget
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return Bytes held in payload buffers, whether in use or waiting in the pool
+     */
+    public long getMemoryUsed() {
+        return allocated;
+    }
+
+    /**
+     * Throws away transfers that have stalled
+     */
+    private void expire(long now) {
+
+        long limit = timeout;
+        for (int i = 0; i < transfers.length; i++) {
+            Transfer transfer = transfers[i];
+            if (transfer.active && now - transfer.lastTime > limit) {
+                finish(transfer);
+                evictedCount++;
+            }
+        }
+    }
+
+    private Transfer find(InetAddress address, int port, int id) {
+
+        for (int i = 0; i < transfers.length; i++) {
+            Transfer transfer = transfers[i];
+            if (transfer.active && transfer.id == id && transfer.sourcePort == port
+                    && transfer.sourceAddress.equals(address)) {
+                return transfer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a transfer in a free slot, making room if needed
+     * @return The transfer, or null if its payload can't fit in the memory budget
+     */
+    private Transfer begin(InetAddress address, int port, int id, int dataId, int length) {
+
+        Transfer slot = null;
+        for (int i = 0; i < transfers.length; i++) {
+            if (!transfers[i].active) {
+                slot = transfers[i];
+                break;
+            }
+        }
+        if (slot == null) {
+            slot = oldest();
+            finish(slot);
+            evictedCount++;
+        }
+
+        ByteBuffer payload = null;
+        if (onReceiveTransfer != null) {
+            payload = acquire(length);
+            if (payload == null) {
+                return null;
+            }
+        }
+
+        slot.begin(address, port, id, dataId, length, chunkCount(length), payload);
+        return slot;
+    }
+
+    /**
+     * Ends a transfer, returning its buffer to the pool
+     */
+    private void finish(Transfer transfer) {
+
+        if (transfer.payload != null) {
+            transfer.payload.clear();
+            free.add(transfer.payload);
+            transfer.payload = null;
+        }
+        transfer.active = false;
+        transfer.sourceAddress = null;
+    }
+
+    /**
+     * @return Active transfer that has gone longest without a chunk, or null if none are active
+     */
+    private Transfer oldest() {
+
+        Transfer oldest = null;
+        for (int i = 0; i < transfers.length; i++) {
+            Transfer transfer = transfers[i];
+            if (transfer.active && (oldest == null || transfer.lastTime - oldest.lastTime < 0)) {
+                oldest = transfer;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none is big enough. To stay within the
+     * budget, pooled buffers are let go first and then the oldest incomplete transfers.
+     * @param length Bytes needed
+     * @return Empty buffer of at least length bytes, or null if length is over the budget
+     */
+    private ByteBuffer acquire(int length) {
+
+        int best = -1;
+        for (int i = 0; i < free.size(); i++) {
+            int capacity = free.get(i).capacity();
+            if (capacity >= length && (best < 0 || capacity < free.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            return free.remove(best);
+        }
+
+        // Round up so buffers can be reused by payloads of a similar size
+        int size = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(length - 1) << 1);
+        if (size < length) {
+            size = length;
+        }
+        long budget = memoryBudget;
+        if (size > budget) {
+            size = length;
+        }
+        if (size > budget) {
+            return null;
+        }
+
+        while (allocated + size > budget) {
+            if (!free.isEmpty()) {
+                allocated -= free.remove(free.size() - 1).capacity();
+            } else {
+                Transfer oldest = oldest();
+                if (oldest == null) {
+                    return null;
+                }
+                finish(oldest);
+                evictedCount++;
+            }
+        }
+
+        allocated += size;
+        return ByteBuffer.allocate(size);
+    }
+
+    private int chunkCount(int length) {
+        return (int) (((long) length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * One payload being put back together
+     */
+    public static class Transfer {
+
+        boolean active;
+        InetAddress sourceAddress;
+        int sourcePort;
+        int id;
+        int dataId;
+        int length;
+        int received;
+        long lastTime;
+        ByteBuffer payload;
+
+        // One bit per chunk, set once it has arrived. Kept between transfers and grown as needed.
+        private long[] chunks = new long[1];
+
+        void begin(InetAddress address, int port, int id, int dataId, int length, int count,
+                   ByteBuffer payload) {
+
+            this.active = true;
+            this.sourceAddress = address;
+            this.sourcePort = port;
+            this.id = id;
+            this.dataId = dataId;
+            this.length = length;
+            this.received = 0;
+            this.payload = payload;
+
+            int words = (count + 63) >>> 6;
+            if (chunks.length < words) {
+                chunks = new long[words];
+            } else {
+                for (int i = 0; i < words; i++) {
+                    chunks[i] = 0;
+                }
+            }
+        }
+
+        /**
+         * @return False if the chunk had already arrived
+         */
+        boolean mark(int index) {
+
+            long bit = 1L << (index & 63);
+            if ((chunks[index >>> 6] & bit) != 0) {
+                return false;
+            }
+            chunks[index >>> 6] |= bit;
+            return true;
+        }
+
+        /**
+         * @return DataID of the whole payload
+         */
+        public int getDataId() {
+            return dataId;
+        }
+
+        /**
+         * @return Number the sender gave this transfer, which wraps round after 65535
+         */
+        public int getId() {
+            return id;
+        }
+
+        public InetAddress getSourceAddress() {
+            return sourceAddress;
+        }
+
+        public int getSourcePort() {
+            return sourcePort;
+        }
+
+        /**
+         * @return Length of the whole payload
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return Bytes of the payload received so far
+         */
+        public int getReceived() {
+            return received;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+/**
+ * Packets received in one wake-up, handed to a listener together. Like a single PacketView, the
+ * batch and every view in it are reused as soon as the listener returns.
+ */
+public class ReceiveBatch {
+
+    private final PacketView[] views;
+    private int size;
+
+    /**
+     * Constructor for an empty batch
+     * @param capacity Most packets it can hold
+     */
+    ReceiveBatch(int capacity) {
+        views = new PacketView[capacity];
+    }
+
+    /**
+     * @return False if the batch is full
+     */
+    boolean add(PacketView view) {
+
+        if (size == views.length) {
+            return false;
+        }
+        views[size++] = view;
+        return true;
+    }
+
+    void clear() {
+
+        for (int i = 0; i < size; i++) {
+            views[i] = null;
+        }
+        size = 0;
+    }
+
+    boolean isFull() {
+        return size == views.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index From 0 to size() - 1, in the order the packets arrived
+     * @return Decoded packet, valid until the listener returns
+     */
+    public PacketView get(int index) {
+
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return views[index];
+    }
+}
@@ -0,0 +1,104 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands received datagrams from the thread draining the socket to the thread delivering them, so a
+ * slow listener never stops the socket being read. When the listener falls so far behind that the
+ * queue fills, new datagrams are dropped and counted.
+ */
+class ReceiveQueue {
+
+    private final PacketView[] views;
+    private int head;
+    private int count;
+    private boolean closed;
+    private long dropped;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    ReceiveQueue(int capacity) {
+        views = new PacketView[capacity];
+    }
+
+    /**
+     * @param view Received, not yet decoded, datagram
+     * @return False if the queue is full or closed. The caller still owns the view.
+     */
+    boolean offer(PacketView view) {
+
+        lock.lock();
+        try {
+
+            if (closed || count == views.length) {
+                dropped++;
+                return false;
+            }
+
+            views[(head + count) % views.length] = view;
+            count++;
+            notEmpty.signal();
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves every waiting datagram that fits into a batch, waiting until there is at least one
+     * @param batch Empty batch to fill
+     * @return False if the queue has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean drainTo(ReceiveBatch batch) throws InterruptedException {
+
+        lock.lock();
+        try {
+
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return false;
+            }
+
+            while (count > 0 && !batch.isFull()) {
+                batch.add(views[head]);
+                views[head] = null;
+                head = (head + 1) % views.length;
+                count--;
+            }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the queue. Datagrams still in it are left for the garbage collector.
+     */
+    void close() {
+
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedCount() {
+
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in reliable delivery on top of rovecomm's ACK flag and sequence numbers. Each destination
+ * gets its own sequence numbers and retransmit timeout, which adapts to the round trip times
+ * measured from its ACKs. Destinations are resolved addresses, ip and port, so a packet sent to a
+ * node by name and the ACK coming back from its address are matched up. Packets waiting on an ACK
+ * sit in a hashed timer wheel, so scheduling, acknowledging and expiring them are all constant
+ * time.
+ *
+ * Packets that don't ask for an ACK never touch this class. Times are passed in rather than read,
+ * which lets RoveComm drive it from System.nanoTime() and tests drive it from a fake clock.
+ */
+public class ReliableChannel {
+
+    /**
+     * Where packets go out, normally rovecomm's send queue
+     */
+    public interface Output {
+
+        void transmit(int id, byte[] data, int length, int seqNum, boolean requireAck,
+                      InetSocketAddress address);
+    }
+
+    /**
+     * Told how each reliable packet ended up
+     */
+    public interface DeliveryListener {
+
+        void delivered(int id, int seqNum, InetSocketAddress address);
+
+        void failed(int id, int seqNum, InetSocketAddress address);
+    }
+
+    // Most packets waiting on an ACK for one destination. Must be a power of two.
+    private final static int WINDOW = 256;
+
+    // Timer wheel granularity and size, a bit over 2.5 seconds per rotation
+    final static long TICK = TimeUnit.MILLISECONDS.toNanos(5);
+    private final static int WHEEL_SLOTS = 512;
+
+    // Retransmit timeout bounds
+    private final static long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    private final static long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+    private final static long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+
+    // Sends attempted after the first before giving up
+    private final static int DEFAULT_MAX_RETRIES = 8;
+
+    private final Output output;
+    private final int maxRetries;
+    private volatile DeliveryListener listener;
+
+    // Everything below is guarded by this
+    private final HashMap<InetSocketAddress, Peer> peers = new HashMap<>();
+    private final InFlight[] wheel = new InFlight[WHEEL_SLOTS];
+    private long currentTick = Long.MIN_VALUE;
+    private int inFlightCount = 0;
+
+    // Work found by advance(), carried out once the lock is released. Only used by advance().
+    private final ArrayList<InFlight> retransmits = new ArrayList<>();
+    private final ArrayList<InFlight> failures = new ArrayList<>();
+
+    /**
+     * Constructor for a reliable channel
+     * @param output Where packets, retransmits and ACKs are sent
+     */
+    public ReliableChannel(Output output) {
+        this(output, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Constructor for a reliable channel
+     * @param output Where packets, retransmits and ACKs are sent
+     * @param maxRetries Retransmits attempted before a packet is reported as failed
+     */
+    public ReliableChannel(Output output, int maxRetries) {
+        this.output = output;
+        this.maxRetries = maxRetries;
+    }
+
+    public void setDeliveryListener(DeliveryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends a packet and keeps retransmitting it until it is acknowledged
+     * @param id DataID for the data
+     * @param contents Data byte[], copied so the caller may reuse it. May be null.
+     * @param address Address of node
+     * @param now Current time, in System.nanoTime() terms
+     * @return Sequence number of the packet, or -1 if too many are already waiting on an ACK
+     */
+    public int send(int id, byte[] contents, InetSocketAddress address, long now) {
+
+        int length = (contents == null) ? 0 : contents.length;
+        InFlight packet;
+
+        synchronized (this) {
+
+            Peer peer = peer(address);
+            if (peer.nextSeqNum == 0) {
+                peer.nextSeqNum = initialSeqNum(now);
+            }
+            int seqNum = peer.nextSeqNum;
+            if (peer.window[seqNum & (WINDOW - 1)] != null) {
+                return -1;
+            }
+            peer.nextSeqNum = (seqNum == 0xFFFF) ? 1 : seqNum + 1;
+
+            packet = new InFlight(peer, id, seqNum, new byte[length], length);
+            if (length > 0) {
+                System.arraycopy(contents, 0, packet.data, 0, length);
+            }
+            packet.firstSent = now;
+            peer.window[seqNum & (WINDOW - 1)] = packet;
+            schedule(packet, now + peer.rto);
+            if (inFlightCount++ == 0) {
+                notifyAll();
+            }
+        }
+
+        output.transmit(id, packet.data, length, packet.seqNum, true, address);
+        return packet.seqNum;
+    }
+
+    /**
+     * Called when an ACK arrives. Stops retransmitting the packet and, if it was only sent once,
+     * feeds its round trip time into the destination's timeout.
+     * @param address Address of the node that sent the ACK
+     * @param seqNum Sequence number being acknowledged
+     * @param now Current time, in System.nanoTime() terms
+     */
+    public void onAck(InetSocketAddress address, int seqNum, long now) {
+
+        InFlight packet;
+
+        synchronized (this) {
+
+            Peer peer = peers.get(address);
+            if (peer == null) {
+                return;
+            }
+
+            packet = peer.window[seqNum & (WINDOW - 1)];
+            if (packet == null || packet.seqNum != seqNum) {
+                // Duplicate ACK, or one for a packet already given up on
+                return;
+            }
+
+            peer.window[seqNum & (WINDOW - 1)] = null;
+            unschedule(packet);
+            inFlightCount--;
+
+            // Karn's algorithm, a retransmitted packet's ACK could be for any of its copies
+            if (packet.retries == 0) {
+                peer.addRttSample(now - packet.firstSent);
+            }
+        }
+
+        DeliveryListener callback = listener;
+        if (callback != null) {
+            callback.delivered(packet.id, packet.seqNum, address);
+        }
+    }
+
+    /**
+     * Called when a packet with the ACK flag arrives. Always answers it, since our earlier ACK may
+     * have been lost, but reports repeats so the application only sees the packet once.
+     * @param address Address of the node that sent the packet
+     * @param id DataID of the packet, echoed back in the ACK's data
+     * @param seqNum Sequence number of the packet
+     * @return True if this is the first copy of the packet received
+     */
+    public boolean onReliablePacket(InetSocketAddress address, int id, int seqNum) {
+
+        boolean first;
+        synchronized (this) {
+            first = peer(address).markReceived(seqNum);
+        }
+
+        output.transmit(RoveComm.ACK, new byte[]{(byte) (id >> 8), (byte) (id & 0xFF)}, 2,
+                seqNum, false, address);
+        return first;
+    }
+
+    /**
+     * Retransmits every packet whose timeout has passed, backing its timeout off. Packets out of
+     * retries are dropped and reported as failed. Must only be called from one thread at a time.
+     * @param now Current time, in System.nanoTime() terms
+     */
+    public void advance(long now) {
+
+        long nowTick = now / TICK;
+
+        synchronized (this) {
+
+            if (currentTick == Long.MIN_VALUE) {
+                currentTick = nowTick;
+            }
+
+            // Every slot is visited at most once, even after a long pause
+            long ticks = Math.min(nowTick - currentTick, WHEEL_SLOTS - 1);
+            for (long tick = nowTick - ticks; tick <= nowTick; tick++) {
+                expire((int) (tick & (WHEEL_SLOTS - 1)), now);
+            }
+            currentTick = nowTick;
+        }
+
+        // Output and listener are called without the lock, so they may call back in
+        for (int i = 0; i < retransmits.size(); i++) {
+            InFlight packet = retransmits.get(i);
+            output.transmit(packet.id, packet.data, packet.length, packet.seqNum, true,
+                    packet.peer.address);
+        }
+        retransmits.clear();
+
+        DeliveryListener callback = listener;
+        for (int i = 0; i < failures.size(); i++) {
+            InFlight packet = failures.get(i);
+            if (callback != null) {
+                callback.failed(packet.id, packet.seqNum, packet.peer.address);
+            }
+        }
+        failures.clear();
+    }
+
+    /**
+     * Waits until at least one packet is waiting on an ACK, so a timer thread can sleep while
+     * there is nothing to retransmit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitInFlight() throws InterruptedException {
+
+        while (inFlightCount == 0) {
+            wait();
+        }
+    }
+
+    /**
+     * @return Number of packets waiting on an ACK, across every destination
+     */
+    public synchronized int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    /**
+     * @return Current retransmit timeout for a destination in nanoseconds, or the initial timeout
+     * if nothing has been sent to it
+     */
+    public synchronized long getRto(InetSocketAddress address) {
+
+        Peer peer = peers.get(address);
+        return (peer == null) ? INITIAL_RTO : peer.rto;
+    }
+
+    /**
+     * Handles the packets in one wheel slot. Caller must hold the lock.
+     */
+    private void expire(int slot, long now) {
+
+        InFlight packet = wheel[slot];
+        while (packet != null) {
+
+            InFlight next = packet.next;
+
+            // Entries a full rotation or more in the future stay put
+            if (packet.deadline - now <= 0) {
+
+                unschedule(packet);
+
+                if (packet.retries >= maxRetries) {
+                    packet.peer.window[packet.seqNum & (WINDOW - 1)] = null;
+                    inFlightCount--;
+                    failures.add(packet);
+                } else {
+                    packet.retries++;
+                    packet.peer.backOff(now);
+                    schedule(packet, now + packet.peer.rto);
+                    retransmits.add(packet);
+                }
+            }
+            packet = next;
+        }
+    }
+
+    private void schedule(InFlight packet, long deadline) {
+
+        packet.deadline = deadline;
+        // Never schedule into a tick advance() has already passed
+        long tick = Math.max(deadline / TICK, currentTick + 1);
+        int slot = (int) (tick & (WHEEL_SLOTS - 1));
+
+        packet.slot = slot;
+        packet.prev = null;
+        packet.next = wheel[slot];
+        if (packet.next != null) {
+            packet.next.prev = packet;
+        }
+        wheel[slot] = packet;
+    }
+
+    private void unschedule(InFlight packet) {
+
+        if (packet.prev != null) {
+            packet.prev.next = packet.next;
+        } else {
+            wheel[packet.slot] = packet.next;
+        }
+        if (packet.next != null) {
+            packet.next.prev = packet.prev;
+        }
+        packet.prev = null;
+        packet.next = null;
+    }
+
+    /**
+     * Picks where a new destination's sequence numbers start, from the clock as TCP does. A
+     * sender that restarts picks up a millisecond on from where it was, ahead of the numbers it
+     * used before unless it sent faster than one reliable packet a millisecond, so the receiver
+     * doesn't mistake its first packets for repeats of old ones.
+     * @param now Current time, in System.nanoTime() terms
+     * @return Sequence number from 1 to 0xFFFF
+     */
+    static int initialSeqNum(long now) {
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(now) % 0xFFFF;
+        return (int) ((millis < 0) ? millis + 0xFFFF : millis) + 1;
+    }
+
+    private Peer peer(InetSocketAddress address) {
+
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            peers.put(address, peer);
+        }
+        return peer;
+    }
+
+    /**
+     * Sequence numbers, timeout, and ACK window for one destination
+     */
+    private static class Peer {
+
+        final InetSocketAddress address;
+        final InFlight[] window = new InFlight[WINDOW];
+
+        // 0 until the first packet is sent, then never 0 again
+        int nextSeqNum = 0;
+
+        // Smoothed round trip time and its variance, per RFC 6298. srtt is -1 until measured.
+        long srtt = -1;
+        long rttVar;
+        long rto = INITIAL_RTO;
+
+        // Set when the timeout was last backed off, until that new timeout has passed
+        boolean backingOff;
+        long backoffEnd;
+
+        // Highest sequence number received from this node, and a ring of bits, indexed like
+        // window, marking which of the WINDOW sequence numbers up to it have arrived
+        int highestReceived = -1;
+        final long[] received = new long[WINDOW / 64];
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void addRttSample(long rtt) {
+
+            if (srtt < 0) {
+                srtt = rtt;
+                rttVar = rtt / 2;
+            } else {
+                rttVar = (3 * rttVar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(TICK, 4 * rttVar)));
+            backingOff = false;
+        }
+
+        /**
+         * Exponential backoff, undone by the next clean RTT sample. Like TCP's single
+         * retransmit timer (RFC 6298 section 5.5), a burst of packets lost together doubles
+         * the timeout once, not once per packet.
+         */
+        void backOff(long now) {
+
+            if (backingOff && now - backoffEnd < 0) {
+                return;
+            }
+            rto = Math.min(rto * 2, MAX_RTO);
+            backingOff = true;
+            backoffEnd = now + rto;
+        }
+
+        /**
+         * Senders never have packets more than WINDOW apart waiting on an ACK, so anything
+         * repeated is within WINDOW of the highest sequence number received.
+         * @return False if seqNum has already been received
+         */
+        boolean markReceived(int seqNum) {
+
+            if (highestReceived != -1) {
+
+                int ahead = (seqNum - highestReceived) & 0xFFFF;
+                int behind = (highestReceived - seqNum) & 0xFFFF;
+
+                if (ahead == 0) {
+                    return false;
+                } else if (ahead < WINDOW) {
+                    // Forget the sequence numbers this one pushes out of the ring
+                    for (int i = 1; i <= ahead; i++) {
+                        clearBit(highestReceived + i);
+                    }
+                    highestReceived = seqNum;
+                    setBit(seqNum);
+                    return true;
+                } else if (behind < WINDOW) {
+                    if (isBitSet(seqNum)) {
+                        return false;
+                    }
+                    setBit(seqNum);
+                    return true;
+                }
+            }
+
+            // First packet, a jump forward, or the node restarted its numbering
+            for (int i = 0; i < received.length; i++) {
+                received[i] = 0;
+            }
+            highestReceived = seqNum;
+            setBit(seqNum);
+            return true;
+        }
+
+        private boolean isBitSet(int seqNum) {
+            int bit = seqNum & (WINDOW - 1);
+            return (received[bit >> 6] & (1L << (bit & 63))) != 0;
+        }
+
+        private void setBit(int seqNum) {
+            int bit = seqNum & (WINDOW - 1);
+            received[bit >> 6] |= 1L << (bit & 63);
+        }
+
+        private void clearBit(int seqNum) {
+            int bit = seqNum & (WINDOW - 1);
+            received[bit >> 6] &= ~(1L << (bit & 63));
+        }
+    }
+
+    /**
+     * Packet waiting on an ACK, linked into its timer wheel slot
+     */
+    private static class InFlight {
+
+        final Peer peer;
+        final int id;
+        final int seqNum;
+        final byte[] data;
+        final int length;
+
+        long firstSent;
+        long deadline;
+        int retries;
+
+        int slot;
+        InFlight prev;
+        InFlight next;
+
+        InFlight(Peer peer, int id, int seqNum, byte[] data, int length) {
+            this.peer = peer;
+            this.id = id;
+            this.seqNum = seqNum;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,2097 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RoveComm {
+
+    /**
+     * How rovecomm talks to the network, chosen at construction
+     */
+    public enum Transport {
+
+        // java.net.DatagramSocket, with one thread blocked receiving and one sending
+        BLOCKING,
+        // NIO DatagramChannel with direct buffers, receiving and sending on one event loop thread
+        NIO
+    }
+
+    // DataID's handled by rovecomm's layer
+    final static int PING = 1;
+    final static int PING_REPLY = 2;
+    final static int SUBSCRIBE = 3;
+    final static int UNSUBSCRIBE = 4;
+    final static int FORCE_UNSUBSCRIBE = 5;
+    final static int ACK = 6;
+    final static int FRAGMENT = 7;
+
+    // Communication constraints. Every node on the rover uses the default port.
+    public final static int DEFAULT_PORT = 11000;
+    private final static int MAX_PACKET_SIZE = 1500;
+
+    // Payload bytes in each chunk of a fragmented transfer, after both headers
+    private final static int FRAGMENT_SIZE = MAX_PACKET_SIZE - RoveProtocol.HEADER_SIZE
+            - Reassembler.HEADER_SIZE;
+
+    // Default send pipeline sizing
+    private final static int DEFAULT_QUEUE_CAPACITY = 64;
+
+    // Receive pipeline sizing. The socket buffer size is only a request, the kernel may grant less.
+    private final static int RECEIVE_BUFFER_SIZE = 1 << 20;
+    private final static int RECEIVE_BATCH_SIZE = 64;
+    private final static int RECEIVE_QUEUE_SIZE = 256;
+
+    // Most nodes given as strings whose addresses are remembered
+    private final static int ADDRESS_CACHE_SIZE = 32;
+
+    // Default longest a batched packet waits for others to join it
+    private final static long DEFAULT_BATCH_DELAY = TimeUnit.MILLISECONDS.toNanos(2);
+
+    // Nodes that requested this node to send data to them, and nodes this node requested data from
+    private final SubscriberSet subscribers = new SubscriberSet();
+    private final SubscriberSet subscriptions = new SubscriberSet();
+
+    // Subscribers sent their own copy of each broadcast, and the multicast groups every other
+    // subscriber is reached through. Which group each of those is in is changed under the map's
+    // lock.
+    private final SubscriberSet unicastSubscribers = new SubscriberSet();
+    private final SubscriberSet multicastGroups = new SubscriberSet();
+    private final HashMap<InetSocketAddress, InetSocketAddress> groupMembers = new HashMap<>();
+
+    // Group this node joined and asks to be sent broadcasts through, or null, and the interface
+    // it was joined on
+    private volatile InetSocketAddress multicastGroup;
+    private NetworkInterface multicastInterface;
+
+    private Thread thread;
+    private ListenRunnable runnable;
+    private Thread sendThread;
+    private SendQueue sendQueue;
+    private OnReceiveData onReceiveData;
+    private volatile OnReceivePacket onReceivePacket;
+    private volatile OnReceiveBatch onReceiveBatch;
+    private final HandlerRegistry handlers = new HandlerRegistry();
+    private final int port;
+    private final AddressCache addressCache;
+    private LinkMonitor linkMonitor;
+    private PacketPool receivePool;
+    private volatile long receivedCount;
+    private volatile long lastReceivedTime = LinkMonitor.NO_REPLY;
+    private final AtomicLongArray malformed = new AtomicLongArray(RoveProtocol.Status.values().length);
+    private int receiveBufferSize = -1;
+
+    // Packets gathered for onReceiveBatch, and the copies made of packets that arrived inside a
+    // batch. Only the thread delivering packets touches these.
+    private final ReceiveBatch listenerBatch = new ReceiveBatch(RECEIVE_BATCH_SIZE);
+    private final ReceiveBatch detachedViews = new ReceiveBatch(RECEIVE_BATCH_SIZE);
+    private Batcher batcher;
+    private Transport transport;
+
+    // Blocking transport. A MulticastSocket so it can join groups, otherwise used as a plain
+    // DatagramSocket.
+    private MulticastSocket datagramSocket;
+    private ReceiveQueue receiveQueue;
+    private Thread deliverThread;
+    private final byte[] sendBuffer = new byte[MAX_PACKET_SIZE];
+    private final HashMap<InetSocketAddress, DatagramPacket> destinations = new HashMap<>();
+    private final DatagramPacket batchPacket = new DatagramPacket(new byte[0], 0);
+
+    // Every packet sent and received is recorded here while it is set
+    private volatile TelemetryRecorder recorder;
+
+    // Counters and timings for the hot paths while enabled. Null when disabled, so each path
+    // costs one volatile read.
+    private volatile RoveMetrics metrics;
+
+    // Payloads too big for one packet, split into chunks on the way out and put back together
+    // on the way in
+    private final Reassembler reassembler = new Reassembler(FRAGMENT_SIZE);
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+
+    // DataIDs sent with the timestamped header, sorted, replaced rather than modified
+    private volatile int[] timestampedIds = new int[0];
+
+    // How each node's clock relates to this one's, from timestamped ping exchanges
+    private volatile boolean clockSync;
+    private final Map<InetSocketAddress, ClockSync> clocks = new ConcurrentHashMap<>();
+
+    // Reliable delivery, created the first time it is needed
+    private volatile ReliableChannel reliable;
+    private Thread retransmitThread;
+
+    // NIO transport
+    private EventLoopRunnable eventLoop;
+    private Selector selector;
+    private DatagramChannel datagramChannel;
+
+    /**
+     * Constructor for instance of rovecomm. This is intended to stay alive for the continuation of
+     * the java program, Android Activity or not.
+     * @param onReceiveData Listener for received data. Instantiating method must implement it.
+     */
+    public RoveComm(OnReceiveData onReceiveData) {
+        this(onReceiveData, Transport.BLOCKING);
+    }
+
+    /**
+     * Constructor for instance of rovecomm using a specific transport.
+     * @param onReceiveData Listener for received data, or null if only using setOnReceivePacket()
+     * @param transport Blocking sockets or an NIO event loop
+     */
+    public RoveComm(OnReceiveData onReceiveData, Transport transport) {
+        this(onReceiveData, transport, DEFAULT_QUEUE_CAPACITY, SendQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Constructor for instance of rovecomm with a specifically sized send queue.
+     * @param onReceiveData Listener for received data, or null if only using setOnReceivePacket()
+     * @param queueCapacity Maximum number of packets waiting to be sent in each priority's lane
+     * @param overflowPolicy What to do with packets sent while their lane is full
+     */
+    public RoveComm(OnReceiveData onReceiveData, int queueCapacity,
+                    SendQueue.OverflowPolicy overflowPolicy) {
+        this(onReceiveData, Transport.BLOCKING, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Constructor for instance of rovecomm with a specific transport and send queue.
+     * @param onReceiveData Listener for received data, or null if only using setOnReceivePacket()
+     * @param transport Blocking sockets or an NIO event loop
+     * @param queueCapacity Maximum number of packets waiting to be sent in each priority's lane
+     * @param overflowPolicy What to do with packets sent while their lane is full
+     */
+    public RoveComm(OnReceiveData onReceiveData, Transport transport, int queueCapacity,
+                    SendQueue.OverflowPolicy overflowPolicy) {
+        this(onReceiveData, transport, queueCapacity, overflowPolicy, DEFAULT_PORT);
+    }
+
+    /**
+     * Constructor for instance of rovecomm on a port other than the rover's, such as when it
+     * shares a machine with a simulated board
+     * @param onReceiveData Listener for received data, or null if only using setOnReceivePacket()
+     * @param transport Blocking sockets or an NIO event loop
+     * @param queueCapacity Maximum number of packets waiting to be sent in each priority's lane
+     * @param overflowPolicy What to do with packets sent while their lane is full
+     * @param port UDP port to bind, which is also the port nodes given as strings are sent to
+     */
+    public RoveComm(OnReceiveData onReceiveData, Transport transport, int queueCapacity,
+                    SendQueue.OverflowPolicy overflowPolicy, int port) {
+
+        this.port = port;
+        addressCache = new AddressCache(ADDRESS_CACHE_SIZE, port);
+        sendQueue = new SendQueue(queueCapacity, overflowPolicy,
+                MAX_PACKET_SIZE - RoveProtocol.HEADER_SIZE);
+
+        // Link upkeep shouldn't wait behind data, and big transfers should wait behind everything
+        sendQueue.setPriority(PING, SendQueue.Priority.HIGH);
+        sendQueue.setPriority(PING_REPLY, SendQueue.Priority.HIGH);
+        sendQueue.setPriority(ACK, SendQueue.Priority.HIGH);
+        sendQueue.setPriority(FRAGMENT, SendQueue.Priority.BULK);
+        this.onReceiveData = onReceiveData;
+        this.transport = transport;
+        linkMonitor = new LinkMonitor(new LinkMonitor.Output() {
+            @Override
+            public void sendPing(byte[] data, InetSocketAddress address) {
+                sendQueue.offer(PING, data, data.length, address, 0, false);
+            }
+        });
+
+        if (transport == Transport.NIO) {
+            startEventLoop();
+        } else {
+            startBlocking();
+        }
+    }
+
+    /**
+     * Binds the socket and starts the listener and sender threads
+     */
+    private void startBlocking() {
+
+        // Enough buffers for a full receive queue plus the batch being delivered
+        receivePool = new PacketPool(RECEIVE_QUEUE_SIZE + 2 * RECEIVE_BATCH_SIZE, MAX_PACKET_SIZE,
+                false);
+        receiveQueue = new ReceiveQueue(RECEIVE_QUEUE_SIZE);
+        batcher = new Batcher(new Batcher.Output() {
+            @Override
+            public boolean sendBatch(ByteBuffer packet, int records, InetSocketAddress destination) {
+
+                // Only the send thread gets here, so the one packet can be reused
+                try {
+                    batchPacket.setData(packet.array(), packet.arrayOffset() + packet.position(),
+                            packet.remaining());
+                    batchPacket.setSocketAddress(destination);
+                    datagramSocket.send(batchPacket);
+                    sendQueue.recordSent(records);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    onSocketError();
+                }
+                return true;
+            }
+        }, MAX_PACKET_SIZE, DEFAULT_BATCH_DELAY, false);
+
+        // Setup network connection. If failed to bind socket or anything else, print it out.
+        // Application will continue even if it encounters an error.
+        try {
+            // MulticastSocket shares its port by default, which would hide a second instance
+            // binding the same one, so turn that off before binding
+            this.datagramSocket = new MulticastSocket(null);
+            datagramSocket.setReuseAddress(false);
+            datagramSocket.bind(new InetSocketAddress(port));
+            datagramSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            // Read now, as the socket is locked while the listener waits in receive()
+            receiveBufferSize = datagramSocket.getReceiveBufferSize();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Setup and start the network listener to run separately of the main thread. It only
+        // drains the socket; decoding and listeners run on the deliver thread so a slow listener
+        // can't leave datagrams to overflow the socket's buffer.
+        runnable = new ListenRunnable();
+        thread = new Thread(runnable, "RoveComm-receive");
+        thread.setDaemon(true);
+        thread.start();
+
+        deliverThread = new Thread(new DeliverRunnable(), "RoveComm-deliver");
+        deliverThread.setDaemon(true);
+        deliverThread.start();
+
+        // A single long lived thread sends everything, in the order it was queued
+        sendThread = new Thread(new SendRunnable(), "RoveComm-send");
+        sendThread.setDaemon(true);
+        sendThread.start();
+    }
+
+    /**
+     * Binds a non-blocking DatagramChannel and starts the event loop thread that both receives
+     * and sends on it
+     */
+    private void startEventLoop() {
+
+        receivePool = new PacketPool(2 * RECEIVE_BATCH_SIZE, MAX_PACKET_SIZE, true);
+        batcher = new Batcher(new Batcher.Output() {
+            @Override
+            public boolean sendBatch(ByteBuffer packet, int records, InetSocketAddress destination) {
+
+                try {
+                    // Batches mix DataIDs, so go out as normal traffic
+                    eventLoop.setTrafficClass(SendQueue.Priority.NORMAL);
+                    if (datagramChannel.send(packet, destination) == 0) {
+                        return false;
+                    }
+                    sendQueue.recordSent(records);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    onSocketError();
+                }
+                return true;
+            }
+        }, MAX_PACKET_SIZE, DEFAULT_BATCH_DELAY, true);
+
+        // Setup network connection. If failed to bind socket or anything else, print it out.
+        // Application will continue even if it encounters an error.
+        try {
+            selector = Selector.open();
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.configureBlocking(false);
+            datagramChannel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            receiveBufferSize = datagramChannel.socket().getReceiveBufferSize();
+            datagramChannel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Queued packets need the event loop to wake up out of select()
+        sendQueue.setOnOffer(new Runnable() {
+            @Override
+            public void run() {
+                if (selector != null) {
+                    selector.wakeup();
+                }
+            }
+        });
+
+        eventLoop = new EventLoopRunnable();
+        thread = new Thread(eventLoop, "RoveComm-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Deconstruct method that needs to run to gracefully end rovecomm
+     */
+    public void onDestroy() {
+
+        linkMonitor.stop();
+        sendQueue.close();
+        disableMetrics();
+
+        synchronized (this) {
+            if (retransmitThread != null) {
+                retransmitThread.interrupt();
+            }
+        }
+
+        if (transport == Transport.NIO) {
+
+            // The event loop closes the channel and selector on its way out
+            eventLoop.cancel();
+            if (selector != null) {
+                selector.wakeup();
+            }
+            return;
+        }
+
+        runnable.cancel();
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+
+        receiveQueue.close();
+        if (deliverThread.isAlive()) {
+            deliverThread.interrupt();
+        }
+
+        if (sendThread.isAlive()) {
+            sendThread.interrupt();
+        }
+
+        datagramSocket.close();
+    }
+
+    /**
+     * Method to request data from another node on the network. The node adds this one to its
+     * subscribers, the same way incoming SUBSCRIBE packets are handled here. If this node has
+     * joined a multicast group, the request names it.
+     * @param subscriber Other node's ip
+     */
+    public void subscribe(String subscriber) {
+
+        InetSocketAddress address = resolve(subscriber);
+        if (address != null) {
+            subscriptions.add(address);
+            sendQueue.offer(SUBSCRIBE, encodeGroup(multicastGroup), address);
+        }
+    }
+
+    /**
+     * Method to request data from a node resolved ahead of time, which may be on any port
+     * @param subscriber Other node
+     */
+    public void subscribe(RoveNode subscriber) {
+
+        subscriptions.add(subscriber.getAddress());
+        sendQueue.offer(SUBSCRIBE, encodeGroup(multicastGroup), subscriber.getAddress());
+    }
+
+    /**
+     * Method to request no data from another node on the network
+     * @param subscriber Other node's ip
+     */
+    public void unSubscribe(String subscriber) {
+
+        InetSocketAddress address = resolve(subscriber);
+        if (address != null) {
+            subscriptions.remove(address);
+            sendQueue.offer(UNSUBSCRIBE, (byte[]) null, address);
+        }
+    }
+
+    /**
+     * Method to request no data from a node resolved ahead of time
+     * @param subscriber Other node
+     */
+    public void unSubscribe(RoveNode subscriber) {
+
+        subscriptions.remove(subscriber.getAddress());
+        sendQueue.offer(UNSUBSCRIBE, (byte[]) null, subscriber.getAddress());
+    }
+
+    /**
+     * Method to stop sending data to a node that subscribed to this one, and tell it so
+     * @param subscriber Other node's ip
+     */
+    public void forceUnsubscribe(String subscriber) {
+
+        InetSocketAddress address = resolve(subscriber);
+        if (address != null) {
+            removeSubscriber(address);
+            sendQueue.offer(FORCE_UNSUBSCRIBE, (byte[]) null, address);
+        }
+    }
+
+    /**
+     * @return Nodes that sent a SUBSCRIBE and are sent everything from sendData(int, byte[])
+     */
+    public SubscriberSet getSubscribers() {
+        return subscribers;
+    }
+
+    /**
+     * @return Nodes this one has subscribed to and not been unsubscribed from
+     */
+    public SubscriberSet getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Method to have broadcasts from the nodes this one subscribes to sent through a multicast
+     * group, so each broadcast is one datagram however many nodes are listening. Every node in
+     * the group must use the same port. Current subscriptions are requested again naming the
+     * group. Nodes that can't send to groups keep sending to this one directly. A node in a group
+     * hears every broadcast sent to it, including from nodes it has since unsubscribed from while
+     * others in the group are still subscribed.
+     * Only the blocking transport can join groups, as DatagramChannel can't on older Android.
+     * @param group Multicast address, such as 239.255.11.0
+     * @param networkInterface Interface to join and send on, or null for the system's default
+     * @return False if this transport can't join groups or joining failed
+     */
+    public synchronized boolean joinMulticastGroup(String group,
+                                                   NetworkInterface networkInterface) {
+
+        if (datagramSocket == null) {
+            return false;
+        }
+
+        try {
+            InetAddress address = InetAddress.getByName(group);
+            if (!address.isMulticastAddress()) {
+                throw new IllegalArgumentException(group + " is not a multicast address");
+            }
+
+            leaveGroup();
+            InetSocketAddress joined = new InetSocketAddress(address, port);
+            if (networkInterface != null) {
+                datagramSocket.setNetworkInterface(networkInterface);
+            }
+            datagramSocket.joinGroup(joined, networkInterface);
+            multicastGroup = joined;
+            multicastInterface = networkInterface;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        resubscribe();
+        return true;
+    }
+
+    /**
+     * Method to leave the multicast group, and have subscriptions sent directly again
+     */
+    public synchronized void leaveMulticastGroup() {
+
+        if (leaveGroup()) {
+            resubscribe();
+        }
+    }
+
+    /**
+     * Method to choose which interface broadcasts to multicast groups leave on, such as the
+     * loopback interface when every node is on one machine. Joining a group sets this too.
+     * @param networkInterface Interface to send on
+     * @return False if this transport can't send to groups or the interface couldn't be used
+     */
+    public boolean setMulticastInterface(NetworkInterface networkInterface) {
+
+        if (datagramSocket == null) {
+            return false;
+        }
+
+        try {
+            datagramSocket.setNetworkInterface(networkInterface);
+            return true;
+        } catch (SocketException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return Group this node joined, or null
+     */
+    public InetSocketAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * @return Groups broadcasts are sent to, one datagram each, in place of the subscribers in them
+     */
+    public SubscriberSet getMulticastGroups() {
+        return multicastGroups;
+    }
+
+    /**
+     * Method to send a rovecomm packet to every subscriber
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     */
+    public void sendData(int id, byte[] contents) {
+
+        // One datagram to each multicast group, then one to each subscriber outside them. The
+        // snapshots are never modified, so this needs no lock even if a node subscribes part way
+        // through.
+        InetSocketAddress[] groups = multicastGroups.snapshot();
+        for (int i = 0; i < groups.length; i++) {
+            sendQueue.offer(id, contents, groups[i]);
+        }
+
+        InetSocketAddress[] current = unicastSubscribers.snapshot();
+        for (int i = 0; i < current.length; i++) {
+            sendQueue.offer(id, contents, current[i]);
+        }
+    }
+
+    /**
+     * Method to send a rovecomm packet
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param ip String ip of node
+     */
+    public void sendData(int id, byte[] contents, String ip) {
+
+        offer(id, contents, (contents == null) ? 0 : contents.length, ip, 0, false);
+    }
+
+    /**
+     * Method to send a rovecomm packet to a node resolved ahead of time
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param node Node to send to
+     */
+    public void sendData(int id, byte[] contents, RoveNode node) {
+
+        sendQueue.offer(id, contents, node.getAddress());
+    }
+
+    /**
+     * Method to send a payload of any size, split into as many packets as it takes. The receiving
+     * node puts it back together and hands it to its Reassembler's listeners. Chunks wait for room
+     * in the send queue rather than following its overflow policy, so this can block while a big
+     * payload goes out; send from a thread that can wait. Chunks aren't acknowledged, so a lost
+     * one loses the payload.
+     * @param id DataID of the payload
+     * @param contents Payload, copied before this returns
+     * @param ip String ip of node
+     * @return False if a chunk couldn't be queued
+     */
+    public boolean sendFragmented(int id, byte[] contents, String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        return address != null && sendFragmented(id, contents, address);
+    }
+
+    /**
+     * Method to send a payload of any size to a node resolved ahead of time, as
+     * sendFragmented(int, byte[], String)
+     * @param id DataID of the payload
+     * @param contents Payload, copied before this returns
+     * @param node Node to send to
+     * @return False if a chunk couldn't be queued
+     */
+    public boolean sendFragmented(int id, byte[] contents, RoveNode node) {
+        return sendFragmented(id, contents, node.getAddress());
+    }
+
+    private boolean sendFragmented(int id, byte[] contents, InetSocketAddress address) {
+
+        long chunks = ((long) contents.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+        if (contents.length == 0 || chunks > Reassembler.MAX_CHUNKS) {
+            throw new IllegalArgumentException("Payload must be 1 to "
+                    + (long) Reassembler.MAX_CHUNKS * FRAGMENT_SIZE + " bytes");
+        }
+
+        // The chunk index goes in the sequence number, and the rest in the fragment header
+        byte[] chunk = new byte[Reassembler.HEADER_SIZE + FRAGMENT_SIZE];
+        Reassembler.encodeHeader(chunk, id, nextTransferId.getAndIncrement() & 0xFFFF,
+                contents.length);
+
+        for (int index = 0; index < chunks; index++) {
+
+            int offset = index * FRAGMENT_SIZE;
+            int length = Math.min(FRAGMENT_SIZE, contents.length - offset);
+            System.arraycopy(contents, offset, chunk, Reassembler.HEADER_SIZE, length);
+            if (!sendQueue.offerWaiting(FRAGMENT, chunk, Reassembler.HEADER_SIZE + length,
+                    address, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Where fragmented payloads are put back together, for setting its listeners, memory
+     * budget and timeout
+     */
+    public Reassembler getReassembler() {
+        return reassembler;
+    }
+
+    /**
+     * Method to send a typed message to every subscriber
+     * @param message Message to send, encoded before this returns so it can be reused
+     */
+    public void sendData(RoveMessage message) {
+
+        InetSocketAddress[] groups = multicastGroups.snapshot();
+        for (int i = 0; i < groups.length; i++) {
+            sendQueue.offer(message, groups[i]);
+        }
+
+        InetSocketAddress[] current = unicastSubscribers.snapshot();
+        for (int i = 0; i < current.length; i++) {
+            sendQueue.offer(message, current[i]);
+        }
+    }
+
+    /**
+     * Method to send a typed message
+     * @param message Message to send, encoded before this returns so it can be reused
+     * @param ip String ip of node
+     */
+    public void sendData(RoveMessage message, String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        if (address != null) {
+            sendQueue.offer(message, address);
+        }
+    }
+
+    /**
+     * Method to send a typed message to a node resolved ahead of time
+     * @param message Message to send, encoded before this returns so it can be reused
+     * @param node Node to send to
+     */
+    public void sendData(RoveMessage message, RoveNode node) {
+
+        sendQueue.offer(message, node.getAddress());
+    }
+
+    /**
+     * Method to send a rovecomm packet that is retransmitted until the node acknowledges it. Meant
+     * for commands that must not be lost, like e-stop. Everything else should use sendData(),
+     * which has none of the overhead.
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param ip String ip of node
+     * @return False if the node couldn't be resolved or too many packets to it are already
+     * waiting on an ACK
+     */
+    public boolean sendReliable(int id, byte[] contents, String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        return address != null && sendReliable(id, contents, address);
+    }
+
+    private boolean sendReliable(int id, byte[] contents, InetSocketAddress address) {
+        return reliable().send(id, contents, address, System.nanoTime()) != -1;
+    }
+
+    /**
+     * Method to send a rovecomm packet that is retransmitted until the node acknowledges it
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param node Node to send to
+     * @return False if too many packets to that node are already waiting on an ACK
+     */
+    public boolean sendReliable(int id, byte[] contents, RoveNode node) {
+
+        return sendReliable(id, contents, node.getAddress());
+    }
+
+    /**
+     * Method to find out whether packets from sendReliable() made it
+     * @param listener Told about each reliable packet once it is acknowledged or given up on
+     */
+    public void setDeliveryListener(ReliableChannel.DeliveryListener listener) {
+        reliable().setDeliveryListener(listener);
+    }
+
+    /**
+     * @return Reliable delivery state, created along with its retransmit thread on first use
+     */
+    private synchronized ReliableChannel reliable() {
+
+        if (reliable == null) {
+
+            reliable = new ReliableChannel(new ReliableChannel.Output() {
+                @Override
+                public void transmit(int id, byte[] data, int length, int seqNum,
+                                     boolean requireAck, InetSocketAddress address) {
+
+                    // ACKs are sent from the receive thread, which on NIO also empties the queue
+                    if (id == ACK) {
+                        sendQueue.offerNow(id, data, length, address, seqNum, requireAck);
+                    } else {
+                        sendQueue.offer(id, data, length, address, seqNum, requireAck);
+                    }
+                }
+            });
+
+            retransmitThread = new Thread(new RetransmitRunnable(), "RoveComm-retransmit");
+            retransmitThread.setDaemon(true);
+            retransmitThread.start();
+        }
+        return reliable;
+    }
+
+    /**
+     * Resolves a node's address and queues a packet for it
+     * @return False if the address could not be resolved or the packet was dropped
+     */
+    private boolean offer(int id, byte[] contents, int length, String ip, int seqNum,
+                          boolean requireAck) {
+
+        InetSocketAddress address = resolve(ip);
+        return address != null
+                && sendQueue.offer(id, contents, length, address, seqNum, requireAck);
+    }
+
+    /**
+     * @param ip String ip of node
+     * @return Address of the node on the rovecomm port, or null if it could not be resolved
+     */
+    private InetSocketAddress resolve(String ip) {
+
+        try {
+            return addressCache.get(ip);
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Method to make rovecomm look a node up again, such as after its address changes. Only
+     * matters for nodes given as strings; RoveNodes keep the address they were created with.
+     * @param ip String ip or host name of node
+     */
+    public void invalidateAddress(String ip) {
+        addressCache.invalidate(ip);
+    }
+
+    /**
+     * Method to keep track of a node's round trip time, jitter and loss. The node is pinged once
+     * startLinkMonitor() has been called.
+     * @param ip String ip of node
+     */
+    public void monitorLink(String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        if (address != null) {
+            linkMonitor.addNode(address);
+        }
+    }
+
+    /**
+     * Method to keep track of a node's link, pinging it on its own port
+     * @param node Node to watch
+     */
+    public void monitorLink(RoveNode node) {
+        linkMonitor.addNode(node.getAddress());
+    }
+
+    /**
+     * Method to stop pinging a node and forget its link stats
+     * @param ip String ip of node
+     */
+    public void stopMonitoringLink(String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        if (address != null) {
+            linkMonitor.removeNode(address);
+        }
+    }
+
+    /**
+     * Method to stop pinging a node and forget its link stats
+     * @param node Node given to monitorLink()
+     */
+    public void stopMonitoringLink(RoveNode node) {
+        linkMonitor.removeNode(node.getAddress());
+    }
+
+    /**
+     * Method to start pinging the nodes given to monitorLink()
+     * @param rate Pings per second sent to each node, from 1 to 1000
+     */
+    public void startLinkMonitor(int rate) {
+        linkMonitor.start(rate);
+    }
+
+    /**
+     * @param ip String ip of node
+     * @return Latest link stats for the node, or null if monitorLink() wasn't called for it
+     */
+    public LinkMonitor.LinkSnapshot getLinkSnapshot(String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        return (address == null) ? null : linkMonitor.getSnapshot(address);
+    }
+
+    /**
+     * @param node Node given to monitorLink()
+     * @return Latest link stats for the node, or null if monitorLink() wasn't called for it
+     */
+    public LinkMonitor.LinkSnapshot getLinkSnapshot(RoveNode node) {
+        return linkMonitor.getSnapshot(node.getAddress());
+    }
+
+    /**
+     * Method to set how urgently a DataID is sent. Critical packets, such as drive commands and
+     * stops, go ahead of everything else; the rest share the sender by weight. On the NIO
+     * transport each packet is also marked with its priority's traffic class, so Wi-Fi access
+     * points queue it to match. Marking is NIO only: a DatagramSocket holds its lock for the
+     * whole of receive(), so setting the traffic class before each send on the blocking transport
+     * would hold the send until the next packet arrives. It sends every packet unmarked.
+     * @param id DataID to set
+     * @param priority Its priority. NORMAL is the default.
+     */
+    public void setPriority(int id, SendQueue.Priority priority) {
+        sendQueue.setPriority(id, priority);
+    }
+
+    /**
+     * Method to send a DataID with the timestamped header, which carries this node's monotonic
+     * clock as each packet leaves, so receivers can tell how old it is. Only for DataIDs sent to
+     * nodes that understand it; older nodes drop timestamped packets as malformed. Packets too
+     * full for the 8 extra bytes, and batched DataIDs, go without.
+     * @param id DataID to set
+     * @param timestamped True to timestamp it, false to go back to the usual header
+     */
+    public synchronized void setTimestamped(int id, boolean timestamped) {
+
+        int[] current = timestampedIds;
+        int index = Arrays.binarySearch(current, id);
+        if (timestamped == (index >= 0)) {
+            return;
+        }
+
+        int[] next = new int[current.length + (timestamped ? 1 : -1)];
+        if (timestamped) {
+            int insert = -index - 1;
+            System.arraycopy(current, 0, next, 0, insert);
+            next[insert] = id;
+            System.arraycopy(current, insert, next, insert + 1, current.length - insert);
+        } else {
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        }
+        timestampedIds = next;
+    }
+
+    /**
+     * Method to work out how the clocks of monitored nodes relate to this one's. Pings from the
+     * link monitor are timestamped, nodes that understand reply with when they got the ping and
+     * when they replied, and each exchange refines an NTP style estimate of offset and drift.
+     * Nodes that don't understand timestamps should not be monitored while this is on.
+     * @param enabled True to estimate clocks, false to stop. Estimates so far are kept.
+     */
+    public void setClockSync(boolean enabled) {
+
+        clockSync = enabled;
+        setTimestamped(PING, enabled);
+    }
+
+    /**
+     * @param ip String ip or host name of node
+     * @return Estimate of the node's clock, or null if no timestamped ping has been answered
+     */
+    public ClockSync.Estimate getClockEstimate(String ip) {
+
+        InetSocketAddress address = resolve(ip);
+        return (address == null) ? null : getClockEstimate(address);
+    }
+
+    /**
+     * @param node Node given to monitorLink()
+     * @return Estimate of the node's clock, or null if no timestamped ping has been answered
+     */
+    public ClockSync.Estimate getClockEstimate(RoveNode node) {
+        return getClockEstimate(node.getAddress());
+    }
+
+    /**
+     * Method to turn a node's timestamp into this node's clock, such as to find how old a
+     * reading is
+     * @param ip String ip or host name of node
+     * @param timestamp Node's monotonic clock, in microseconds, as in PacketView.getTimestamp()
+     * @return The same moment in System.nanoTime() terms, or ClockSync.UNKNOWN if the node's
+     * clock isn't known yet
+     */
+    public long toLocalTime(String ip, long timestamp) {
+        return toLocalTime(getClockEstimate(ip), timestamp);
+    }
+
+    /**
+     * Method to turn a node's timestamp into this node's clock, such as to find how old a
+     * reading is
+     * @param node Node given to monitorLink()
+     * @param timestamp Node's monotonic clock, in microseconds, as in PacketView.getTimestamp()
+     * @return The same moment in System.nanoTime() terms, or ClockSync.UNKNOWN if the node's
+     * clock isn't known yet
+     */
+    public long toLocalTime(RoveNode node, long timestamp) {
+        return toLocalTime(getClockEstimate(node), timestamp);
+    }
+
+    /**
+     * Method to find when a received packet was sent, in this node's clock
+     * @param packet Packet received with the timestamped header
+     * @return When it was sent in System.nanoTime() terms, or ClockSync.UNKNOWN if it has no
+     * timestamp or its sender's clock isn't known yet
+     */
+    public long toLocalTime(PacketView packet) {
+
+        if (!packet.hasTimestamp()) {
+            return ClockSync.UNKNOWN;
+        }
+        return toLocalTime(getClockEstimate(source(packet)), packet.getTimestamp());
+    }
+
+    /**
+     * @param address Address and port of node
+     * @return Estimate of the node's clock, or null if no timestamped ping has been answered
+     */
+    private ClockSync.Estimate getClockEstimate(InetSocketAddress address) {
+
+        ClockSync clock = clocks.get(address);
+        return (clock == null) ? null : clock.getEstimate();
+    }
+
+    /**
+     * @param estimate Estimate of the node's clock, or null if it isn't known yet
+     * @param timestamp Node's monotonic clock, in microseconds
+     * @return The same moment in System.nanoTime() terms, or ClockSync.UNKNOWN
+     */
+    private static long toLocalTime(ClockSync.Estimate estimate, long timestamp) {
+
+        if (estimate == null || timestamp == PacketView.NO_TIMESTAMP) {
+            return ClockSync.UNKNOWN;
+        }
+        return estimate.toLocal(TimeUnit.MICROSECONDS.toNanos(timestamp));
+    }
+
+    /**
+     * Method to make a DataID latest-wins. Only the newest unsent value for each destination is
+     * kept, and it is sent no faster than maxRate. Meant for control data like drive powers where
+     * stale values are useless.
+     * @param id DataID to coalesce
+     * @param maxRate Maximum packets per second sent for the DataID to each destination
+     */
+    public void setCoalesced(int id, int maxRate) {
+        sendQueue.setCoalesced(id, maxRate);
+    }
+
+    /**
+     * Method to return a DataID to normal queueing, where every value is sent
+     * @param id DataID to stop coalescing
+     */
+    public void clearCoalesced(int id) {
+        sendQueue.clearCoalesced(id);
+    }
+
+    /**
+     * Method to let a DataID wait briefly so it can share a datagram with other batched DataIDs
+     * going to the same node. Meant for small commands sent together each frame, like drive,
+     * gimbal and arm. Nodes receiving batches must understand the BATCH flag.
+     * @param id DataID to batch
+     */
+    public void setBatched(int id) {
+        batcher.setBatched(id);
+    }
+
+    /**
+     * Method to send a DataID as soon as it is queued again
+     * @param id DataID to stop batching
+     */
+    public void clearBatched(int id) {
+        batcher.clearBatched(id);
+    }
+
+    /**
+     * Method to change how long batched DataIDs wait for others. Longer packs more per datagram
+     * at the cost of latency.
+     * @param delay Longest a packet waits for others to join it
+     * @param unit Unit of delay
+     */
+    public void setBatchDelay(long delay, TimeUnit unit) {
+        batcher.setDelay(delay, unit);
+    }
+
+    /**
+     * Method to receive packets without copying them. The listener is handed a view of the receive
+     * buffer that is only valid until it returns; anything kept must be copied with
+     * PacketView.copyData(). The OnReceiveData listener, if any, still gets its own copy.
+     * @param onReceivePacket Listener for received packets, or null to stop
+     */
+    public void setOnReceivePacket(OnReceivePacket onReceivePacket) {
+        this.onReceivePacket = onReceivePacket;
+    }
+
+    /**
+     * Method to receive packets a batch at a time. Each time the socket is drained, every packet
+     * that went to the listeners is handed over in one call, so a listener can do per-batch work
+     * like a single UI update once instead of per packet. Views in the batch are only valid until
+     * the listener returns. The other listeners still get each packet as well.
+     * @param onReceiveBatch Listener for batches of received packets, or null to stop
+     */
+    public void setOnReceiveBatch(OnReceiveBatch onReceiveBatch) {
+        this.onReceiveBatch = onReceiveBatch;
+    }
+
+    /**
+     * @return Size of the socket's receive buffer that the kernel granted, or -1 if the socket
+     * couldn't be opened. Compare against getKernelDropCount() when sizing it.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return Number of datagrams read from the socket
+     */
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return When the latest valid packet arrived from any node, in System.nanoTime() terms, or
+     * LinkMonitor.NO_REPLY if none has
+     */
+    public long getLastReceivedTime() {
+        return lastReceivedTime;
+    }
+
+    /**
+     * @return Number of received datagrams dropped for being malformed, for any reason
+     */
+    public long getMalformedCount() {
+
+        long total = 0;
+        for (int i = 0; i < malformed.length(); i++) {
+            total += malformed.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param reason Why packets were malformed
+     * @return Number of received datagrams dropped for that reason
+     */
+    public long getMalformedCount(RoveProtocol.Status reason) {
+        return malformed.get(reason.ordinal());
+    }
+
+    /**
+     * @return Number of datagrams the kernel dropped because the socket's receive buffer was full,
+     * or -1 where the kernel doesn't say, such as newer Android versions
+     */
+    public long getKernelDropCount() {
+        return UdpStats.readDrops(port);
+    }
+
+    /**
+     * @return Number of datagrams read from the socket but dropped because listeners had fallen
+     * too far behind. Always 0 for the NIO transport, which only reads as fast as it delivers.
+     */
+    public long getAppDropCount() {
+        return (receiveQueue == null) ? 0 : receiveQueue.getDroppedCount();
+    }
+
+    /**
+     * Method to handle one DataID separately from the rest. Packets with a registered handler go
+     * only to it, not to the OnReceiveData or OnReceivePacket listeners.
+     * @param id DataID to handle
+     * @param handler Run inline on the receive thread with a view of the packet, so must be quick
+     */
+    public void register(int id, OnReceivePacket handler) {
+        handlers.register(id, handler);
+    }
+
+    /**
+     * Method to handle one DataID separately from the rest, on an executor of its choosing
+     * @param id DataID to handle
+     * @param handler Given its own copy of the data
+     * @param executor HandlerRegistry.INLINE, a HandlerRegistry.newWorker(), or any other executor
+     */
+    public void register(int id, OnReceiveData handler, Executor executor) {
+        handlers.register(id, handler, executor);
+    }
+
+    /**
+     * Method to handle an inclusive range of DataIDs, such as everything from one board
+     * @param first Lowest DataID to handle
+     * @param last Highest DataID to handle
+     * @param handler Run inline on the receive thread with a view of the packet, so must be quick
+     */
+    public void registerRange(int first, int last, OnReceivePacket handler) {
+        handlers.registerRange(first, last, handler);
+    }
+
+    /**
+     * Method to handle an inclusive range of DataIDs on an executor of its choosing
+     * @param first Lowest DataID to handle
+     * @param last Highest DataID to handle
+     * @param handler Given its own copy of the data
+     * @param executor HandlerRegistry.INLINE, a HandlerRegistry.newWorker(), or any other executor
+     */
+    public void registerRange(int first, int last, OnReceiveData handler, Executor executor) {
+        handlers.registerRange(first, last, handler, executor);
+    }
+
+    /**
+     * Method to stop a handler from receiving anything it was registered for
+     * @param handler Handler given to register() or registerRange()
+     */
+    public void unregister(Object handler) {
+        handlers.unregister(handler);
+    }
+
+    /**
+     * Method to record every packet sent and received from now on, for replaying or looking
+     * through after a run
+     * @param recorder Recorder to write to, or null to stop recording. Closing it is up to the
+     * caller, after it has been replaced here.
+     */
+    public void setRecorder(TelemetryRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public TelemetryRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Method to start collecting metrics on the hot paths: packets and bytes per DataID, encode,
+     * decode and listener times, send queue depth, socket errors and malformed packets. Costs a
+     * little on every packet, so it is off until enabled. Does nothing if already enabled.
+     * @return Metrics being collected
+     */
+    public synchronized RoveMetrics enableMetrics() {
+
+        if (metrics == null) {
+            metrics = new RoveMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Method to stop collecting metrics, and stop any periodic dump of them
+     */
+    public synchronized void disableMetrics() {
+
+        if (metrics != null) {
+            metrics.stopDump();
+            metrics = null;
+        }
+    }
+
+    /**
+     * @return Metrics being collected, or null if they are not enabled
+     */
+    public RoveMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Copy of the metrics collected since they were enabled or last reset, or null if they
+     * are not enabled
+     */
+    public RoveMetrics.Snapshot getMetricsSnapshot() {
+
+        RoveMetrics current = metrics;
+        return (current == null) ? null : current.snapshot();
+    }
+
+    /**
+     * @return Queue feeding the send thread, for checking its depth and counters
+     */
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * @return UDP port this instance is bound to
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Method that actually sends packet, private as must be run on the send thread. The packet is
+     * encoded into sendBuffer, and each destination's DatagramPacket is created once and reused.
+     * @param entry Packet taken from the send queue
+     * @return True if the packet was handed to the socket
+     */
+    private boolean send(SendQueue.Entry entry) {
+
+        try {
+
+            DatagramPacket packet = destinations.get(entry.destination);
+            if (packet == null) {
+                packet = new DatagramPacket(sendBuffer, sendBuffer.length, entry.destination);
+                destinations.put(entry.destination, packet);
+            }
+
+            RoveMetrics current = metrics;
+            long start = (current == null) ? 0 : System.nanoTime();
+            int length = isTimestamped(entry)
+                    ? RoveProtocol.encodeTimestampedPacket(entry.id, entry.data, 0, entry.length,
+                            entry.seqNum, entry.requireAck, localTimestamp(), sendBuffer, 0)
+                    : RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length,
+                            entry.seqNum, entry.requireAck, sendBuffer, 0);
+            if (current != null) {
+                current.onEncode(System.nanoTime() - start);
+            }
+
+            packet.setLength(length);
+            datagramSocket.send(packet);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            onSocketError();
+            return false;
+        }
+    }
+
+    /**
+     * Interface that defines the return method for packets received. DataID's that do not match
+     * those checked at rovecomm level are passed up to this implemented method.
+     */
+    public interface OnReceiveData {
+
+        void receiveData(int id, byte[] content);
+    }
+
+    /**
+     * Interface for receiving packets without a copy. The view, and the buffer it reads from, are
+     * reused as soon as the method returns.
+     */
+    public interface OnReceivePacket {
+
+        void receivePacket(PacketView packet);
+    }
+
+    /**
+     * Interface for receiving all the packets from one drain of the socket together. The batch
+     * and its views are reused as soon as the method returns.
+     */
+    public interface OnReceiveBatch {
+
+        void receiveBatch(ReceiveBatch batch);
+    }
+
+    /**
+     * Handles datagrams drained from the socket, then hands the batch listener everything that
+     * went to the listeners and returns the datagrams to the pool
+     * @param datagrams Received, not yet decoded, datagrams
+     */
+    private void handleDatagrams(ReceiveBatch datagrams) {
+
+        for (int i = 0; i < datagrams.size(); i++) {
+            try {
+                handleDatagram(datagrams.get(i));
+            } catch (RuntimeException e) {
+                // A listener that throws should not stop the rest being handled
+                e.printStackTrace();
+            }
+        }
+
+        flushListenerBatch();
+        for (int i = 0; i < datagrams.size(); i++) {
+            receivePool.release(datagrams.get(i));
+        }
+        datagrams.clear();
+    }
+
+    /**
+     * Gives the batch listener what has been gathered so far, then frees the copies made for it
+     */
+    private void flushListenerBatch() {
+
+        OnReceiveBatch batchListener = onReceiveBatch;
+        if (batchListener != null && listenerBatch.size() > 0) {
+            batchListener.receiveBatch(listenerBatch);
+        }
+        listenerBatch.clear();
+
+        for (int i = 0; i < detachedViews.size(); i++) {
+            receivePool.release(detachedViews.get(i));
+        }
+        detachedViews.clear();
+    }
+
+    /**
+     * Copies a packet that arrived inside a batch into a view of its own, as the batch's view moves
+     * on to the next packet while the copy waits for the batch listener
+     * @param view Decoded packet
+     * @return View holding just the packet's data
+     */
+    private PacketView detach(PacketView view) {
+
+        PacketView copy = receivePool.acquire();
+        ByteBuffer buffer = copy.getBuffer();
+        buffer.put(view.getData());
+        buffer.flip();
+
+        copy.set(view.getDataId(), view.getSeqNum(), view.isRequiresAck(), 0,
+                view.getDataLength());
+        copy.setTimestamp(view.getTimestamp());
+        copy.setSource(view.getSourceAddress(), view.getSourcePort());
+        detachedViews.add(copy);
+        return copy;
+    }
+
+    /**
+     * Decodes and handles a received datagram, whichever transport it arrived on. Each packet in
+     * a batch is handled as though it arrived alone. Malformed datagrams are counted and dropped.
+     * @param view View over the datagram, valid until this returns
+     */
+    private void handleDatagram(PacketView view) {
+
+        RoveMetrics current = metrics;
+        long start = (current == null) ? 0 : System.nanoTime();
+        ByteBuffer buffer = view.getBuffer();
+        RoveProtocol.Status status = RoveProtocol.decodePacket(view, buffer.position(),
+                buffer.remaining());
+        if (current != null) {
+            current.onDecode(System.nanoTime() - start);
+        }
+        if (status != RoveProtocol.Status.OK) {
+            onMalformed(status);
+            return;
+        }
+
+        if (!view.isBatch()) {
+            handlePacket(view, false);
+            return;
+        }
+
+        // Decoding checked the batch's data is all there
+        int next = view.getDataOffset();
+        int end = next + view.getDataLength();
+
+        while (next < end) {
+
+            status = RoveProtocol.decodeRecord(view, next, end - next);
+            if (status != RoveProtocol.Status.OK) {
+                // Packets before the bad one have already been handled
+                onMalformed(status);
+                return;
+            }
+
+            next = view.getDataOffset() + view.getDataLength();
+            handlePacket(view, true);
+        }
+    }
+
+    /**
+     * Handles a decoded packet, whichever transport it arrived on. Replies to PINGs and reliable
+     * packets never wait for room in the send queue, as on NIO this runs on the thread that
+     * empties it.
+     * @param view Decoded packet, valid until this returns
+     * @param inBatch True if the packet arrived inside a batch, so shares its view with others
+     */
+    private void handlePacket(PacketView view, boolean inBatch) {
+
+        TelemetryRecorder current = recorder;
+        if (current != null) {
+            current.record(TelemetryRecorder.Direction.RECEIVED, view.getSourceAddress(),
+                    view.getSourcePort(), view.getDataId(), view.getData());
+        }
+
+        RoveMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.onReceived(view.getDataId(), view.getDataLength());
+        }
+        long received = System.nanoTime();
+        lastReceivedTime = received;
+        linkMonitor.onReceived(view.getSourceAddress(), view.getSourcePort(), received);
+
+        // Acknowledge reliable packets, and only pass the first copy of each along
+        if (view.isRequiresAck() && !reliable().onReliablePacket(
+                source(view), view.getDataId(), view.getSeqNum())) {
+            return;
+        }
+
+        // Switch on ID to handle these internally
+        switch (view.getDataId()) {
+
+            case PING:
+                // Echo the data back so the pinging node can work out the round trip
+                if (view.hasTimestamp()) {
+                    replyTimestamped(view);
+                } else {
+                    sendQueue.offerNow(PING_REPLY, view.getData(), source(view));
+                }
+                break;
+            case PING_REPLY:
+                long now = System.nanoTime();
+                linkMonitor.onPingReply(source(view), view.getData(), now);
+                if (clockSync && view.hasTimestamp()) {
+                    addClockSample(source(view), view, now);
+                }
+                break;
+            case SUBSCRIBE:
+                // Broadcasts go back to wherever the request came from, or to the group it named
+                addSubscriber(source(view), decodeGroup(view));
+                break;
+            case UNSUBSCRIBE:
+                removeSubscriber(source(view));
+                break;
+            case FORCE_UNSUBSCRIBE:
+                // The node will no longer send to us
+                subscriptions.remove(source(view));
+                break;
+            case FRAGMENT:
+                reassembler.onFragment(view, System.nanoTime());
+                break;
+            case ACK:
+                ReliableChannel channel = reliable;
+                if (channel != null) {
+                    channel.onAck(source(view), view.getSeqNum(), System.nanoTime());
+                }
+                break;
+            default:
+                // Give the data to the application
+                if (currentMetrics == null) {
+                    deliver(view, inBatch);
+                } else {
+                    long start = System.nanoTime();
+                    deliver(view, inBatch);
+                    currentMetrics.onCallback(System.nanoTime() - start);
+                }
+        }
+    }
+
+    /**
+     * Answers a timestamped ping. The probe is echoed with the ping's timestamp and when it
+     * arrived after it, and the reply's own timestamp says when it was sent: all four times an
+     * NTP style exchange needs.
+     * @param view Timestamped PING
+     */
+    private void replyTimestamped(PacketView view) {
+
+        long received = localTimestamp();
+        ByteBuffer probe = view.getData();
+        byte[] data = new byte[probe.remaining() + 16];
+        ByteBuffer reply = ByteBuffer.wrap(data);
+        reply.put(probe);
+        reply.putLong(view.getTimestamp());
+        reply.putLong(received);
+        sendQueue.offerTimestamped(PING_REPLY, data, source(view));
+    }
+
+    /**
+     * Adds a timestamped ping exchange to the node's clock estimate
+     * @param node Address and port of the node that replied
+     * @param view Timestamped PING_REPLY
+     * @param now When it arrived, in System.nanoTime() terms
+     */
+    private void addClockSample(InetSocketAddress node, PacketView view, long now) {
+
+        ByteBuffer data = view.getData();
+        if (data.remaining() < LinkMonitor.PROBE_SIZE + 16) {
+            return;
+        }
+        long sent = data.getLong(data.limit() - 16);
+        long received = data.getLong(data.limit() - 8);
+
+        ClockSync clock = clocks.get(node);
+        if (clock == null) {
+            clock = new ClockSync();
+            clocks.put(node, clock);
+        }
+        clock.addSample(TimeUnit.MICROSECONDS.toNanos(sent),
+                TimeUnit.MICROSECONDS.toNanos(received),
+                TimeUnit.MICROSECONDS.toNanos(view.getTimestamp()), now);
+    }
+
+    /**
+     * @param entry Packet taken from the send queue
+     * @return True if it goes with the timestamped header
+     */
+    private boolean isTimestamped(SendQueue.Entry entry) {
+
+        return (entry.timestamped || Arrays.binarySearch(timestampedIds, entry.id) >= 0)
+                && RoveProtocol.TIMESTAMPED_HEADER_SIZE + entry.length <= MAX_PACKET_SIZE;
+    }
+
+    /**
+     * @return This node's monotonic clock as sent in timestamps, in microseconds
+     */
+    private static long localTimestamp() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+    }
+
+    /**
+     * Records and counts a packet as it leaves the send queue, if recording or collecting metrics
+     * @param entry Packet taken from the send queue
+     */
+    private void record(SendQueue.Entry entry) {
+
+        TelemetryRecorder current = recorder;
+        if (current != null) {
+            current.record(TelemetryRecorder.Direction.SENT, entry.destination.getAddress(),
+                    entry.destination.getPort(), entry.id, entry.data, 0, entry.length);
+        }
+
+        RoveMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.onSent(entry.id, entry.length, sendQueue.size());
+        }
+    }
+
+    /**
+     * Counts a malformed datagram, and again in the metrics if enabled
+     * @param status Why it was malformed
+     */
+    private void onMalformed(RoveProtocol.Status status) {
+
+        malformed.incrementAndGet(status.ordinal());
+        RoveMetrics current = metrics;
+        if (current != null) {
+            current.onMalformed();
+        }
+    }
+
+    /**
+     * Counts a failed socket operation in the metrics, if enabled
+     */
+    private void onSocketError() {
+
+        RoveMetrics current = metrics;
+        if (current != null) {
+            current.onSocketError();
+        }
+    }
+
+    /**
+     * @param view Decoded packet
+     * @return Address and port the packet came from
+     */
+    private static InetSocketAddress source(PacketView view) {
+        return new InetSocketAddress(view.getSourceAddress(), view.getSourcePort());
+    }
+
+    /**
+     * Adds a node to the subscribers, or moves it if it subscribed before
+     * @param subscriber Node that sent a SUBSCRIBE
+     * @param group Multicast group it asked to be sent broadcasts through, or null
+     */
+    private void addSubscriber(InetSocketAddress subscriber, InetSocketAddress group) {
+
+        // Only the blocking transport's socket can be pointed at an interface to send to groups
+        if (datagramSocket == null) {
+            group = null;
+        }
+
+        synchronized (groupMembers) {
+
+            subscribers.add(subscriber);
+            InetSocketAddress previous = groupMembers.get(subscriber);
+            if (group == null) {
+                unicastSubscribers.add(subscriber);
+            } else {
+                // Start sending to the group before dropping the direct copy, so nothing is missed
+                groupMembers.put(subscriber, group);
+                multicastGroups.add(group);
+                unicastSubscribers.remove(subscriber);
+            }
+
+            if (previous != null && !previous.equals(group)) {
+                if (group == null) {
+                    groupMembers.remove(subscriber);
+                }
+                if (!groupMembers.containsValue(previous)) {
+                    multicastGroups.remove(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops sending broadcasts to a node, and to its group if it was the last one in it
+     * @param subscriber Node to remove
+     */
+    private void removeSubscriber(InetSocketAddress subscriber) {
+
+        synchronized (groupMembers) {
+
+            subscribers.remove(subscriber);
+            unicastSubscribers.remove(subscriber);
+            InetSocketAddress group = groupMembers.remove(subscriber);
+            if (group != null && !groupMembers.containsValue(group)) {
+                multicastGroups.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Leaves the multicast group, if one was joined. Called holding the lock on this.
+     * @return True if a group was left
+     */
+    private boolean leaveGroup() {
+
+        InetSocketAddress group = multicastGroup;
+        if (group == null) {
+            return false;
+        }
+
+        multicastGroup = null;
+        try {
+            datagramSocket.leaveGroup(group, multicastInterface);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Requests data again from every node subscribed to, so they learn which group to use
+     */
+    private void resubscribe() {
+
+        InetSocketAddress[] current = subscriptions.snapshot();
+        for (int i = 0; i < current.length; i++) {
+            sendQueue.offer(SUBSCRIBE, encodeGroup(multicastGroup), current[i]);
+        }
+    }
+
+    /**
+     * @param group Group to name in a SUBSCRIBE, or null
+     * @return Its address followed by its port, or null for none
+     */
+    private static byte[] encodeGroup(InetSocketAddress group) {
+
+        if (group == null) {
+            return null;
+        }
+
+        byte[] address = group.getAddress().getAddress();
+        byte[] data = new byte[address.length + 2];
+        System.arraycopy(address, 0, data, 0, address.length);
+        data[address.length] = (byte) (group.getPort() >> 8);
+        data[address.length + 1] = (byte) group.getPort();
+        return data;
+    }
+
+    /**
+     * @param view SUBSCRIBE packet
+     * @return Group it names, or null if it has none, such as from nodes older than multicast
+     */
+    private static InetSocketAddress decodeGroup(PacketView view) {
+
+        int length = view.getDataLength();
+        if (length != 4 + 2 && length != 16 + 2) {
+            return null;
+        }
+
+        byte[] data = view.copyData();
+        byte[] address = new byte[length - 2];
+        System.arraycopy(data, 0, address, 0, address.length);
+        int port = ((data[length - 2] & 0xFF) << 8) | (data[length - 1] & 0xFF);
+        try {
+            InetAddress group = InetAddress.getByAddress(address);
+            return group.isMulticastAddress() ? new InetSocketAddress(group, port) : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands an application packet to its registered handler or, failing that, the listeners.
+     * Only handlers and listeners taking a byte[] cost a copy.
+     * @param view Decoded packet, valid until this returns
+     * @param inBatch True if the packet arrived inside a batch, so shares its view with others
+     */
+    private void deliver(PacketView view, boolean inBatch) {
+
+        if (handlers.dispatch(view)) {
+            return;
+        }
+
+        OnReceivePacket packetListener = onReceivePacket;
+        if (packetListener != null) {
+            packetListener.receivePacket(view);
+        }
+
+        if (onReceiveData != null) {
+            onReceiveData.receiveData(view.getDataId(), view.copyData());
+        }
+
+        // Kept for the batch listener until the whole drain has been handled
+        if (onReceiveBatch != null) {
+            if (listenerBatch.isFull() || detachedViews.isFull()) {
+                flushListenerBatch();
+            }
+            listenerBatch.add(inBatch ? detach(view) : view);
+        }
+    }
+
+    /**
+     * Runnable that handles packet listening. It does nothing but read datagrams into pooled
+     * buffers and queue them for the deliver thread, so it gets back to the socket quickly.
+     */
+    private class ListenRunnable implements Runnable {
+
+        // Boolean for loop control
+        private volatile boolean cancelled = false;
+
+        @Override
+        public void run() {
+
+            // Reused for every datagram, pointed at a pooled buffer each time
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+            PacketView view = null;
+
+            try {
+
+                while (!cancelled) {
+
+                    // Wait until a packet is received into a buffer from the pool
+                    view = receivePool.acquire();
+                    ByteBuffer buffer = view.getBuffer();
+                    packet.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    datagramSocket.receive(packet);
+                    buffer.limit(packet.getLength());
+                    view.setSource(packet.getAddress(), packet.getPort());
+                    receivedCount++;
+
+                    // Queue it, or drop it if the deliver thread is too far behind
+                    if (!receiveQueue.offer(view)) {
+                        receivePool.release(view);
+                    }
+                    view = null;
+                }
+            } catch (IOException e) {
+                // Closing the socket in onDestroy() also lands here, and isn't an error
+                if (!cancelled) {
+                    e.printStackTrace();
+                    onSocketError();
+                }
+            } finally {
+                if (view != null) {
+                    receivePool.release(view);
+                }
+            }
+        }
+
+        /**
+         * Method which cancels and ends the loop. Called within onDestroy()
+         */
+        private void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Runnable that decodes and delivers everything the listener has queued each time it wakes up
+     */
+    private class DeliverRunnable implements Runnable {
+
+        @Override
+        public void run() {
+
+            ReceiveBatch datagrams = new ReceiveBatch(RECEIVE_BATCH_SIZE);
+
+            try {
+                while (receiveQueue.drainTo(datagrams)) {
+                    handleDatagrams(datagrams);
+                }
+            } catch (InterruptedException e) {
+                // onDestroy() interrupts to end the thread
+            }
+        }
+    }
+
+    /**
+     * Runnable that retransmits unacknowledged packets, sleeping while there are none
+     */
+    private class RetransmitRunnable implements Runnable {
+
+        @Override
+        public void run() {
+
+            try {
+
+                while (true) {
+                    reliable.awaitInFlight();
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(ReliableChannel.TICK));
+                    reliable.advance(System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                // onDestroy() interrupts to end the thread
+            }
+        }
+    }
+
+    /**
+     * Runnable that drains the send queue, one packet at a time
+     */
+    private class SendRunnable implements Runnable {
+
+        @Override
+        public void run() {
+
+            // Reused for every packet so the steady state does not allocate
+            SendQueue.Entry entry = sendQueue.newEntry();
+
+            try {
+
+                while (true) {
+
+                    // Wait no longer than it takes for the next batch to come due
+                    long wait = batcher.nextDeadline(System.nanoTime());
+                    boolean taken = (wait < 0) ? sendQueue.take(entry)
+                            : sendQueue.take(entry, wait, TimeUnit.NANOSECONDS);
+
+                    if (taken) {
+                        record(entry);
+                        if (!isTimestamped(entry) && batcher.canBatch(entry)) {
+                            batcher.add(entry, System.nanoTime());
+                        } else if (send(entry)) {
+                            sendQueue.recordSent();
+                        }
+                    } else if (sendQueue.isClosed()) {
+                        break;
+                    }
+
+                    batcher.flushDue(System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                // onDestroy() interrupts to end the thread
+            }
+        }
+    }
+
+    /**
+     * Runnable for the NIO transport. Sends whatever is queued, then sleeps in select() until the
+     * channel is readable, a packet is queued, or a coalesced value comes due.
+     */
+    private class EventLoopRunnable implements Runnable {
+
+        // Boolean for loop control
+        private volatile boolean cancelled = false;
+
+        // Direct buffer every outgoing packet is encoded into
+        private final ByteBuffer channelSendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        // Datagrams received but not yet handled
+        private final ReceiveBatch datagrams = new ReceiveBatch(RECEIVE_BATCH_SIZE);
+
+        // Traffic class the channel is set to, or -1 once setting it has failed
+        private int trafficClass = 0;
+
+        @Override
+        public void run() {
+
+            if (selector == null || datagramChannel == null) {
+                return;
+            }
+
+            // Reused for every packet so the steady state does not allocate
+            SendQueue.Entry entry = sendQueue.newEntry();
+            // Set when entry is still waiting for room in the socket's send buffer
+            boolean entryWaiting = false;
+
+            try {
+
+                SelectionKey key = datagramChannel.register(selector, SelectionKey.OP_READ);
+
+                while (!cancelled) {
+
+                    // Batches that are due go first, then send until the queue is empty or
+                    // the socket's buffer is full
+                    long now = System.nanoTime();
+                    long wait = -1;
+                    boolean writable = batcher.flushDue(now);
+                    while (writable) {
+
+                        if (!entryWaiting) {
+                            wait = sendQueue.poll(entry);
+                            if (wait != 0) {
+                                break;
+                            }
+                            record(entry);
+                        }
+
+                        entryWaiting = (!isTimestamped(entry) && batcher.canBatch(entry))
+                                ? !batcher.add(entry, now) : !send(entry);
+                        writable = !entryWaiting;
+                    }
+
+                    if (!writable) {
+                        // Resume once the channel is writable again
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        wait = -1;
+                    } else {
+                        long batchWait = batcher.nextDeadline(System.nanoTime());
+                        if (batchWait >= 0 && (wait < 0 || batchWait < wait)) {
+                            wait = batchWait;
+                        }
+                    }
+
+                    if (wait == 0) {
+                        // A batch is already due, so only pick up what has arrived
+                        selector.selectNow();
+                    } else if (wait > 0) {
+                        // Round up so a value that is nearly due does not spin
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+                    } else {
+                        selector.select();
+                    }
+
+                    if (selector.selectedKeys().remove(key)) {
+
+                        if (key.isReadable()) {
+                            receiveAll();
+                        }
+                        if (key.isWritable()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                onSocketError();
+            } finally {
+                try {
+                    datagramChannel.close();
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Receives every datagram waiting on the channel, handling them a batch at a time
+         */
+        private void receiveAll() throws IOException {
+
+            try {
+
+                while (!cancelled) {
+
+                    PacketView view = receivePool.acquire();
+                    ByteBuffer buffer = view.getBuffer();
+                    SocketAddress from;
+                    try {
+                        from = datagramChannel.receive(buffer);
+                    } catch (IOException e) {
+                        receivePool.release(view);
+                        throw e;
+                    }
+
+                    if (from == null) {
+                        receivePool.release(view);
+                        return;
+                    }
+                    buffer.flip();
+                    if (from instanceof InetSocketAddress) {
+                        InetSocketAddress source = (InetSocketAddress) from;
+                        view.setSource(source.getAddress(), source.getPort());
+                    }
+                    receivedCount++;
+
+                    datagrams.add(view);
+                    if (datagrams.isFull()) {
+                        handleDatagrams(datagrams);
+                    }
+                }
+            } finally {
+                handleDatagrams(datagrams);
+            }
+        }
+
+        /**
+         * Marks what's sent next with a priority's traffic class. Only touches the socket when
+         * the class differs from the last packet's.
+         * @param priority Priority of the packet about to be sent
+         */
+        void setTrafficClass(SendQueue.Priority priority) {
+
+            if (trafficClass < 0 || trafficClass == priority.getTrafficClass()) {
+                return;
+            }
+
+            try {
+                datagramChannel.socket().setTrafficClass(priority.getTrafficClass());
+                trafficClass = priority.getTrafficClass();
+            } catch (SocketException e) {
+                // Some networks refuse it; send unmarked rather than failing every packet
+                e.printStackTrace();
+                trafficClass = -1;
+            }
+        }
+
+        /**
+         * Encodes and sends one packet on the channel
+         * @param entry Packet taken from the send queue
+         * @return False if the socket's send buffer is full and the packet must be retried
+         */
+        private boolean send(SendQueue.Entry entry) {
+
+            try {
+
+                RoveMetrics current = metrics;
+                long start = (current == null) ? 0 : System.nanoTime();
+                channelSendBuffer.clear();
+                if (isTimestamped(entry)) {
+                    RoveProtocol.encodeTimestampedPacket(entry.id, entry.data, 0, entry.length,
+                            entry.seqNum, entry.requireAck, localTimestamp(), channelSendBuffer);
+                } else {
+                    RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length,
+                            entry.seqNum, entry.requireAck, channelSendBuffer);
+                }
+                channelSendBuffer.flip();
+                if (current != null) {
+                    current.onEncode(System.nanoTime() - start);
+                }
+
+                setTrafficClass(entry.priority);
+                if (datagramChannel.send(channelSendBuffer, entry.destination) == 0) {
+                    return false;
+                }
+                sendQueue.recordSent();
+            } catch (IOException e) {
+                e.printStackTrace();
+                onSocketError();
+            }
+            return true;
+        }
+
+        /**
+         * Method which cancels and ends the loop. Called within onDestroy()
+         */
+        private void cancel() {
+            cancelled = true;
+        }
+    }
+}
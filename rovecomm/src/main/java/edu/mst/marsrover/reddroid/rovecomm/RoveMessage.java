@@ -0,0 +1,47 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A DataID's data as typed fields instead of a byte[]. Implementations are generated from the
+ * DataID schema (src/main/schema/dataids.schema) at build time, so the layout of every message is
+ * written down in one place rather than in hand-packed arrays.
+ *
+ * Messages are mutable and meant to be reused: set the fields and send, or decode into the same
+ * instance for every packet received. Nothing is allocated either way.
+ */
+public interface RoveMessage {
+
+    /**
+     * @return DataID this message is sent as
+     */
+    int getDataId();
+
+    /**
+     * @return Number of data bytes the message encodes to
+     */
+    int getSize();
+
+    /**
+     * Writes the fields into an array, such as a send queue slot's buffer
+     * @param buffer Array with at least getSize() bytes from offset on
+     * @param offset Index to write the first byte at
+     * @return Number of bytes written, getSize()
+     */
+    int encode(byte[] buffer, int offset);
+
+    /**
+     * Reads the fields out of a buffer without changing its position, whatever its byte order
+     * @param buffer Buffer with at least getSize() bytes from offset on
+     * @param offset Index of the first byte
+     */
+    void decode(ByteBuffer buffer, int offset);
+
+    /**
+     * Reads the fields out of a received packet
+     * @param view Decoded packet
+     * @return False if the packet is a different DataID or the wrong size, leaving the fields
+     * as they were
+     */
+    boolean decode(PacketView view);
+}
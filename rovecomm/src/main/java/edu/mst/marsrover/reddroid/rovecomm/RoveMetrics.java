@@ -0,0 +1,432 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for rovecomm's hot paths: packets and bytes each way per DataID, how
+ * long encoding, decoding and listeners take, how deep the send queue runs, and socket errors and
+ * malformed packets. Recording never locks or allocates, so it is safe on the receive and send
+ * threads. Rovecomm only records into one of these while metrics are enabled.
+ */
+public class RoveMetrics {
+
+    /**
+     * Where periodic snapshots go, such as the log
+     */
+    public interface Dump {
+
+        void dump(Snapshot snapshot);
+    }
+
+    // DataIDs tracked one by one. Any beyond this are counted together as OTHER_DATA_ID.
+    private final static int DATA_ID_CAPACITY = 256;
+    private final static int MAX_PROBES = 16;
+    public final static int OTHER_DATA_ID = -1;
+
+    // Counters kept for each DataID
+    private final static int PACKETS_SENT = 0;
+    private final static int BYTES_SENT = 1;
+    private final static int PACKETS_RECEIVED = 2;
+    private final static int BYTES_RECEIVED = 3;
+    private final static int COUNTERS = 4;
+
+    // DataID + 1 in each slot, so 0 means free. The last slot of counts is for OTHER_DATA_ID.
+    private final AtomicIntegerArray dataIds = new AtomicIntegerArray(DATA_ID_CAPACITY);
+    private final AtomicLongArray counts = new AtomicLongArray((DATA_ID_CAPACITY + 1) * COUNTERS);
+
+    private final StripedCounter packetsSent = new StripedCounter();
+    private final StripedCounter bytesSent = new StripedCounter();
+    private final StripedCounter packetsReceived = new StripedCounter();
+    private final StripedCounter bytesReceived = new StripedCounter();
+    private final StripedCounter socketErrors = new StripedCounter();
+    private final StripedCounter malformed = new StripedCounter();
+
+    // Times are in nanoseconds, despite the histogram's name for its unit
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram callbackTime = new LatencyHistogram();
+    private final LatencyHistogram queueDepth = new LatencyHistogram();
+
+    private volatile long startTime = System.nanoTime();
+    private Thread dumpThread;
+
+    /**
+     * Counts a packet as it leaves the send queue
+     * @param dataId DataID of the packet
+     * @param bytes Size of its data
+     * @param depth Packets still queued behind it
+     */
+    void onSent(int dataId, int bytes, int depth) {
+
+        int slot = slotOf(dataId) * COUNTERS;
+        counts.incrementAndGet(slot + PACKETS_SENT);
+        counts.addAndGet(slot + BYTES_SENT, bytes);
+        packetsSent.increment();
+        bytesSent.add(bytes);
+        queueDepth.record(depth);
+    }
+
+    /**
+     * Counts a decoded packet
+     * @param dataId DataID of the packet
+     * @param bytes Size of its data
+     */
+    void onReceived(int dataId, int bytes) {
+
+        int slot = slotOf(dataId) * COUNTERS;
+        counts.incrementAndGet(slot + PACKETS_RECEIVED);
+        counts.addAndGet(slot + BYTES_RECEIVED, bytes);
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    void onEncode(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    void onDecode(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    void onCallback(long nanos) {
+        callbackTime.record(nanos);
+    }
+
+    void onSocketError() {
+        socketErrors.increment();
+    }
+
+    void onMalformed() {
+        malformed.increment();
+    }
+
+    /**
+     * Finds a DataID's slot, claiming a free one the first time it is seen
+     * @return Slot index, or DATA_ID_CAPACITY once the table is too full to find it one
+     */
+    private int slotOf(int dataId) {
+
+        int key = dataId + 1;
+        int slot = (key * 0x9E3779B1) >>> 24;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+
+            int current = dataIds.get(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == 0) {
+                if (dataIds.compareAndSet(slot, 0, key)) {
+                    return slot;
+                }
+                // Another thread claimed it first, possibly for this same DataID
+                if (dataIds.get(slot) == key) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & (DATA_ID_CAPACITY - 1);
+        }
+        return DATA_ID_CAPACITY;
+    }
+
+    /**
+     * @return Copy of everything recorded since this was created or last reset. Values recorded
+     * while the copy is made may or may not be included.
+     */
+    public Snapshot snapshot() {
+
+        int found = 0;
+        int[] ids = new int[DATA_ID_CAPACITY + 1];
+        long[][] perId = new long[DATA_ID_CAPACITY + 1][];
+        for (int slot = 0; slot <= DATA_ID_CAPACITY; slot++) {
+
+            int key = (slot < DATA_ID_CAPACITY) ? dataIds.get(slot) : OTHER_DATA_ID + 1;
+            long[] values = new long[COUNTERS];
+            long total = 0;
+            for (int i = 0; i < COUNTERS; i++) {
+                values[i] = counts.get(slot * COUNTERS + i);
+                total += values[i];
+            }
+
+            // The other slot only shows up once something has overflowed into it
+            if (key != 0 || total != 0) {
+                ids[found] = key - 1;
+                perId[found] = values;
+                found++;
+            }
+        }
+
+        long[] encode = LatencyHistogram.newSnapshot();
+        encodeTime.addTo(encode);
+        long[] decode = LatencyHistogram.newSnapshot();
+        decodeTime.addTo(decode);
+        long[] callback = LatencyHistogram.newSnapshot();
+        callbackTime.addTo(callback);
+        long[] depth = LatencyHistogram.newSnapshot();
+        queueDepth.addTo(depth);
+
+        return new Snapshot(System.nanoTime() - startTime, packetsSent.sum(), bytesSent.sum(),
+                packetsReceived.sum(), bytesReceived.sum(), socketErrors.sum(), malformed.sum(),
+                trim(ids, found), trim(perId, found), encode, decode, callback, depth);
+    }
+
+    /**
+     * Clears everything recorded. DataIDs keep their slots.
+     */
+    public void reset() {
+
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        packetsSent.reset();
+        bytesSent.reset();
+        packetsReceived.reset();
+        bytesReceived.reset();
+        socketErrors.reset();
+        malformed.reset();
+        encodeTime.reset();
+        decodeTime.reset();
+        callbackTime.reset();
+        queueDepth.reset();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Starts handing a snapshot to a dump every period on a background thread, replacing any
+     * dump already running
+     * @param period Time between snapshots
+     * @param unit Unit of period
+     * @param dump Where snapshots go
+     */
+    public synchronized void startDump(long period, TimeUnit unit, Dump dump) {
+
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+
+        stopDump();
+        dumpThread = new Thread(new DumpRunnable(unit.toMillis(period), dump), "RoveComm-metrics");
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    public synchronized void stopDump() {
+
+        if (dumpThread != null) {
+            dumpThread.interrupt();
+            dumpThread = null;
+        }
+    }
+
+    private static int[] trim(int[] array, int length) {
+
+        int[] trimmed = new int[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static long[][] trim(long[][] array, int length) {
+
+        long[][] trimmed = new long[length][];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /**
+     * Runnable handing out a snapshot each period
+     */
+    private class DumpRunnable implements Runnable {
+
+        private final long period;
+        private final Dump dump;
+
+        DumpRunnable(long period, Dump dump) {
+            this.period = Math.max(1, period);
+            this.dump = dump;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(period);
+                    dump.dump(snapshot());
+                }
+            } catch (InterruptedException e) {
+                // stopDump() interrupts to end the thread
+            }
+        }
+    }
+
+    /**
+     * Metrics at one moment. Times are in nanoseconds, and percentiles are the upper bound of the
+     * histogram bucket they fall in, so within about 6%.
+     */
+    public static class Snapshot {
+
+        private final long elapsed;
+        private final long packetsSent;
+        private final long bytesSent;
+        private final long packetsReceived;
+        private final long bytesReceived;
+        private final long socketErrors;
+        private final long malformed;
+        private final int[] dataIds;
+        private final long[][] perDataId;
+        private final long[] encodeTime;
+        private final long[] decodeTime;
+        private final long[] callbackTime;
+        private final long[] queueDepth;
+
+        Snapshot(long elapsed, long packetsSent, long bytesSent, long packetsReceived,
+                 long bytesReceived, long socketErrors, long malformed, int[] dataIds,
+                 long[][] perDataId, long[] encodeTime, long[] decodeTime, long[] callbackTime,
+                 long[] queueDepth) {
+            this.elapsed = elapsed;
+            this.packetsSent = packetsSent;
+            this.bytesSent = bytesSent;
+            this.packetsReceived = packetsReceived;
+            this.bytesReceived = bytesReceived;
+            this.socketErrors = socketErrors;
+            this.malformed = malformed;
+            this.dataIds = dataIds;
+            this.perDataId = perDataId;
+            this.encodeTime = encodeTime;
+            this.decodeTime = decodeTime;
+            this.callbackTime = callbackTime;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * @return Nanoseconds covered, since metrics were enabled or last reset
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public long getPacketsSent() {
+            return packetsSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getPacketsReceived() {
+            return packetsReceived;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getSocketErrorCount() {
+            return socketErrors;
+        }
+
+        public long getMalformedCount() {
+            return malformed;
+        }
+
+        /**
+         * @return Every DataID sent or received, plus OTHER_DATA_ID if there were too many to
+         * track one by one
+         */
+        public int[] getDataIds() {
+            return dataIds.clone();
+        }
+
+        public long getPacketsSent(int dataId) {
+            return count(dataId, PACKETS_SENT);
+        }
+
+        public long getBytesSent(int dataId) {
+            return count(dataId, BYTES_SENT);
+        }
+
+        public long getPacketsReceived(int dataId) {
+            return count(dataId, PACKETS_RECEIVED);
+        }
+
+        public long getBytesReceived(int dataId) {
+            return count(dataId, BYTES_RECEIVED);
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Nanoseconds taken to encode a packet's header into the send buffer
+         */
+        public long getEncodeTime(double percentile) {
+            return LatencyHistogram.percentile(encodeTime, percentile);
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Nanoseconds taken to decode a received datagram
+         */
+        public long getDecodeTime(double percentile) {
+            return LatencyHistogram.percentile(decodeTime, percentile);
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Nanoseconds spent in handlers and listeners for each packet delivered
+         */
+        public long getCallbackTime(double percentile) {
+            return LatencyHistogram.percentile(callbackTime, percentile);
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Packets still in the send queue as each one was taken to be sent
+         */
+        public long getQueueDepth(double percentile) {
+            return LatencyHistogram.percentile(queueDepth, percentile);
+        }
+
+        private long count(int dataId, int counter) {
+
+            for (int i = 0; i < dataIds.length; i++) {
+                if (dataIds[i] == dataId) {
+                    return perDataId[i][counter];
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+
+            double seconds = Math.max(elapsed, 1) / 1e9;
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US,
+                    "%.1fs: sent %d packets %d bytes, received %d packets %d bytes, "
+                            + "socket errors %d, malformed %d%n",
+                    seconds, packetsSent, bytesSent, packetsReceived, bytesReceived,
+                    socketErrors, malformed));
+            builder.append(String.format(Locale.US,
+                    "encode ns p50 %d p99 %d, decode ns p50 %d p99 %d, "
+                            + "callback ns p50 %d p99 %d max %d, queue depth p50 %d max %d",
+                    getEncodeTime(50), getEncodeTime(99), getDecodeTime(50), getDecodeTime(99),
+                    getCallbackTime(50), getCallbackTime(99), getCallbackTime(100),
+                    getQueueDepth(50), getQueueDepth(100)));
+            for (int i = 0; i < dataIds.length; i++) {
+
+                // DataIDs keep their slot through a reset, so skip any quiet since
+                long[] values = perDataId[i];
+                if (values[PACKETS_SENT] == 0 && values[PACKETS_RECEIVED] == 0) {
+                    continue;
+                }
+                builder.append(String.format(Locale.US,
+                        "%n  %s: sent %d (%d B), received %d (%d B, %.1f/s)",
+                        dataIds[i] == OTHER_DATA_ID ? "other" : String.valueOf(dataIds[i]),
+                        values[PACKETS_SENT], values[BYTES_SENT], values[PACKETS_RECEIVED],
+                        values[BYTES_RECEIVED], values[PACKETS_RECEIVED] / seconds));
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A board on the rover network, resolved once when created. Keep one around for each board that
+ * is sent to often instead of passing its ip to rovecomm every time.
+ */
+public final class RoveNode {
+
+    private final String ip;
+    private final InetSocketAddress address;
+
+    /**
+     * Constructor for a node on the rovecomm port. Host names are looked up here, so call it off
+     * the main thread unless ip is a numeric address.
+     * @param ip String ip or host name of node
+     * @throws UnknownHostException If the node could not be resolved
+     */
+    public RoveNode(String ip) throws UnknownHostException {
+        this(ip, RoveComm.DEFAULT_PORT);
+    }
+
+    /**
+     * Constructor for a node listening on a port other than rovecomm's
+     * @param ip String ip or host name of node
+     * @param port UDP port of node
+     * @throws UnknownHostException If the node could not be resolved
+     */
+    public RoveNode(String ip, int port) throws UnknownHostException {
+        this.ip = ip;
+        this.address = new InetSocketAddress(InetAddress.getByName(ip), port);
+    }
+
+    /**
+     * @return The ip or host name the node was created with
+     */
+    public String getIp() {
+        return ip;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RoveNode && address.equals(((RoveNode) other).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return ip;
+    }
+}
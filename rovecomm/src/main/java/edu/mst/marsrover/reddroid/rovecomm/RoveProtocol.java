@@ -0,0 +1,413 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class RoveProtocol {
+
+    // Version number of this packet implementation
+    private static final byte VERSION_NUMBER = 1;
+
+    // Version whose header is followed by the sender's clock when the packet was sent. Nodes
+    // that only know version 1 drop these as malformed, so only send them to nodes that don't.
+    private static final byte TIMESTAMPED_VERSION = 2;
+
+    // Size of the header in front of every packet's data
+    public static final int HEADER_SIZE = 8;
+
+    // Size of the timestamped header, the usual header then an 8 byte timestamp
+    public static final int TIMESTAMPED_HEADER_SIZE = HEADER_SIZE + 8;
+
+    // Used in place of null data, such as for subscribe requests
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Outcome of decoding a packet. Anything other than OK means the packet is malformed and
+     * nothing in the view should be trusted.
+     */
+    public enum Status {
+
+        OK,
+        // Fewer bytes than a header
+        TOO_SHORT,
+        // Version byte isn't one this implementation knows
+        UNKNOWN_VERSION,
+        // Header claims more data than arrived
+        TRUNCATED,
+        // A batch inside a batch, only reported by decodeRecord()
+        NESTED_BATCH
+    }
+
+    private RoveProtocol() {
+    }
+
+    /**
+     * Static method to encode data into a packet byte[] readable by rovecomm
+     * @param dataId ID given to the data[] for receiving node to interpret data correctly
+     * @param data Data byte[], refer to data ID's definition for structure required. May be null.
+     * @param seqNum Order of packet in packet sequence
+     * @param requireACK Should packet be delivered TCP
+     * @return Packet data[] ready for sending
+     */
+    public static byte[] encodePacket(int dataId, byte[] data, int seqNum, boolean requireACK) {
+
+        if (data == null) data = EMPTY;
+
+        byte[] packet = new byte[HEADER_SIZE + data.length];
+        encodePacket(dataId, data, 0, data.length, seqNum, requireACK, packet, 0);
+        return packet;
+    }
+
+    /**
+     * Static method to encode data into a caller supplied array, without allocating
+     * @param dataId ID given to the data[] for receiving node to interpret data correctly
+     * @param data Array holding the data, refer to data ID's definition for structure required
+     * @param dataOffset Index of the first data byte
+     * @param dataLength Number of data bytes
+     * @param seqNum Order of packet in packet sequence
+     * @param requireACK Should packet be delivered TCP
+     * @param packet Array the packet is written into
+     * @param packetOffset Index in packet to write the header at
+     * @return Number of bytes written, HEADER_SIZE + dataLength
+     */
+    public static int encodePacket(int dataId, byte[] data, int dataOffset, int dataLength,
+                                   int seqNum, boolean requireACK, byte[] packet, int packetOffset) {
+
+        byte flags = (requireACK) ? Flags.ACK.data : Flags.NONE.data;
+
+        // Creating 8 Byte header
+        packet[packetOffset] = VERSION_NUMBER;
+        // Sequence Number in two bytes
+        packet[packetOffset + 1] = (byte) (seqNum >> 8);
+        packet[packetOffset + 2] = (byte) (seqNum & 0x00FF);
+        packet[packetOffset + 3] = flags;
+        // Data ID Number in two bytes
+        packet[packetOffset + 4] = (byte) (dataId >> 8);
+        packet[packetOffset + 5] = (byte) (dataId & 0x00FF);
+        // Data size/length in two bytes
+        packet[packetOffset + 6] = (byte) (dataLength >> 8);
+        packet[packetOffset + 7] = (byte) (dataLength & 0x00FF);
+
+        // Insert data into array
+        System.arraycopy(data, dataOffset, packet, packetOffset + HEADER_SIZE, dataLength);
+
+        return HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * Static method to encode data with the timestamped header into a caller supplied array,
+     * without allocating
+     * @param dataId ID given to the data[] for receiving node to interpret data correctly
+     * @param data Array holding the data, refer to data ID's definition for structure required
+     * @param dataOffset Index of the first data byte
+     * @param dataLength Number of data bytes
+     * @param seqNum Order of packet in packet sequence
+     * @param requireACK Should packet be delivered TCP
+     * @param timestamp Sender's monotonic clock when sent, in microseconds
+     * @param packet Array the packet is written into
+     * @param packetOffset Index in packet to write the header at
+     * @return Number of bytes written, TIMESTAMPED_HEADER_SIZE + dataLength
+     */
+    public static int encodeTimestampedPacket(int dataId, byte[] data, int dataOffset,
+                                              int dataLength, int seqNum, boolean requireACK,
+                                              long timestamp, byte[] packet, int packetOffset) {
+
+        encodePacket(dataId, data, dataOffset, dataLength, seqNum, requireACK, packet,
+                packetOffset + 8);
+        // The usual header is written 8 bytes on and moved back, leaving room for the timestamp
+        System.arraycopy(packet, packetOffset + 8, packet, packetOffset, HEADER_SIZE);
+        packet[packetOffset] = TIMESTAMPED_VERSION;
+        for (int i = 0; i < 8; i++) {
+            packet[packetOffset + HEADER_SIZE + i] = (byte) (timestamp >> (56 - 8 * i));
+        }
+
+        return TIMESTAMPED_HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * Static method to encode data with the timestamped header into a caller supplied buffer,
+     * without allocating. The packet is written at the buffer's position, which is advanced past
+     * it.
+     * @param dataId ID given to the data[] for receiving node to interpret data correctly
+     * @param data Array holding the data, refer to data ID's definition for structure required
+     * @param dataOffset Index of the first data byte
+     * @param dataLength Number of data bytes
+     * @param seqNum Order of packet in packet sequence
+     * @param requireACK Should packet be delivered TCP
+     * @param timestamp Sender's monotonic clock when sent, in microseconds
+     * @param buffer Buffer the packet is written into, heap or direct
+     * @return Number of bytes written, TIMESTAMPED_HEADER_SIZE + dataLength
+     */
+    public static int encodeTimestampedPacket(int dataId, byte[] data, int dataOffset,
+                                              int dataLength, int seqNum, boolean requireACK,
+                                              long timestamp, ByteBuffer buffer) {
+
+        int start = buffer.position();
+        encodePacket(dataId, data, 0, 0, seqNum, requireACK, buffer);
+        buffer.put(start, TIMESTAMPED_VERSION);
+        // Data size/length counts only the data, not the timestamp
+        buffer.put(start + 6, (byte) (dataLength >> 8));
+        buffer.put(start + 7, (byte) (dataLength & 0x00FF));
+        buffer.putLong(timestamp);
+        buffer.put(data, dataOffset, dataLength);
+
+        return TIMESTAMPED_HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * Static method to encode data into a caller supplied buffer, without allocating. The packet
+     * is written at the buffer's position, which is advanced past it.
+     * @param dataId ID given to the data[] for receiving node to interpret data correctly
+     * @param data Array holding the data, refer to data ID's definition for structure required
+     * @param dataOffset Index of the first data byte
+     * @param dataLength Number of data bytes
+     * @param seqNum Order of packet in packet sequence
+     * @param requireACK Should packet be delivered TCP
+     * @param buffer Buffer the packet is written into, heap or direct
+     * @return Number of bytes written, HEADER_SIZE + dataLength
+     */
+    public static int encodePacket(int dataId, byte[] data, int dataOffset, int dataLength,
+                                   int seqNum, boolean requireACK, ByteBuffer buffer) {
+
+        byte flags = (requireACK) ? Flags.ACK.data : Flags.NONE.data;
+
+        // Creating 8 Byte header
+        buffer.put(VERSION_NUMBER);
+        // Sequence Number in two bytes
+        buffer.put((byte) (seqNum >> 8));
+        buffer.put((byte) (seqNum & 0x00FF));
+        buffer.put(flags);
+        // Data ID Number in two bytes
+        buffer.put((byte) (dataId >> 8));
+        buffer.put((byte) (dataId & 0x00FF));
+        // Data size/length in two bytes
+        buffer.put((byte) (dataLength >> 8));
+        buffer.put((byte) (dataLength & 0x00FF));
+
+        // Insert data into buffer
+        buffer.put(data, dataOffset, dataLength);
+
+        return HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * Static method to write the header in front of a batch. A batch is a packet whose data is
+     * several whole packets, header and all, one after another. Nodes that understand the BATCH
+     * flag hand each one out as though it arrived alone.
+     * @param packet Buffer holding the batch, with room for the header at offset
+     * @param offset Index to write the header at
+     * @param recordsLength Number of bytes of packets following the header
+     */
+    public static void encodeBatchHeader(ByteBuffer packet, int offset, int recordsLength) {
+
+        packet.put(offset, VERSION_NUMBER);
+        // Batches are never acknowledged themselves, so no sequence number or DataID
+        packet.put(offset + 1, (byte) 0);
+        packet.put(offset + 2, (byte) 0);
+        packet.put(offset + 3, Flags.BATCH.data);
+        packet.put(offset + 4, (byte) 0);
+        packet.put(offset + 5, (byte) 0);
+        packet.put(offset + 6, (byte) (recordsLength >> 8));
+        packet.put(offset + 7, (byte) (recordsLength & 0x00FF));
+    }
+
+    /**
+     * Static method to decode recieved packet from rovecomm
+     * @param rawData Packet data[] including header
+     * @return DataObject containing dataID, sequence number, acknowledgement status, and data[]
+     * @throws Exception when it's a version not defined, or the packet is shorter than its
+     * header says
+     */
+    public static DataObject decodePacket(byte[] rawData) throws Exception {
+
+        if (rawData.length < HEADER_SIZE) {
+            throw new Exception("Packet shorter than header!");
+        }
+
+        int protocol_version = rawData[0] & 0xFF;
+        byte[] data;
+        int dataId;
+        int seqNum;
+        boolean requiresAck;
+
+        int dataSize;
+        byte flags;
+
+        switch (protocol_version) {
+            case 1:
+
+                // Mask each byte, as Java bytes are signed
+                seqNum = ((rawData[1] & 0xFF) << 8) | (rawData[2] & 0xFF);
+                flags = rawData[3];
+                dataId = ((rawData[4] & 0xFF) << 8) | (rawData[5] & 0xFF);
+                dataSize = ((rawData[6] & 0xFF) << 8) | (rawData[7] & 0xFF);
+
+                if (dataSize > rawData.length - HEADER_SIZE) {
+                    throw new Exception("Packet shorter than header says!");
+                }
+
+                requiresAck = (flags & Flags.ACK.data) != Flags.NONE.data;
+                data = Arrays.copyOfRange(rawData, 8, 8 + dataSize);
+
+                return new DataObject(data, dataId, seqNum, requiresAck);
+
+            case 2:
+
+                // As version 1, with the timestamp between header and data
+                if (rawData.length < TIMESTAMPED_HEADER_SIZE) {
+                    throw new Exception("Packet shorter than header!");
+                }
+                seqNum = ((rawData[1] & 0xFF) << 8) | (rawData[2] & 0xFF);
+                flags = rawData[3];
+                dataId = ((rawData[4] & 0xFF) << 8) | (rawData[5] & 0xFF);
+                dataSize = ((rawData[6] & 0xFF) << 8) | (rawData[7] & 0xFF);
+
+                if (dataSize > rawData.length - TIMESTAMPED_HEADER_SIZE) {
+                    throw new Exception("Packet shorter than header says!");
+                }
+
+                requiresAck = (flags & Flags.ACK.data) != Flags.NONE.data;
+                data = Arrays.copyOfRange(rawData, TIMESTAMPED_HEADER_SIZE,
+                        TIMESTAMPED_HEADER_SIZE + dataSize);
+
+                return new DataObject(data, dataId, seqNum, requiresAck);
+
+            default:
+                throw new Exception("Non-existent packet version!");
+        }
+    }
+
+    /**
+     * Static method to decode a received packet in place, without copying its data out
+     * @param view View whose buffer holds the packet between position and limit. Its header fields
+     *             and data window are set from the packet.
+     * @throws Exception if the packet is malformed
+     */
+    public static void decodePacket(PacketView view) throws Exception {
+
+        ByteBuffer packet = view.getBuffer();
+        Status status = decodePacket(view, packet.position(), packet.remaining());
+        if (status != Status.OK) {
+            throw new Exception("Malformed packet: " + status);
+        }
+    }
+
+    /**
+     * Static method to decode and validate a received packet in place. Never throws or allocates,
+     * so it is safe in the receive loop no matter what arrives.
+     * @param view View whose buffer holds the packet. Its header fields and data window are set
+     *             from the packet if it is OK, and left alone otherwise.
+     * @param offset Index in the view's buffer of the first header byte
+     * @param length Number of bytes received from offset on
+     * @return OK, or why the packet is malformed
+     */
+    public static Status decodePacket(PacketView view, int offset, int length) {
+
+        ByteBuffer packet = view.getBuffer();
+        if (offset < 0 || length < HEADER_SIZE || offset > packet.limit() - length) {
+            return Status.TOO_SHORT;
+        }
+
+        int protocol_version = packet.get(offset) & 0xFF;
+        int headerSize;
+
+        switch (protocol_version) {
+            case 1:
+                headerSize = HEADER_SIZE;
+                break;
+            case 2:
+                headerSize = TIMESTAMPED_HEADER_SIZE;
+                if (length < headerSize) {
+                    return Status.TOO_SHORT;
+                }
+                break;
+            default:
+                return Status.UNKNOWN_VERSION;
+        }
+
+        int seqNum = ((packet.get(offset + 1) & 0xFF) << 8) | (packet.get(offset + 2) & 0xFF);
+        byte flags = packet.get(offset + 3);
+        int dataId = ((packet.get(offset + 4) & 0xFF) << 8) | (packet.get(offset + 5) & 0xFF);
+        int dataSize = ((packet.get(offset + 6) & 0xFF) << 8) | (packet.get(offset + 7) & 0xFF);
+
+        // Anything after the data is ignored, but the data must all be there
+        if (dataSize > length - headerSize) {
+            return Status.TRUNCATED;
+        }
+
+        boolean requiresAck = (flags & Flags.ACK.data) != Flags.NONE.data;
+        boolean batch = (flags & Flags.BATCH.data) != Flags.NONE.data;
+        view.set(dataId, seqNum, requiresAck, offset + headerSize, dataSize, batch);
+        if (headerSize == TIMESTAMPED_HEADER_SIZE) {
+            view.setTimestamp(packet.getLong(offset + HEADER_SIZE));
+        } else {
+            view.setTimestamp(PacketView.NO_TIMESTAMP);
+        }
+        return Status.OK;
+    }
+
+    /**
+     * Static method to decode one of the packets inside a batch, as decodePacket() but also
+     * rejecting batches within batches
+     * @param view View whose buffer holds the batch
+     * @param offset Index in the view's buffer of the packet's first header byte
+     * @param length Number of bytes left in the batch from offset on
+     * @return OK, or why the packet is malformed
+     */
+    public static Status decodeRecord(PacketView view, int offset, int length) {
+
+        Status status = decodePacket(view, offset, length);
+        if (status == Status.OK && view.isBatch()) {
+            return Status.NESTED_BATCH;
+        }
+        return status;
+    }
+
+    /**
+     * Enum to handle possible acknowledgement states (true/false but fancy)
+     */
+    private enum Flags {
+
+        NONE((byte) 0b0000000), ACK((byte) 0b000_0001), BATCH((byte) 0b000_0010);
+
+        private byte data;
+
+        Flags(byte data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Object class to contain data that is decoded from a packet. Is immutable, or should be.
+     */
+    public static class DataObject {
+
+        private byte[] data;
+        private int dataId;
+        private int seqNum;
+        private boolean requiresAck;
+
+        DataObject(byte[] data, int dataId, int seqNum, boolean requiresAck) {
+            this.data = data;
+            this.dataId = dataId;
+            this.seqNum = seqNum;
+            this.requiresAck = requiresAck;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getDataId() {
+            return dataId;
+        }
+
+        public int getSeqNum() {
+            return seqNum;
+        }
+
+        public boolean isRequiresAck() {
+            return requiresAck;
+        }
+    }
+}
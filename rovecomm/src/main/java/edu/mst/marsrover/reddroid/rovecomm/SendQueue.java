@@ -0,0 +1,913 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of packets waiting to be sent by rovecomm's dispatcher thread. Entries and their
+ * data buffers are allocated once up front and reused, so queueing a packet does not create
+ * garbage. Data is copied in when offered, so callers are free to reuse their arrays.
+ *
+ * DataIDs can also be set to coalesce. Those skip the ring buffer and instead keep only the
+ * latest unsent value per destination, which is released at most at the DataID's max rate.
+ *
+ * Each DataID has a priority, and each priority its own lane with its own ring buffer. Critical
+ * packets always go first. The other lanes share what's left by weight, so bulk traffic keeps
+ * moving without holding up anything more urgent.
+ */
+public class SendQueue {
+
+    /**
+     * How urgently a DataID's packets are sent, and how they are marked for the network. The
+     * traffic classes are DSCP values, which Wi-Fi access points map to WMM access categories.
+     */
+    public enum Priority {
+
+        // Strict priority, such as drive commands and stops. CS6, WMM voice.
+        CRITICAL(0, 0xC0),
+        // Link upkeep, such as pings and acknowledgements. AF41, WMM video.
+        HIGH(4, 0x88),
+        // Everything not given a priority. Best effort.
+        NORMAL(2, 0x00),
+        // Large transfers and anything else that can wait. CS1, WMM background.
+        BULK(1, 0x20);
+
+        private final int weight;
+        private final int trafficClass;
+
+        Priority(int weight, int trafficClass) {
+            this.weight = weight;
+            this.trafficClass = trafficClass;
+        }
+
+        /**
+         * @return Share of sends this lane gets among the non-critical lanes with packets waiting
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return Value for the IP header's TOS byte, as passed to setTrafficClass()
+         */
+        public int getTrafficClass() {
+            return trafficClass;
+        }
+    }
+
+    /**
+     * What to do with a packet offered while the queue is full
+     */
+    public enum OverflowPolicy {
+
+        // Throw away the oldest queued packet to make room for the new one
+        DROP_OLDEST,
+        // Throw away the packet being offered
+        DROP_NEWEST,
+        // Make the offering thread wait until there is room
+        BLOCK
+    }
+
+    private final Lane[] lanes;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int maxDataSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private boolean closed = false;
+
+    // DataIDs given a priority other than NORMAL, guarded by lock
+    private int[] priorityIds = new int[0];
+    private Priority[] priorities = new Priority[0];
+
+    private volatile Runnable onOffer;
+
+    // Coalesced DataIDs and the minimum time between their sends, guarded by lock
+    private int[] coalescedIds = new int[0];
+    private long[] coalescedIntervals = new long[0];
+    private final ArrayList<CoalescedSlot> slots = new ArrayList<>();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+
+    /**
+     * Constructor for a send queue
+     * @param capacity Maximum number of packets waiting to be sent in each priority's lane
+     * @param policy What to do when a packet is offered to a full queue
+     * @param maxDataSize Largest data byte[] that can be offered
+     */
+    public SendQueue(int capacity, OverflowPolicy policy, int maxDataSize) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.policy = policy;
+        this.maxDataSize = maxDataSize;
+        this.capacity = capacity;
+        Priority[] values = Priority.values();
+        this.lanes = new Lane[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lanes[i] = new Lane(values[i], capacity, maxDataSize);
+        }
+    }
+
+    /**
+     * Adds a packet to the back of the queue, applying the overflow policy if it is full
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID. May be null.
+     * @param destination Resolved address of node
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(int id, byte[] contents, InetSocketAddress destination) {
+        return offer(id, contents, (contents == null) ? 0 : contents.length, destination, 0, false);
+    }
+
+    /**
+     * Adds a packet with header fields for reliable delivery. Packets requiring an ACK are never
+     * coalesced, as each one is tracked until acknowledged.
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID. May be null.
+     * @param length Number of bytes of contents to send
+     * @param destination Resolved address of node
+     * @param seqNum Sequence number to put in the header
+     * @param requireAck Whether to set the ACK flag in the header
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(int id, byte[] contents, int length, InetSocketAddress destination, int seqNum,
+                         boolean requireAck) {
+        return enqueue(id, contents, null, null, length, destination, seqNum, requireAck);
+    }
+
+    /**
+     * Adds a packet, waiting for room if the queue is full whatever the overflow policy, so a run
+     * of packets that only make sense together neither loses any nor pushes out others
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param length Number of bytes of contents to send
+     * @param destination Resolved address of node
+     * @param seqNum Sequence number to put in the header
+     * @return False if the queue was closed or the thread interrupted while waiting
+     */
+    boolean offerWaiting(int id, byte[] contents, int length, InetSocketAddress destination,
+                         int seqNum) {
+        return enqueue(id, contents, null, null, length, destination, seqNum, false,
+                OverflowPolicy.BLOCK, false);
+    }
+
+    /**
+     * Adds a packet without ever waiting for room, for replies made on a thread that may be the
+     * one emptying the queue. Under BLOCK, a packet for a full lane is dropped instead.
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID. May be null.
+     * @param length Number of bytes of contents to send
+     * @param destination Resolved address of node
+     * @param seqNum Sequence number to put in the header
+     * @param requireAck Whether to set the ACK flag in the header
+     * @return True if the packet was queued, false if it was dropped
+     */
+    boolean offerNow(int id, byte[] contents, int length, InetSocketAddress destination,
+                     int seqNum, boolean requireAck) {
+        return enqueue(id, contents, null, null, length, destination, seqNum, requireAck,
+                policyNow(), false);
+    }
+
+    /**
+     * Adds a packet whose data is in a buffer without ever waiting for room, as offerNow() does
+     * @param id DataID for the data
+     * @param data Data from position to limit is copied. The position is left where it was.
+     * @param destination Resolved address of node
+     * @return True if the packet was queued, false if it was dropped
+     */
+    boolean offerNow(int id, ByteBuffer data, InetSocketAddress destination) {
+        return enqueue(id, null, data, null, data.remaining(), destination, 0, false, policyNow(),
+                false);
+    }
+
+    /**
+     * Adds a packet that is sent with the timestamped header whatever its DataID, such as a
+     * reply to a node known to understand it. Like offerNow(), it never waits for room.
+     * @param id DataID for the data
+     * @param contents Data byte[], formatted for specific dataID
+     * @param destination Resolved address of node
+     * @return True if the packet was queued, false if it was dropped
+     */
+    boolean offerTimestamped(int id, byte[] contents, InetSocketAddress destination) {
+        return enqueue(id, contents, null, null, contents.length, destination, 0, false,
+                policyNow(), true);
+    }
+
+    /**
+     * @return The overflow policy, with BLOCK swapped for DROP_NEWEST
+     */
+    private OverflowPolicy policyNow() {
+        return (policy == OverflowPolicy.BLOCK) ? OverflowPolicy.DROP_NEWEST : policy;
+    }
+
+    /**
+     * Adds a packet whose data is in a buffer, such as a received packet being echoed back
+     * @param id DataID for the data
+     * @param data Data from position to limit is copied. The position is left where it was.
+     * @param destination Resolved address of node
+     * @return True if the packet was queued, false if it was dropped
+     */
+    public boolean offer(int id, ByteBuffer data, InetSocketAddress destination) {
+        return enqueue(id, null, data, null, data.remaining(), destination, 0, false);
+    }
+
+    /**
+     * Queues a typed message, encoded straight into the queue's own buffer
+     * @param message Message to send. It is encoded before this returns, so can be reused after.
+     * @param destination Resolved address of node
+     * @return False if the packet was dropped
+     */
+    public boolean offer(RoveMessage message, InetSocketAddress destination) {
+        return enqueue(message.getDataId(), null, null, message, message.getSize(), destination, 0,
+                false);
+    }
+
+    /**
+     * Queues data from an array, a buffer or a message, whichever isn't null
+     */
+    private boolean enqueue(int id, byte[] contents, ByteBuffer buffer, RoveMessage message,
+                            int length, InetSocketAddress destination, int seqNum,
+                            boolean requireAck) {
+        return enqueue(id, contents, buffer, message, length, destination, seqNum, requireAck,
+                policy, false);
+    }
+
+    /**
+     * Queues data as enqueue() does, with the given overflow policy in place of the queue's own,
+     * and optionally always timestamped. Timestamped packets are never coalesced.
+     */
+    private boolean enqueue(int id, byte[] contents, ByteBuffer buffer, RoveMessage message,
+                            int length, InetSocketAddress destination, int seqNum,
+                            boolean requireAck, OverflowPolicy overflow, boolean timestamped) {
+
+        if (length > maxDataSize) {
+            throw new IllegalArgumentException("Data is larger than " + maxDataSize + " bytes");
+        }
+
+        lock.lock();
+        try {
+
+            if (closed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            int coalesced = (requireAck || timestamped) ? -1 : indexOfCoalesced(id);
+            if (coalesced != -1) {
+                offerLatest(coalesced, id, contents, buffer, message, length, destination);
+                notifyOffer();
+                return true;
+            }
+
+            Lane lane = lanes[priorityOf(id).ordinal()];
+            if (lane.count == capacity) {
+                switch (overflow) {
+
+                    case DROP_OLDEST:
+                        lane.head = (lane.head + 1) % capacity;
+                        lane.count--;
+                        dropped.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return false;
+                    case BLOCK:
+                        while (lane.count == capacity && !closed) {
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                dropped.incrementAndGet();
+                                return false;
+                            }
+                        }
+                        if (closed) {
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                }
+            }
+
+            Entry entry = lane.entries[(lane.head + lane.count) % capacity];
+            entry.set(id, contents, buffer, message, length, destination, seqNum, requireAck);
+            entry.timestamped = timestamped;
+            lane.count++;
+            enqueued.incrementAndGet();
+            notEmpty.signal();
+            notifyOffer();
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifyOffer() {
+
+        Runnable callback = onOffer;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Removes the packet at the front of the queue, waiting until one is available
+     * @param out Entry from newEntry(). Its buffer is traded with the queue slot's, so the slot can
+     *            be reused immediately without copying.
+     * @return True if a packet was copied into out, false if the queue has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean take(Entry out) throws InterruptedException {
+
+        lock.lock();
+        try {
+
+            while (!closed) {
+
+                long wait = dequeue(out, System.nanoTime());
+                if (wait == 0) {
+                    return true;
+                } else if (wait > 0) {
+                    notEmpty.awaitNanos(wait);
+                } else {
+                    notEmpty.await();
+                }
+            }
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the packet at the front of the queue, waiting at most timeout for one
+     * @param out Entry from newEntry(), as with take()
+     * @param timeout Longest time to wait
+     * @param unit Unit of timeout
+     * @return True if a packet was copied into out, false if timed out or the queue has been
+     * closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean take(Entry out, long timeout, TimeUnit unit) throws InterruptedException {
+
+        long remaining = unit.toNanos(timeout);
+
+        lock.lock();
+        try {
+
+            while (!closed) {
+
+                long wait = dequeue(out, System.nanoTime());
+                if (wait == 0) {
+                    return true;
+                } else if (remaining <= 0) {
+                    return false;
+                }
+
+                long sleep = (wait > 0) ? Math.min(wait, remaining) : remaining;
+                remaining -= sleep - notEmpty.awaitNanos(sleep);
+            }
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the packet at the front of the queue without waiting, for event loops that do
+     * their own waiting
+     * @param out Entry from newEntry(), as with take()
+     * @return 0 if a packet was copied into out. Otherwise the nanoseconds until a coalesced value
+     * is due, or -1 if nothing is waiting at all.
+     */
+    public long poll(Entry out) {
+
+        lock.lock();
+        try {
+            return closed ? -1 : dequeue(out, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets a callback run after every packet is offered, such as to wake an event loop's selector
+     * @param onOffer Callback, or null for none
+     */
+    public void setOnOffer(Runnable onOffer) {
+        this.onOffer = onOffer;
+    }
+
+    /**
+     * Moves the next packet into out. Caller must hold lock.
+     * @return Same as poll()
+     */
+    private long dequeue(Entry out, long now) {
+
+        // Critical packets go first, whatever else is waiting
+        if (dequeue(lanes[Priority.CRITICAL.ordinal()], out, now)) {
+            return 0;
+        }
+
+        // The other lanes with something to send share by weight. Each is credited its weight,
+        // the most credited goes, and it pays back the total, which spreads each lane's turns
+        // evenly instead of sending its whole share in a burst.
+        Lane next = null;
+        int total = 0;
+        for (int i = Priority.CRITICAL.ordinal() + 1; i < lanes.length; i++) {
+
+            Lane lane = lanes[i];
+            if (lane.count > 0 || nextDueSlot(lane.priority, now) != null) {
+                lane.credit += lane.priority.weight;
+                total += lane.priority.weight;
+                if (next == null || lane.credit > next.credit) {
+                    next = lane;
+                }
+            }
+        }
+        if (next != null) {
+            next.credit -= total;
+            dequeue(next, out, now);
+            return 0;
+        }
+
+        CoalescedSlot slot = nextPendingSlot();
+        return (slot == null) ? -1 : slot.nextSendTime - now;
+    }
+
+    /**
+     * Moves the next packet in one lane into out, a coalesced value that is due before anything
+     * in the ring. Caller must hold lock.
+     * @return False if the lane has nothing to send yet
+     */
+    private boolean dequeue(Lane lane, Entry out, long now) {
+
+        CoalescedSlot slot = nextDueSlot(lane.priority, now);
+
+        if (slot != null) {
+
+            // Latest value for a coalesced DataID is due
+            out.swap(slot);
+            slot.pending = false;
+            slot.nextSendTime = now + coalescedIntervals[indexOfCoalesced(slot.slotId)];
+
+        } else if (lane.count > 0) {
+
+            out.swap(lane.entries[lane.head]);
+
+            lane.head = (lane.head + 1) % capacity;
+            lane.count--;
+            // Waiters may be after room in any lane
+            notFull.signalAll();
+
+        } else {
+            return false;
+        }
+
+        out.priority = lane.priority;
+        return true;
+    }
+
+    /**
+     * Sets how urgently a DataID is sent. Packets already queued keep their place.
+     * @param id DataID to set
+     * @param priority Its priority. NORMAL is the default.
+     */
+    public void setPriority(int id, Priority priority) {
+
+        lock.lock();
+        try {
+
+            int index = indexOfPriority(id);
+            if (index == -1) {
+                index = priorityIds.length;
+                int[] ids = new int[index + 1];
+                Priority[] values = new Priority[index + 1];
+                System.arraycopy(priorityIds, 0, ids, 0, index);
+                System.arraycopy(priorities, 0, values, 0, index);
+                priorityIds = ids;
+                priorities = values;
+            }
+
+            priorityIds[index] = id;
+            priorities[index] = priority;
+
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i).slotId == id) {
+                    slots.get(i).priority = priority;
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param id DataID to look up
+     * @return Its priority, NORMAL unless set otherwise
+     */
+    public Priority getPriority(int id) {
+
+        lock.lock();
+        try {
+            return priorityOf(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes a DataID latest-wins. A new value for the same DataID and destination replaces any
+     * unsent one, and values are sent no faster than maxRate.
+     * @param id DataID to coalesce
+     * @param maxRate Maximum sends per second for each destination
+     */
+    public void setCoalesced(int id, int maxRate) {
+
+        if (maxRate < 1) {
+            throw new IllegalArgumentException("Max rate must be at least 1 per second");
+        }
+
+        lock.lock();
+        try {
+
+            long interval = TimeUnit.SECONDS.toNanos(1) / maxRate;
+            int index = indexOfCoalesced(id);
+
+            if (index == -1) {
+                index = coalescedIds.length;
+                int[] ids = new int[index + 1];
+                long[] intervals = new long[index + 1];
+                System.arraycopy(coalescedIds, 0, ids, 0, index);
+                System.arraycopy(coalescedIntervals, 0, intervals, 0, index);
+                coalescedIds = ids;
+                coalescedIntervals = intervals;
+            }
+
+            coalescedIds[index] = id;
+            coalescedIntervals[index] = interval;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a DataID to normal queueing. Any value still waiting is moved into the queue.
+     * @param id DataID to stop coalescing
+     */
+    public void clearCoalesced(int id) {
+
+        lock.lock();
+        try {
+
+            int index = indexOfCoalesced(id);
+            if (index == -1) {
+                return;
+            }
+
+            int[] ids = new int[coalescedIds.length - 1];
+            long[] intervals = new long[coalescedIds.length - 1];
+            System.arraycopy(coalescedIds, 0, ids, 0, index);
+            System.arraycopy(coalescedIds, index + 1, ids, index, ids.length - index);
+            System.arraycopy(coalescedIntervals, 0, intervals, 0, index);
+            System.arraycopy(coalescedIntervals, index + 1, intervals, index, ids.length - index);
+            coalescedIds = ids;
+            coalescedIntervals = intervals;
+
+            for (int i = slots.size() - 1; i >= 0; i--) {
+
+                CoalescedSlot slot = slots.get(i);
+                if (slot.slotId == id) {
+                    slots.remove(i);
+                    Lane lane = lanes[slot.priority.ordinal()];
+                    if (slot.pending && lane.count < capacity) {
+                        lane.entries[(lane.head + lane.count) % capacity].swap(slot);
+                        lane.count++;
+                        notEmpty.signal();
+                    } else if (slot.pending) {
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the newest value for a coalesced DataID. Caller must hold lock.
+     */
+    private void offerLatest(int index, int id, byte[] contents, ByteBuffer buffer,
+                             RoveMessage message, int length, InetSocketAddress destination) {
+
+        CoalescedSlot slot = null;
+        for (int i = 0; i < slots.size(); i++) {
+            CoalescedSlot candidate = slots.get(i);
+            if (candidate.slotId == id && candidate.slotDestination.equals(destination)) {
+                slot = candidate;
+                break;
+            }
+        }
+
+        if (slot == null) {
+            // First value for this destination is allowed out immediately
+            slot = new CoalescedSlot(id, destination, maxDataSize);
+            slot.priority = priorityOf(id);
+            slot.nextSendTime = System.nanoTime() - coalescedIntervals[index];
+            slots.add(slot);
+        }
+
+        if (slot.pending) {
+            replaced.incrementAndGet();
+        }
+
+        slot.set(id, contents, buffer, message, length, destination, 0, false);
+        slot.pending = true;
+        enqueued.incrementAndGet();
+        notEmpty.signal();
+    }
+
+    /**
+     * @return Pending coalesced value that is due soonest, or null if there are none. Caller must
+     * hold lock.
+     */
+    private CoalescedSlot nextPendingSlot() {
+
+        CoalescedSlot next = null;
+        for (int i = 0; i < slots.size(); i++) {
+            CoalescedSlot slot = slots.get(i);
+            if (slot.pending && (next == null || slot.nextSendTime - next.nextSendTime < 0)) {
+                next = slot;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return Pending coalesced value of the given priority that is due now, soonest first, or
+     * null if there are none. Caller must hold lock.
+     */
+    private CoalescedSlot nextDueSlot(Priority priority, long now) {
+
+        CoalescedSlot next = null;
+        for (int i = 0; i < slots.size(); i++) {
+            CoalescedSlot slot = slots.get(i);
+            if (slot.pending && slot.priority == priority && slot.nextSendTime - now <= 0
+                    && (next == null || slot.nextSendTime - next.nextSendTime < 0)) {
+                next = slot;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return Priority of a DataID. Caller must hold lock.
+     */
+    private Priority priorityOf(int id) {
+
+        int index = indexOfPriority(id);
+        return (index == -1) ? Priority.NORMAL : priorities[index];
+    }
+
+    /**
+     * @return Index into priorityIds, or -1 if the DataID has the default priority. Caller must
+     * hold lock.
+     */
+    private int indexOfPriority(int id) {
+
+        for (int i = 0; i < priorityIds.length; i++) {
+            if (priorityIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index into coalescedIds, or -1 if the DataID is not coalesced. Caller must hold lock.
+     */
+    private int indexOfCoalesced(int id) {
+
+        for (int i = 0; i < coalescedIds.length; i++) {
+            if (coalescedIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Entry with a buffer big enough for anything in this queue, for passing to take()
+     */
+    public Entry newEntry() {
+        return new Entry(maxDataSize);
+    }
+
+    /**
+     * Called by the dispatcher once a packet taken from this queue has been handed to the socket
+     */
+    void recordSent() {
+        sent.incrementAndGet();
+    }
+
+    /**
+     * Called by the dispatcher once several packets have been handed to the socket together
+     */
+    void recordSent(int count) {
+        sent.addAndGet(count);
+    }
+
+    /**
+     * Stops the queue. Waiting threads are woken up and further offers are dropped.
+     */
+    public void close() {
+
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of packets currently waiting to be sent, including coalesced values
+     */
+    public int size() {
+
+        lock.lock();
+        try {
+            int pending = 0;
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i).pending) pending++;
+            }
+            int queued = 0;
+            for (int i = 0; i < lanes.length; i++) {
+                queued += lanes[i].count;
+            }
+            return queued + pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Maximum number of packets waiting in each priority's lane
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of coalesced values that were replaced by a newer one before being sent
+     */
+    public long getReplacedCount() {
+        return replaced.get();
+    }
+
+    /**
+     * Mutable holder for one queued packet
+     */
+    public static class Entry {
+
+        int id;
+        byte[] data;
+        int length;
+        InetSocketAddress destination;
+        int seqNum;
+        boolean requireAck;
+        // Lane it was taken from, set as it leaves the queue. For a coalesced value, the lane it
+        // waits to go out in.
+        Priority priority = Priority.NORMAL;
+        // Sent with the timestamped header even if its DataID isn't
+        boolean timestamped;
+
+        Entry(int maxDataSize) {
+            data = new byte[maxDataSize];
+        }
+
+        void set(int id, byte[] contents, ByteBuffer buffer, RoveMessage message, int length,
+                 InetSocketAddress destination, int seqNum, boolean requireAck) {
+            this.id = id;
+            this.destination = destination;
+            this.seqNum = seqNum;
+            this.requireAck = requireAck;
+            this.timestamped = false;
+            this.length = length;
+            if (length > 0 && contents != null) {
+                System.arraycopy(contents, 0, data, 0, length);
+            } else if (length > 0 && message != null) {
+                message.encode(data, 0);
+            } else if (length > 0) {
+                int position = buffer.position();
+                buffer.get(data, 0, length);
+                buffer.position(position);
+            }
+        }
+
+        /**
+         * Takes other's packet, giving other this entry's old buffer in exchange
+         */
+        void swap(Entry other) {
+
+            byte[] buffer = data;
+            data = other.data;
+            other.data = buffer;
+
+            id = other.id;
+            length = other.length;
+            destination = other.destination;
+            seqNum = other.seqNum;
+            requireAck = other.requireAck;
+            timestamped = other.timestamped;
+            other.destination = null;
+        }
+    }
+
+    /**
+     * Latest unsent value for one coalesced DataID and destination
+     */
+    private static class CoalescedSlot extends Entry {
+
+        final int slotId;
+        final InetSocketAddress slotDestination;
+        boolean pending;
+        long nextSendTime;
+
+        CoalescedSlot(int id, InetSocketAddress destination, int maxDataSize) {
+            super(maxDataSize);
+            this.slotId = id;
+            this.slotDestination = destination;
+        }
+    }
+
+    /**
+     * Ring buffer of packets for one priority. Entries are allocated once up front and reused.
+     */
+    private static class Lane {
+
+        final Priority priority;
+        final Entry[] entries;
+        int head;
+        int count;
+        // Weighted share built up while waiting, for picking between lanes
+        int credit;
+
+        Lane(Priority priority, int capacity, int maxDataSize) {
+
+            this.priority = priority;
+            this.entries = new Entry[capacity];
+            for (int i = 0; i < capacity; i++) {
+                entries[i] = new Entry(maxDataSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that threads can add to at once without fighting over one cache line, like Java 8's
+ * LongAdder, which Android's Java 7 doesn't have. Each thread adds to a stripe picked by its id,
+ * and reading sums the stripes, so adding is cheap and reading is not.
+ */
+public class StripedCounter {
+
+    // Longs between stripes, so each stripe has a 64 byte cache line to itself
+    private final static int PADDING = 8;
+    private final static int MAX_STRIPES = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+
+        int stripes = 1;
+        int wanted = Math.min(MAX_STRIPES, 2 * Runtime.getRuntime().availableProcessors());
+        while (stripes < wanted) {
+            stripes <<= 1;
+        }
+
+        cells = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(stripe() * PADDING, value);
+    }
+
+    /**
+     * @return Total of everything added. Adds made at the same time may or may not be included.
+     */
+    public long sum() {
+
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the total back to 0. Adds made at the same time may or may not survive.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+    private int stripe() {
+
+        // Thread ids are handed out in order, so spread them before masking
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B1;
+        return (hash >>> 16) & mask;
+    }
+}
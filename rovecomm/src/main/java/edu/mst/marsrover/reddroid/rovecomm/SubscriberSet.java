@@ -0,0 +1,89 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Set of node addresses, read on every broadcast and changed only when a node subscribes or
+ * unsubscribes. Readers take the current array without locking; writers copy it, change the copy
+ * and publish it, so an array already handed out never changes underneath a broadcast.
+ */
+public class SubscriberSet {
+
+    private static final InetSocketAddress[] EMPTY = new InetSocketAddress[0];
+
+    // Replaced, never modified, by writers holding the lock on this
+    private volatile InetSocketAddress[] addresses = EMPTY;
+
+    /**
+     * Method to add a node
+     * @param address Resolved address of node
+     * @return False if the node was already in the set
+     */
+    public synchronized boolean add(InetSocketAddress address) {
+
+        InetSocketAddress[] current = addresses;
+        if (indexOf(current, address) >= 0) {
+            return false;
+        }
+
+        InetSocketAddress[] next = new InetSocketAddress[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = address;
+        addresses = next;
+        return true;
+    }
+
+    /**
+     * Method to remove a node
+     * @param address Resolved address of node
+     * @return False if the node was not in the set
+     */
+    public synchronized boolean remove(InetSocketAddress address) {
+
+        InetSocketAddress[] current = addresses;
+        int index = indexOf(current, address);
+        if (index < 0) {
+            return false;
+        }
+
+        InetSocketAddress[] next = (current.length == 1) ? EMPTY
+                : new InetSocketAddress[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        addresses = next;
+        return true;
+    }
+
+    /**
+     * Method to remove every node
+     */
+    public synchronized void clear() {
+        addresses = EMPTY;
+    }
+
+    public boolean contains(InetSocketAddress address) {
+        return indexOf(addresses, address) >= 0;
+    }
+
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+     * @return Every node at this moment. Must not be modified; later changes to the set are not
+     * seen in it.
+     */
+    public InetSocketAddress[] snapshot() {
+        return addresses;
+    }
+
+    private static int indexOf(InetSocketAddress[] array, InetSocketAddress address) {
+
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
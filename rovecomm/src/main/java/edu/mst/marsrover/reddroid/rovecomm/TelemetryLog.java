@@ -0,0 +1,454 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Read side of a recording made by TelemetryRecorder. Segments are memory mapped, so opening even
+ * hours of telemetry reads nothing until a cursor gets to it, and the sparse index lets a cursor
+ * start at a time, or skip stretches without a DataID, without scanning the records in between.
+ *
+ * Each segment is one fixed size file. Records are appended upwards from the header and index
+ * entries, one per block of records, are written downwards from the end:
+ *
+ *   header  int magic, int version, int segment size, int data end, int index entries,
+ *           int flags, long created (epoch ms)
+ *   record  int length, long timestamp (epoch ns), byte direction, byte address length,
+ *           address, short port, short DataID, data
+ *   index   long first timestamp, long last timestamp, int start, int end, long DataID mask
+ *
+ * The header's data end only moves past a record once it is completely written, so a recording
+ * cut short by a crash reads back up to the last whole record.
+ */
+public class TelemetryLog {
+
+    // Segment format
+    final static int MAGIC = 0x524C4F47;
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 32;
+    final static int INDEX_ENTRY_SIZE = 32;
+    final static int RECORD_FIXED_SIZE = 18;
+    final static int FLAG_SEALED = 1;
+    final static String SEGMENT_SUFFIX = ".rlog";
+
+    private final static TelemetryRecorder.Direction[] DIRECTIONS =
+            TelemetryRecorder.Direction.values();
+
+    // Header fields
+    final static int HEADER_SEGMENT_SIZE = 8;
+    final static int HEADER_DATA_END = 12;
+    final static int HEADER_INDEX_COUNT = 16;
+    final static int HEADER_FLAGS = 20;
+    final static int HEADER_CREATED = 24;
+
+    private final Segment[] segments;
+
+    /**
+     * Opens every segment of a recording
+     * @param directory Directory given to the TelemetryRecorder
+     * @throws IOException If a segment can't be mapped or isn't a recording
+     */
+    public TelemetryLog(File directory) throws IOException {
+
+        File[] files = listSegments(directory);
+        segments = new Segment[files.length];
+
+        for (int i = 0; i < files.length; i++) {
+            segments[i] = new Segment(files[i]);
+        }
+    }
+
+    /**
+     * @return Number of segment files in the recording
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return Number of records across every segment. Needs a scan of any unindexed tail.
+     */
+    public long getRecordCount() {
+
+        long count = 0;
+        Cursor cursor = cursor(Long.MIN_VALUE, -1);
+        while (cursor.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Timestamp of the first record, or -1 if there are none
+     */
+    public long getStartTime() {
+
+        Cursor cursor = cursor(Long.MIN_VALUE, -1);
+        return cursor.next() ? cursor.getTimestamp() : -1;
+    }
+
+    /**
+     * Creates a cursor over the records, in the order they were recorded
+     * @param from Earliest timestamp wanted, epoch nanoseconds. Long.MIN_VALUE for the start.
+     * @param dataId Only DataID wanted, or -1 for all of them
+     * @return Cursor positioned before the first matching record
+     */
+    public Cursor cursor(long from, int dataId) {
+        return new Cursor(from, dataId);
+    }
+
+    /**
+     * Lists a recording's segments in the order they were written. Names are zero padded, so
+     * that's the same as the order of the names.
+     */
+    static File[] listSegments(File directory) {
+
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @param dataId DataID
+     * @return Bit standing for the DataID in an index entry's mask
+     */
+    static long maskBit(int dataId) {
+        return 1L << ((dataId * 0x9E3779B1) >>> 26);
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static class Segment {
+
+        final ByteBuffer buffer;
+        final int size;
+
+        Segment(File file) throws IOException {
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        raf.length());
+                buffer = mapped;
+            } finally {
+                // The mapping stays valid after the channel closes
+                raf.close();
+            }
+
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a rovecomm recording");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(file + " is an unknown recording version");
+            }
+            size = buffer.getInt(HEADER_SEGMENT_SIZE);
+            if (size != buffer.capacity()) {
+                throw new IOException(file + " is damaged");
+            }
+        }
+
+        int dataEnd() {
+            return Math.min(buffer.getInt(HEADER_DATA_END), size);
+        }
+
+        int indexCount() {
+
+            // Never trust an index that runs into the data
+            int count = buffer.getInt(HEADER_INDEX_COUNT);
+            return Math.max(0, Math.min(count, (size - dataEnd()) / INDEX_ENTRY_SIZE));
+        }
+
+        int entry(int index) {
+            return size - (index + 1) * INDEX_ENTRY_SIZE;
+        }
+
+        long firstTime(int index) {
+            return buffer.getLong(entry(index));
+        }
+
+        long lastTime(int index) {
+            return buffer.getLong(entry(index) + 8);
+        }
+
+        int blockStart(int index) {
+            return buffer.getInt(entry(index) + 16);
+        }
+
+        int blockEnd(int index) {
+            return buffer.getInt(entry(index) + 20);
+        }
+
+        long mask(int index) {
+            return buffer.getLong(entry(index) + 24);
+        }
+    }
+
+    /**
+     * Walks the records in order, reusing itself for each one. Not thread safe, but any number of
+     * cursors can read the same log at once.
+     */
+    public class Cursor {
+
+        private final long from;
+        private final int dataId;
+        private final long mask;
+
+        private int segmentIndex = -1;
+        private Segment segment;
+        private ByteBuffer buffer;
+        // Next index entry to consider, and where the records it doesn't cover end
+        private int block;
+        private int position;
+        private int blockEnd;
+        private int dataEnd;
+
+        // Current record
+        private long timestamp;
+        private TelemetryRecorder.Direction direction;
+        private final byte[] address4 = new byte[4];
+        private final byte[] address16 = new byte[16];
+        private byte[] address;
+        private int port;
+        private int recordId;
+        private int dataOffset;
+        private int dataLength;
+
+        Cursor(long from, int dataId) {
+
+            this.from = from;
+            this.dataId = dataId;
+            this.mask = dataId < 0 ? -1L : maskBit(dataId);
+        }
+
+        /**
+         * Moves to the next matching record
+         * @return False once there are no more
+         */
+        public boolean next() {
+
+            while (true) {
+
+                if (segment == null && !nextSegment()) {
+                    return false;
+                }
+
+                if (position >= blockEnd && !nextBlock()) {
+                    segment = null;
+                    continue;
+                }
+
+                if (!read()) {
+                    // A damaged record ends what can be read of the segment
+                    segment = null;
+                    continue;
+                }
+
+                if (timestamp >= from && (dataId < 0 || recordId == dataId)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return When the record was made, epoch nanoseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public TelemetryRecorder.Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return Node the packet came from or went to, or null if it wasn't recorded
+         */
+        public InetAddress getAddress() {
+
+            if (address == null) {
+                return null;
+            }
+            try {
+                return InetAddress.getByAddress(address);
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getDataId() {
+            return recordId;
+        }
+
+        /**
+         * @return Read only buffer over the record's data, from position to limit, valid until
+         * the cursor moves
+         */
+        public ByteBuffer getData() {
+
+            ByteBuffer data = buffer.duplicate();
+            data.limit(dataOffset + dataLength);
+            data.position(dataOffset);
+            return data;
+        }
+
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        /**
+         * @return Copy of the record's data
+         */
+        public byte[] copyData() {
+
+            byte[] copy = new byte[dataLength];
+            for (int i = 0; i < dataLength; i++) {
+                copy[i] = buffer.get(dataOffset + i);
+            }
+            return copy;
+        }
+
+        /**
+         * Opens the next segment that could have a matching record
+         */
+        private boolean nextSegment() {
+
+            while (++segmentIndex < segments.length) {
+
+                Segment next = segments[segmentIndex];
+                int count = next.indexCount();
+                int end = next.dataEnd();
+
+                // A sealed segment is fully indexed, so can be skipped if it's all too early
+                boolean sealed = (next.buffer.getInt(HEADER_FLAGS) & FLAG_SEALED) != 0;
+                if (sealed && count > 0 && next.lastTime(count - 1) < from) {
+                    continue;
+                }
+
+                segment = next;
+                buffer = next.buffer.asReadOnlyBuffer();
+                dataEnd = end;
+
+                // Start at the last block beginning no later than from
+                block = 0;
+                int low = 0;
+                int high = count - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (next.firstTime(middle) <= from) {
+                        block = middle;
+                        low = middle + 1;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+
+                position = HEADER_SIZE;
+                blockEnd = HEADER_SIZE;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Moves on to the next block worth reading, skipping those the index says can't match.
+         * Records after the last index entry are read through to the end of the data.
+         */
+        private boolean nextBlock() {
+
+            int count = segment.indexCount();
+
+            while (block < count) {
+
+                int index = block++;
+                int start = segment.blockStart(index);
+                int end = segment.blockEnd(index);
+                if (start < position || end > dataEnd || start > end) {
+                    continue;
+                }
+
+                if ((segment.mask(index) & mask) != 0 && segment.lastTime(index) >= from) {
+                    position = start;
+                    blockEnd = end;
+                    return true;
+                }
+                position = end;
+            }
+
+            if (position < dataEnd) {
+                blockEnd = dataEnd;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads the record at position and moves past it
+         * @return False if the record doesn't make sense
+         */
+        private boolean read() {
+
+            int start = position;
+            if (blockEnd - start < RECORD_FIXED_SIZE) {
+                return false;
+            }
+
+            int length = buffer.getInt(start);
+            int addressLength = buffer.get(start + 13) & 0xFF;
+            int directionOrdinal = buffer.get(start + 12) & 0xFF;
+            if (length < RECORD_FIXED_SIZE + addressLength || length > blockEnd - start
+                    || (addressLength != 0 && addressLength != 4 && addressLength != 16)
+                    || directionOrdinal >= DIRECTIONS.length) {
+                return false;
+            }
+
+            timestamp = buffer.getLong(start + 4);
+            direction = DIRECTIONS[directionOrdinal];
+
+            int at = start + 14;
+            if (addressLength == 0) {
+                address = null;
+            } else {
+                address = addressLength == 4 ? address4 : address16;
+                for (int i = 0; i < addressLength; i++) {
+                    address[i] = buffer.get(at + i);
+                }
+                at += addressLength;
+            }
+
+            port = buffer.getShort(at) & 0xFFFF;
+            recordId = buffer.getShort(at + 2) & 0xFFFF;
+            dataOffset = at + 4;
+            dataLength = start + length - dataOffset;
+            position = start + length;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every packet rovecomm sends and receives to memory mapped segment files, for looking
+ * through after a run with TelemetryLog or feeding back in with TelemetryReplay.
+ *
+ * Recording a packet is a copy into mapped memory under a short lock, with no system calls, so
+ * it can be done on the send and receive threads. The kernel writes the pages out in its own
+ * time. The next segment is created on a worker thread ahead of being needed, and finished
+ * segments are flushed to disk there too.
+ */
+public class TelemetryRecorder {
+
+    /**
+     * Which way a recorded packet went
+     */
+    public enum Direction {
+        RECEIVED,
+        SENT
+    }
+
+    public final static int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    private final static int MIN_SEGMENT_SIZE = 64 << 10;
+
+    // A new index entry is started after this much data or this long, whichever comes first
+    private final static int INDEX_BLOCK_SIZE = 32 << 10;
+    private final static long INDEX_BLOCK_TIME = TimeUnit.SECONDS.toNanos(1);
+
+    // Most addresses whose bytes are remembered, so recording doesn't allocate
+    private final static int ADDRESS_CACHE_SIZE = 64;
+    private final static byte[] NO_ADDRESS = new byte[0];
+
+    // Name the next segment is created under, before it is given a number
+    private final static String SPARE_NAME = "next.spare";
+
+    private final File directory;
+    private final int segmentSize;
+    // Never drops a task, so a spare being prepared is always finished. Stopped by close().
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RoveComm-record");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Timestamps are the wall clock at creation plus the monotonic time since, so they never go
+    // backwards while recording
+    private final long startEpochNanos;
+    private final long startNanos;
+
+    // Everything below is guarded by this
+    private final HashMap<InetAddress, byte[]> addresses = new HashMap<>();
+    private Segment current;
+    private Segment spare;
+    private boolean preparing;
+    private boolean closed;
+    private int nextNumber;
+    private int segmentCount;
+    private long recorded;
+    private long dropped;
+
+    // Records since the last index entry
+    private boolean blockOpen;
+    private int blockStart;
+    private long blockFirst;
+    private long blockLast;
+    private long blockMask;
+
+    /**
+     * Constructor for a recorder with the default segment size
+     * @param directory Directory for this recording's segments, created if needed
+     * @throws IOException If the directory or first segment can't be created
+     */
+    public TelemetryRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor for a recorder. Segments already in the directory are kept, and new ones are
+     * numbered after them.
+     * @param directory Directory for this recording's segments, created if needed
+     * @param segmentSize Size of each segment file. Only the pages written take up disk space.
+     * @throws IOException If the directory or first segment can't be created
+     */
+    public TelemetryRecorder(File directory, int segmentSize) throws IOException {
+
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segments must be at least " + MIN_SEGMENT_SIZE
+                    + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        this.startNanos = System.nanoTime();
+
+        for (File file : TelemetryLog.listSegments(directory)) {
+            String name = file.getName();
+            try {
+                int number = Integer.parseInt(name.substring(0,
+                        name.length() - TelemetryLog.SEGMENT_SUFFIX.length()));
+                nextNumber = Math.max(nextNumber, number + 1);
+            } catch (NumberFormatException e) {
+                // Not one of ours, leave it be
+            }
+        }
+
+        // Left behind if a previous recorder wasn't closed
+        new File(directory, SPARE_NAME).delete();
+
+        synchronized (this) {
+            current = createSegment(nextFile());
+            segmentCount++;
+            prepareSpare();
+        }
+    }
+
+    /**
+     * Records a packet whose data is in a buffer
+     * @param direction Whether the packet was sent or received
+     * @param address Node it went to or came from, or null if unknown
+     * @param port Port on that node
+     * @param dataId DataID of the packet
+     * @param data Data from position to limit. Its position is left where it was.
+     * @return False if the recorder is closed or a segment couldn't be created
+     */
+    public boolean record(Direction direction, InetAddress address, int port, int dataId,
+                          ByteBuffer data) {
+
+        int length = data.remaining();
+
+        synchronized (this) {
+
+            // Taken under the lock so timestamps are in the same order as the records
+            long now = now();
+            byte[] addressBytes = addressBytes(address);
+            ByteBuffer buffer = begin(direction, addressBytes, port, dataId, length, now);
+            if (buffer == null) {
+                return false;
+            }
+
+            int position = data.position();
+            buffer.put(data);
+            data.position(position);
+
+            commit(buffer.position(), dataId, now);
+            return true;
+        }
+    }
+
+    /**
+     * Records a packet whose data is in an array
+     * @param direction Whether the packet was sent or received
+     * @param address Node it went to or came from, or null if unknown
+     * @param port Port on that node
+     * @param dataId DataID of the packet
+     * @param data Array holding the data, or null if there is none
+     * @param offset Index of the first byte of data
+     * @param length Number of bytes of data
+     * @return False if the recorder is closed or a segment couldn't be created
+     */
+    public boolean record(Direction direction, InetAddress address, int port, int dataId,
+                          byte[] data, int offset, int length) {
+
+        synchronized (this) {
+
+            long now = now();
+            byte[] addressBytes = addressBytes(address);
+            ByteBuffer buffer = begin(direction, addressBytes, port, dataId, length, now);
+            if (buffer == null) {
+                return false;
+            }
+
+            if (length > 0) {
+                buffer.put(data, offset, length);
+            }
+
+            commit(buffer.position(), dataId, now);
+            return true;
+        }
+    }
+
+    /**
+     * Finishes the current segment and flushes it to disk. Anything recorded after is dropped.
+     * The worker thread stops once segments it is still flushing are done.
+     */
+    public void close() {
+
+        Segment last;
+        synchronized (this) {
+
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            closeBlock();
+            last = current;
+            last.seal();
+            current = null;
+
+            // The spare was never written to, so isn't part of the recording
+            if (spare != null) {
+                spare.delete();
+                spare = null;
+            }
+        }
+        last.buffer.force();
+        worker.shutdown();
+    }
+
+    /**
+     * @return Directory the segments are written to
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Number of packets recorded
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * @return Number of packets that could not be recorded
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return Number of segments this recorder has written to
+     */
+    public synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return Current time as used for timestamps, epoch nanoseconds
+     */
+    private long now() {
+        return startEpochNanos + (System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Makes room for a record and writes everything but its data. Caller must hold lock.
+     * @return Current segment's buffer positioned for the data, or null if the record is dropped
+     */
+    private ByteBuffer begin(Direction direction, byte[] address, int port, int dataId,
+                             int dataLength, long now) {
+
+        int length = TelemetryLog.RECORD_FIXED_SIZE + address.length + dataLength;
+        if (!reserve(length, now)) {
+            dropped++;
+            return null;
+        }
+
+        ByteBuffer buffer = current.buffer;
+        int start = current.dataEnd;
+        buffer.putInt(start, length);
+        buffer.putLong(start + 4, now);
+        buffer.put(start + 12, (byte) direction.ordinal());
+        buffer.put(start + 13, (byte) address.length);
+
+        buffer.position(start + 14);
+        buffer.put(address);
+        buffer.putShort((short) port);
+        buffer.putShort((short) dataId);
+        return buffer;
+    }
+
+    /**
+     * Publishes a completely written record. Caller must hold lock.
+     */
+    private void commit(int end, int dataId, long now) {
+
+        current.dataEnd = end;
+        current.buffer.putInt(TelemetryLog.HEADER_DATA_END, end);
+        blockLast = now;
+        blockMask |= TelemetryLog.maskBit(dataId);
+        recorded++;
+    }
+
+    /**
+     * Makes sure the current segment has room for a record, moving on to the next if not, and
+     * starts a new index block when the current one is big or old enough. Caller must hold lock.
+     * @return False if there is nowhere to put the record
+     */
+    private boolean reserve(int length, long now) {
+
+        if (closed) {
+            return false;
+        }
+
+        if (blockOpen && (current.dataEnd - blockStart >= INDEX_BLOCK_SIZE
+                || now - blockFirst >= INDEX_BLOCK_TIME)) {
+            closeBlock();
+        }
+
+        // Leave room for the index entry of the block this record ends up in
+        int indexStart = segmentSize - (current.indexCount + 1) * TelemetryLog.INDEX_ENTRY_SIZE;
+        if (current.dataEnd + length > indexStart) {
+
+            Segment next = nextSegment();
+            if (next == null) {
+                return false;
+            }
+
+            closeBlock();
+            final Segment finished = current;
+            finished.seal();
+            current = next;
+            segmentCount++;
+
+            // Flushing can take a while, so keep it off the thread that's recording
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finished.buffer.force();
+                }
+            });
+        }
+
+        if (!blockOpen) {
+            blockOpen = true;
+            blockStart = current.dataEnd;
+            blockFirst = now;
+            blockMask = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index entry for the records since the last one. Caller must hold lock.
+     */
+    private void closeBlock() {
+
+        if (!blockOpen) {
+            return;
+        }
+        blockOpen = false;
+
+        ByteBuffer buffer = current.buffer;
+        int entry = segmentSize - (current.indexCount + 1) * TelemetryLog.INDEX_ENTRY_SIZE;
+        buffer.putLong(entry, blockFirst);
+        buffer.putLong(entry + 8, blockLast);
+        buffer.putInt(entry + 16, blockStart);
+        buffer.putInt(entry + 20, current.dataEnd);
+        buffer.putLong(entry + 24, blockMask);
+
+        current.indexCount++;
+        buffer.putInt(TelemetryLog.HEADER_INDEX_COUNT, current.indexCount);
+    }
+
+    /**
+     * Takes the spare segment, numbering it now so segments are numbered in the order they are
+     * used, and starts on the one after. Only if the worker hasn't got a spare ready is a
+     * segment created on the recording thread. Caller must hold lock.
+     * @return Segment to write to next, or null if one couldn't be created
+     */
+    private Segment nextSegment() {
+
+        Segment next = spare;
+        spare = null;
+
+        if (next != null && !next.renameTo(nextFile())) {
+            next.delete();
+            next = null;
+        }
+
+        if (next == null) {
+            try {
+                next = createSegment(nextFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        prepareSpare();
+        return next;
+    }
+
+    /**
+     * Has the worker create the next segment before it is needed. Caller must hold lock.
+     */
+    private void prepareSpare() {
+
+        if (preparing || spare != null || closed) {
+            return;
+        }
+        preparing = true;
+
+        final File file = new File(directory, SPARE_NAME);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Segment segment = null;
+                try {
+                    segment = createSegment(file);
+                } catch (IOException e) {
+                    // Will be retried on the recording thread when it is needed
+                    e.printStackTrace();
+                }
+
+                synchronized (TelemetryRecorder.this) {
+                    preparing = false;
+                    if (segment != null && closed) {
+                        segment.delete();
+                    } else {
+                        spare = segment;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return File for the next segment. Caller must hold lock.
+     */
+    private File nextFile() {
+        return new File(directory, String.format(Locale.US, "%08d%s", nextNumber++,
+                TelemetryLog.SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Creates, sizes and maps a segment file and writes its header
+     */
+    private Segment createSegment(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(segmentSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            // The mapping stays valid after the channel closes
+            raf.close();
+        }
+
+        buffer.putInt(0, TelemetryLog.MAGIC);
+        buffer.putInt(4, TelemetryLog.VERSION);
+        buffer.putInt(TelemetryLog.HEADER_SEGMENT_SIZE, segmentSize);
+        buffer.putInt(TelemetryLog.HEADER_DATA_END, TelemetryLog.HEADER_SIZE);
+        buffer.putInt(TelemetryLog.HEADER_INDEX_COUNT, 0);
+        buffer.putInt(TelemetryLog.HEADER_FLAGS, 0);
+        buffer.putLong(TelemetryLog.HEADER_CREATED, System.currentTimeMillis());
+        return new Segment(file, buffer);
+    }
+
+    /**
+     * @return Bytes of an address, looked up once per address. Caller must hold lock.
+     */
+    private byte[] addressBytes(InetAddress address) {
+
+        if (address == null) {
+            return NO_ADDRESS;
+        }
+
+        byte[] bytes = addresses.get(address);
+        if (bytes == null) {
+            if (addresses.size() >= ADDRESS_CACHE_SIZE) {
+                addresses.clear();
+            }
+            bytes = address.getAddress();
+            addresses.put(address, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * One segment file being written
+     */
+    private static class Segment {
+
+        File file;
+        final MappedByteBuffer buffer;
+        int dataEnd = TelemetryLog.HEADER_SIZE;
+        int indexCount;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Marks the segment as fully indexed, so readers can skip it by its index alone
+         */
+        void seal() {
+            buffer.putInt(TelemetryLog.HEADER_FLAGS, TelemetryLog.FLAG_SEALED);
+        }
+
+        boolean renameTo(File target) {
+
+            if (!file.renameTo(target)) {
+                return false;
+            }
+            file = target;
+            return true;
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
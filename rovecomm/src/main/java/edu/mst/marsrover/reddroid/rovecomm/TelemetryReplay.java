@@ -0,0 +1,170 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a recording back through an OnReceiveData listener, either spaced out as it was
+ * recorded or as fast as the listener can take it. Only received packets are replayed unless
+ * setIncludeSent() says otherwise, since those are what a listener normally sees.
+ */
+public class TelemetryReplay {
+
+    // Speed that replays without waiting between packets
+    public final static double AS_FAST_AS_POSSIBLE = 0;
+
+    private final TelemetryLog log;
+    private final RoveComm.OnReceiveData listener;
+
+    private volatile double speed = 1;
+    private volatile long from = Long.MIN_VALUE;
+    private volatile long to = Long.MAX_VALUE;
+    private volatile int dataId = -1;
+    private volatile boolean includeSent;
+
+    private volatile boolean cancelled;
+    private volatile long replayedCount;
+    private Thread thread;
+
+    /**
+     * Constructor for a replay
+     * @param log Recording to replay
+     * @param listener Given each packet's DataID and a copy of its data
+     */
+    public TelemetryReplay(TelemetryLog log, RoveComm.OnReceiveData listener) {
+
+        this.log = log;
+        this.listener = listener;
+    }
+
+    /**
+     * @param speed 1 for the pace it was recorded at, 2 for twice as fast and so on, or
+     * AS_FAST_AS_POSSIBLE. Takes effect from the next packet.
+     */
+    public void setSpeed(double speed) {
+
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed can't be negative");
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * @param from Earliest timestamp to replay, epoch nanoseconds
+     * @param to Latest timestamp to replay, epoch nanoseconds
+     */
+    public void setRange(long from, long to) {
+
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param dataId Only DataID to replay, or -1 for all of them
+     */
+    public void setDataId(int dataId) {
+        this.dataId = dataId;
+    }
+
+    /**
+     * @param includeSent True to replay packets this node sent as well as those it received
+     */
+    public void setIncludeSent(boolean includeSent) {
+        this.includeSent = includeSent;
+    }
+
+    /**
+     * Replays on the calling thread, returning once the recording or range runs out or stop()
+     * is called
+     * @return Number of packets given to the listener
+     * @throws InterruptedException If interrupted while waiting for the next packet to come due
+     */
+    public long run() throws InterruptedException {
+
+        TelemetryLog.Cursor cursor = log.cursor(from, dataId);
+        long count = 0;
+
+        // Recorded time and local time the current pace was set from
+        double pace = -1;
+        long recordedBase = 0;
+        long localBase = 0;
+
+        while (!cancelled && cursor.next()) {
+
+            long timestamp = cursor.getTimestamp();
+            if (timestamp > to) {
+                break;
+            }
+            if (!includeSent && cursor.getDirection() == TelemetryRecorder.Direction.SENT) {
+                continue;
+            }
+
+            double current = speed;
+            if (current != pace) {
+                pace = current;
+                recordedBase = timestamp;
+                localBase = System.nanoTime();
+            }
+
+            if (pace != AS_FAST_AS_POSSIBLE) {
+                long due = localBase + (long) ((timestamp - recordedBase) / pace);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+
+            listener.receiveData(cursor.getDataId(), cursor.copyData());
+            replayedCount = ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Replays on a thread of its own
+     */
+    public synchronized void start() {
+
+        if (thread != null && thread.isAlive()) {
+            return;
+        }
+        cancelled = false;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TelemetryReplay.this.run();
+                } catch (InterruptedException e) {
+                    // stop() interrupts to end the thread
+                }
+            }
+        }, "RoveComm-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops a replay, whether started by start() or run()
+     */
+    public synchronized void stop() {
+
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return True while a replay started by start() is going
+     */
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * @return Number of packets given to the listener so far
+     */
+    public long getReplayedCount() {
+        return replayedCount;
+    }
+}
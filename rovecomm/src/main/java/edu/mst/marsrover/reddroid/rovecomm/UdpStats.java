@@ -0,0 +1,76 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads the kernel's per socket UDP counters from /proc/net/udp and /proc/net/udp6. Only Linux
+ * has these, and newer versions of Android hide them from apps, in which case nothing is found.
+ */
+public class UdpStats {
+
+    private static final String[] FILES = {"/proc/net/udp", "/proc/net/udp6"};
+
+    private UdpStats() {
+    }
+
+    /**
+     * Static method to find how many datagrams the kernel dropped because a socket's receive
+     * buffer was full
+     * @param port Local port the socket is bound to
+     * @return Drops summed over every socket on the port, or -1 if the counters can't be read
+     */
+    public static long readDrops(int port) {
+
+        long drops = -1;
+
+        for (String file : FILES) {
+
+            BufferedReader reader = null;
+            try {
+
+                reader = new BufferedReader(new FileReader(file));
+
+                // First line is column names, the drop count is the last column
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+
+                    String[] columns = line.trim().split("\\s+");
+                    if (columns.length < 2 || localPort(columns[1]) != port) {
+                        continue;
+                    }
+                    drops = Math.max(drops, 0) + Long.parseLong(columns[columns.length - 1]);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not Linux, or not allowed to look
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * @param address Local address column, hex address and port separated by a colon
+     * @return Port, or -1 if malformed
+     */
+    private static int localPort(String address) {
+
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(address.substring(colon + 1), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks batches go out when full or when their delay is up, that a lone packet goes as a plain
+ * packet, and that a node receiving a batch hands each packet in it to its listeners
+ */
+public class BatcherTest {
+
+    private static final int BATCHED_ID = 1000;
+    private static final int MAX_PACKET_SIZE = 64;
+    private static final long DELAY = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final InetSocketAddress NODE = new InetSocketAddress("127.0.0.1", 11000);
+
+    // Every datagram the batcher sent, copied out of its buffer
+    private final List<byte[]> sent = new ArrayList<>();
+    private final List<Integer> records = new ArrayList<>();
+    private Batcher batcher;
+
+    @Before
+    public void setUp() {
+
+        batcher = new Batcher(new Batcher.Output() {
+            @Override
+            public boolean sendBatch(ByteBuffer packet, int count, InetSocketAddress destination) {
+
+                byte[] datagram = new byte[packet.remaining()];
+                packet.get(datagram);
+                sent.add(datagram);
+                records.add(count);
+                return true;
+            }
+        }, MAX_PACKET_SIZE, DELAY, false);
+        batcher.setBatched(BATCHED_ID);
+    }
+
+    @Test
+    public void onlyBatchedIdsWithoutAcks_canBatch() {
+
+        assertTrue(batcher.canBatch(entry(BATCHED_ID, 1, false)));
+        assertFalse(batcher.canBatch(entry(BATCHED_ID, 1, true)));
+        assertFalse(batcher.canBatch(entry(BATCHED_ID + 1, 1, false)));
+
+        batcher.clearBatched(BATCHED_ID);
+        assertFalse(batcher.canBatch(entry(BATCHED_ID, 1, false)));
+    }
+
+    @Test
+    public void fullBatch_isSentBeforeItsDeadline() {
+
+        // A batch header plus two 20 byte packets leaves too little room for a third
+        long now = 0;
+        assertTrue(batcher.add(entry(BATCHED_ID, 1, false), now));
+        assertTrue(batcher.add(entry(BATCHED_ID, 2, false), now));
+        assertTrue(sent.isEmpty());
+
+        assertTrue(batcher.add(entry(BATCHED_ID, 3, false), now));
+        assertEquals(1, sent.size());
+        assertEquals(2, (int) records.get(0));
+        assertRecords(sent.get(0), 1, 2);
+
+        // The third started a batch of its own
+        assertEquals(DELAY, batcher.nextDeadline(now));
+    }
+
+    @Test
+    public void partBatch_isSentOnceItsDelayIsUp() {
+
+        long now = 1000;
+        batcher.add(entry(BATCHED_ID, 1, false), now);
+        batcher.add(entry(BATCHED_ID, 2, false), now + DELAY / 2);
+        assertEquals(DELAY / 2, batcher.nextDeadline(now + DELAY / 2));
+
+        // Timed from the oldest packet in it
+        assertTrue(batcher.flushDue(now + DELAY - 1));
+        assertTrue(sent.isEmpty());
+        assertTrue(batcher.flushDue(now + DELAY));
+        assertEquals(1, sent.size());
+        assertRecords(sent.get(0), 1, 2);
+        assertEquals(-1, batcher.nextDeadline(now + DELAY));
+    }
+
+    @Test
+    public void batchOfOne_isSentAsAPlainPacket() {
+
+        batcher.add(entry(BATCHED_ID, 7, false), 0);
+        assertTrue(batcher.flushAll());
+        assertEquals(1, sent.size());
+        assertEquals(1, (int) records.get(0));
+
+        byte[] datagram = sent.get(0);
+        PacketView view = new PacketView(ByteBuffer.wrap(datagram));
+        assertEquals(RoveProtocol.Status.OK,
+                RoveProtocol.decodePacket(view, 0, datagram.length));
+        assertFalse(view.isBatch());
+        assertEquals(BATCHED_ID, view.getDataId());
+        assertArrayEquals(payload(7), view.copyData());
+    }
+
+    @Test
+    public void receivedBatch_isFannedOutToListeners() throws Exception {
+
+        int port = freePort();
+        RoveComm node = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, port);
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        try {
+
+            final List<Integer> values = new ArrayList<>();
+            final List<Integer> drains = new ArrayList<>();
+            final CountDownLatch received = new CountDownLatch(2);
+            node.setOnReceivePacket(new RoveComm.OnReceivePacket() {
+                @Override
+                public void receivePacket(PacketView packet) {
+                    synchronized (values) {
+                        values.add(packet.copyData()[0] & 0xFF);
+                    }
+                    received.countDown();
+                }
+            });
+            node.setOnReceiveBatch(new RoveComm.OnReceiveBatch() {
+                @Override
+                public void receiveBatch(ReceiveBatch batch) {
+                    synchronized (values) {
+                        drains.add(batch.size());
+                    }
+                }
+            });
+
+            batcher.add(entry(BATCHED_ID, 1, false), 0);
+            batcher.add(entry(BATCHED_ID, 2, false), 0);
+            batcher.flushAll();
+            byte[] datagram = sent.get(0);
+            socket.send(new DatagramPacket(datagram, datagram.length,
+                    InetAddress.getLoopbackAddress(), port));
+
+            assertTrue("Batch was never delivered", received.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            synchronized (values) {
+                assertEquals(2, values.size());
+                assertEquals(1, (int) values.get(0));
+                assertEquals(2, (int) values.get(1));
+                assertEquals(1, drains.size());
+                assertEquals(2, (int) drains.get(0));
+            }
+        } finally {
+            socket.close();
+            node.onDestroy();
+        }
+    }
+
+    /**
+     * Checks a datagram is a batch holding one packet of BATCHED_ID for each value, in order
+     */
+    private static void assertRecords(byte[] datagram, int... values) {
+
+        PacketView view = new PacketView(ByteBuffer.wrap(datagram));
+        assertEquals(RoveProtocol.Status.OK,
+                RoveProtocol.decodePacket(view, 0, datagram.length));
+        assertTrue(view.isBatch());
+
+        int next = view.getDataOffset();
+        int end = next + view.getDataLength();
+        for (int value : values) {
+            assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodeRecord(view, next, end - next));
+            assertEquals(BATCHED_ID, view.getDataId());
+            assertArrayEquals(payload(value), view.copyData());
+            next = view.getDataOffset() + view.getDataLength();
+        }
+        assertEquals(end, next);
+    }
+
+    /**
+     * @return A 12 byte packet for NODE, so 20 bytes with its header
+     */
+    private static SendQueue.Entry entry(int id, int value, boolean requireAck) {
+
+        SendQueue.Entry entry = new SendQueue.Entry(MAX_PACKET_SIZE);
+        byte[] data = payload(value);
+        System.arraycopy(data, 0, entry.data, 0, data.length);
+        entry.id = id;
+        entry.length = data.length;
+        entry.destination = NODE;
+        entry.requireAck = requireAck;
+        return entry;
+    }
+
+    private static byte[] payload(int value) {
+
+        byte[] data = new byte[12];
+        data[0] = (byte) value;
+        return data;
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,146 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks timestamped headers survive a round trip, that the estimator finds a known offset and
+ * drift through noisy round trips, and that a node pinging itself over loopback sees its own clock
+ */
+public class ClockSyncTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long US = TimeUnit.MICROSECONDS.toNanos(1);
+
+    @Test
+    public void timestampedPacket_roundTrips() {
+
+        byte[] packet = new byte[64];
+        int length = RoveProtocol.encodeTimestampedPacket(528, new byte[]{1, 2, 3}, 0, 3, 7,
+                false, 0x0123456789ABCDEFL, packet, 0);
+        assertEquals(RoveProtocol.TIMESTAMPED_HEADER_SIZE + 3, length);
+
+        PacketView view = new PacketView(ByteBuffer.wrap(packet));
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, length));
+        assertEquals(528, view.getDataId());
+        assertEquals(7, view.getSeqNum());
+        assertArrayEquals(new byte[]{1, 2, 3}, view.copyData());
+        assertTrue(view.hasTimestamp());
+        assertEquals(0x0123456789ABCDEFL, view.getTimestamp());
+
+        // The usual header carries none
+        byte[] plain = RoveProtocol.encodePacket(528, new byte[]{1}, 0, false);
+        view = new PacketView(ByteBuffer.wrap(plain));
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, plain.length));
+        assertFalse(view.hasTimestamp());
+    }
+
+    @Test
+    public void noisyExchanges_findOffsetAndDrift() {
+
+        ClockSync clock = new ClockSync();
+        Random random = new Random(25);
+        long offset = 3_600_000 * MS;
+        double drift = 50e-6;
+        long start = 1000 * MS;
+
+        // 20 seconds of pings at 5 a second, most quick but some held up in one direction
+        for (int i = 0; i < 100; i++) {
+
+            long sent = start + i * 200 * MS;
+            long there = 1 * MS + random.nextInt(100) * US;
+            long back = 1 * MS + random.nextInt(100) * US;
+            if (i % 4 == 0) {
+                there += random.nextInt(40) * MS;
+            }
+
+            long received = remote(sent + there, start, offset, drift);
+            long replied = received + 50 * US;
+            long now = sent + there + back + 50 * US;
+            clock.addSample(sent, received, replied, now);
+        }
+
+        ClockSync.Estimate estimate = clock.getEstimate();
+        assertEquals(100, estimate.getSamples());
+        assertEquals(drift, estimate.getDrift(), 5e-6);
+
+        // A reading the remote stamped 5 ms before now
+        long now = start + 20_000 * MS;
+        long local = estimate.toLocal(remote(now - 5 * MS, start, offset, drift));
+        assertTrue(Math.abs(now - 5 * MS - local) <= 200 * US);
+        assertTrue(Math.abs(now - estimate.toLocal(estimate.toRemote(now))) <= 1 * US);
+    }
+
+    @Test
+    public void selfPing_overLoopback_seesNoOffset() throws Exception {
+
+        RoveComm node = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        try {
+
+            assertNull(node.getClockEstimate("127.0.0.1"));
+            assertEquals(ClockSync.UNKNOWN, node.toLocalTime("127.0.0.1", 0));
+
+            node.setClockSync(true);
+            node.monitorLink("127.0.0.1");
+            node.startLinkMonitor(50);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            ClockSync.Estimate estimate = null;
+            while (System.nanoTime() < deadline) {
+                estimate = node.getClockEstimate("127.0.0.1");
+                if (estimate != null && estimate.getSamples() >= 5) {
+                    break;
+                }
+                Thread.sleep(20);
+            }
+
+            // Stop refining so the estimate holds still while it's checked
+            node.setClockSync(false);
+            estimate = node.getClockEstimate("127.0.0.1");
+            assertNotNull("No timestamped ping was answered", estimate);
+            assertTrue(estimate.getSamples() >= 5);
+
+            // Same clock on both ends, so only microsecond rounding and the path remain
+            long tolerance = Math.max(2 * US, estimate.getDelay());
+            assertTrue(Math.abs(estimate.getOffset()) <= tolerance);
+            long remote = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+            long local = node.toLocalTime("127.0.0.1", remote);
+            assertTrue(Math.abs(TimeUnit.MICROSECONDS.toNanos(remote) - local) <= tolerance);
+
+            // However the node is named, it's the same clock
+            RoveNode self = new RoveNode("127.0.0.1", node.getPort());
+            assertEquals(estimate.getSamples(), node.getClockEstimate("localhost").getSamples());
+            assertEquals(estimate.getSamples(), node.getClockEstimate(self).getSamples());
+            assertEquals(local, node.toLocalTime(self, remote));
+        } finally {
+            node.onDestroy();
+        }
+    }
+
+    /**
+     * @return The remote clock at a local time, for a remote clock offset and drifting from local
+     */
+    private static long remote(long local, long start, long offset, double drift) {
+        return local + offset + Math.round(drift * (local - start));
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,381 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the watchdog trips on each budget, and stops a simulated board when its link goes quiet
+ */
+public class DriveWatchdogTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int TELEMETRY_ID = 1000;
+
+    private RoverSimulator simulator;
+    private RoveComm roveComm;
+    private final List<String> events = new ArrayList<>();
+
+    private final DriveWatchdog.Listener listener = new DriveWatchdog.Listener() {
+        @Override
+        public void onLinkLost(DriveWatchdog.Reason reason) {
+            synchronized (events) {
+                events.add(reason.name());
+            }
+        }
+
+        @Override
+        public void onLinkRestored() {
+            synchronized (events) {
+                events.add("RESTORED");
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+
+        // Telemetry is what tells the watchdog the link is alive
+        simulator = new RoverSimulator(0);
+        simulator.addTelemetry(TELEMETRY_ID, 50, 16);
+        simulator.start();
+        roveComm = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+    }
+
+    @After
+    public void tearDown() {
+        roveComm.onDestroy();
+        simulator.stop();
+    }
+
+    @Test
+    public void silence_tripsOnceAndRestoresWhenHeardFrom() throws Exception {
+
+        DriveWatchdog watchdog = newWatchdog();
+        watchdog.begin(0);
+
+        watchdog.beat(400 * MS, null);
+        assertNull(watchdog.getTripped());
+
+        watchdog.beat(600 * MS, null);
+        watchdog.beat(700 * MS, heard(LinkMonitor.NO_REPLY));
+        assertEquals(DriveWatchdog.Reason.SILENCE, watchdog.getTripped());
+        assertEquals(1, watchdog.getStopCount());
+
+        // Any packet from the board will do, not just a ping reply
+        watchdog.beat(800 * MS, heard(750 * MS));
+        assertNull(watchdog.getTripped());
+        assertEquals(listOf("SILENCE", "RESTORED"), events);
+    }
+
+    @Test
+    public void latencyAndLoss_onlyTripWithEnoughSamples() throws Exception {
+
+        DriveWatchdog watchdog = newWatchdog();
+        watchdog.begin(0);
+
+        // Slow and lossy, but too few replies to go on
+        watchdog.beat(100 * MS, link(900 * MS, 0.9, 3, 90 * MS));
+        assertNull(watchdog.getTripped());
+
+        watchdog.beat(200 * MS, link(900 * MS, 0, 20, 190 * MS));
+        assertEquals(DriveWatchdog.Reason.LATENCY, watchdog.getTripped());
+
+        watchdog.beat(300 * MS, link(20 * MS, 0.5, 20, 290 * MS));
+        assertEquals(DriveWatchdog.Reason.LOSS, watchdog.getTripped());
+
+        // Still out of budget throughout, so the driver only hears about it once
+        assertEquals(1, watchdog.getStopCount());
+        assertEquals(listOf("LATENCY"), events);
+    }
+
+    @Test
+    public void quietLink_stopsTheBoardThenResumesDriving() throws Exception {
+
+        RoveNode board = new RoveNode("127.0.0.1", simulator.getPort());
+        roveComm.subscribe(board);
+
+        DriveWatchdog watchdog = new DriveWatchdog(roveComm, board, listener);
+        watchdog.setRate(20);
+        watchdog.setBudget(300, 1000, TimeUnit.MILLISECONDS, 1.0);
+        watchdog.start();
+        try {
+
+            watchdog.setDrive(300, -300);
+            awaitDrive(300, -300);
+
+            // Nothing from the board gets back, so the watchdog stops it
+            simulator.setLoss(1.0);
+            awaitDrive(0, 0);
+            assertEquals(DriveWatchdog.Reason.SILENCE, watchdog.getTripped());
+
+            // Commands while the link is down are held until it's back
+            watchdog.setDrive(500, 500);
+            simulator.setLoss(0);
+            awaitDrive(500, 500);
+            assertNull(watchdog.getTripped());
+            synchronized (events) {
+                assertEquals(listOf("SILENCE", "RESTORED"), events);
+            }
+        } finally {
+            watchdog.stop();
+        }
+        awaitDrive(0, 0);
+    }
+
+    @Test
+    public void otherBoardsTraffic_doesNotHideADeadDriveBoard() throws Exception {
+
+        // The simulator keeps sending telemetry, but the drive board is on a port nothing is on
+        roveComm.subscribe(new RoveNode("127.0.0.1", simulator.getPort()));
+        RoveNode deadBoard = new RoveNode("127.0.0.1", freePort());
+        roveComm.startLinkMonitor(20);
+
+        DriveWatchdog watchdog = new DriveWatchdog(roveComm, deadBoard, listener);
+        watchdog.setRate(20);
+        watchdog.setBudget(300, 1000, TimeUnit.MILLISECONDS, 1.0);
+        watchdog.start();
+        try {
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (watchdog.getTripped() == null && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(DriveWatchdog.Reason.SILENCE, watchdog.getTripped());
+            assertTrue("Telemetry should still be arriving",
+                    System.nanoTime() - roveComm.getLastReceivedTime() < 300 * MS);
+            assertNotNull(roveComm.getLinkSnapshot(deadBoard));
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void stop_waitsForABeatUnderWay() throws Exception {
+
+        final CountDownLatch inBeat = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> sent = new ArrayList<>();
+
+        // Holds the watchdog's first beat mid-send, as a full send queue could
+        RoveComm held = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort()) {
+            @Override
+            public void sendData(RoveMessage message, RoveNode node) {
+
+                int left = ((DrivePower) message).getLeft();
+                if (left != 0 && Thread.currentThread().getName().equals("RoveComm-watchdog")) {
+                    inBeat.countDown();
+                    awaitIgnoringInterrupts(release);
+                }
+                synchronized (sent) {
+                    sent.add(left);
+                }
+            }
+        };
+
+        try {
+
+            final DriveWatchdog watchdog = new DriveWatchdog(held,
+                    new RoveNode("127.0.0.1", simulator.getPort()), null);
+            watchdog.setDrive(300, 300);
+            watchdog.start();
+            assertTrue("Watchdog never beat", inBeat.await(5, TimeUnit.SECONDS));
+
+            Thread stopper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchdog.stop();
+                }
+            });
+            stopper.start();
+            Thread.sleep(100);
+            release.countDown();
+            stopper.join(5000);
+            assertFalse("stop() never returned", stopper.isAlive());
+
+            // Time for a beat that outlived stop() to land
+            Thread.sleep(100);
+
+            synchronized (sent) {
+                assertEquals("The stop must be the last thing sent", 0,
+                        (int) sent.get(sent.size() - 1));
+            }
+        } finally {
+            held.onDestroy();
+        }
+    }
+
+    @Test
+    public void setDrive_duringATrippingBeat_doesNotReplaceTheStop() throws Exception {
+
+        final CountDownLatch inSet = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> sent = new ArrayList<>();
+
+        // Holds a drive power set from the UI mid-send, while the link goes quiet
+        RoveComm held = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort()) {
+            @Override
+            public void sendData(RoveMessage message, RoveNode node) {
+
+                int left = ((DrivePower) message).getLeft();
+                if (left != 0) {
+                    inSet.countDown();
+                    awaitIgnoringInterrupts(release);
+                }
+                synchronized (sent) {
+                    sent.add(left);
+                }
+            }
+        };
+
+        try {
+
+            final DriveWatchdog watchdog = new DriveWatchdog(held,
+                    new RoveNode("127.0.0.1", simulator.getPort()), null);
+            watchdog.begin(0);
+
+            Thread setter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchdog.setDrive(500, 500);
+                }
+            });
+            setter.start();
+            assertTrue("Drive power never sent", inSet.await(5, TimeUnit.SECONDS));
+
+            Thread beater = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchdog.beat(1000 * MS, null);
+                }
+            });
+            beater.start();
+            Thread.sleep(100);
+            release.countDown();
+            setter.join(5000);
+            beater.join(5000);
+
+            assertEquals(DriveWatchdog.Reason.SILENCE, watchdog.getTripped());
+            synchronized (sent) {
+                assertEquals("The stop must be the last thing sent", 0,
+                        (int) sent.get(sent.size() - 1));
+            }
+        } finally {
+            held.onDestroy();
+        }
+    }
+
+    @Test
+    public void setDrive_afterStop_sendsNothing() throws Exception {
+
+        final List<Integer> sent = new ArrayList<>();
+        RoveComm recording = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort()) {
+            @Override
+            public void sendData(RoveMessage message, RoveNode node) {
+                sent.add(((DrivePower) message).getLeft());
+            }
+        };
+
+        try {
+
+            DriveWatchdog watchdog = new DriveWatchdog(recording,
+                    new RoveNode("127.0.0.1", simulator.getPort()), null);
+            watchdog.start();
+            watchdog.stop();
+            watchdog.setDrive(300, 300);
+
+            assertEquals("The stop must be the last thing sent", 0,
+                    (int) sent.get(sent.size() - 1));
+        } finally {
+            recording.onDestroy();
+        }
+    }
+
+    /**
+     * Waits like a send that doesn't notice interrupts, keeping the interrupt for afterwards
+     */
+    private static void awaitIgnoringInterrupts(CountDownLatch latch) {
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DriveWatchdog newWatchdog() throws Exception {
+
+        DriveWatchdog watchdog = new DriveWatchdog(roveComm,
+                new RoveNode("127.0.0.1", simulator.getPort()), listener);
+        watchdog.setBudget(500, 300, TimeUnit.MILLISECONDS, 0.25);
+        return watchdog;
+    }
+
+    private static LinkMonitor.LinkSnapshot link(long p95, double loss, long samples,
+                                                 long lastReply) {
+        return new LinkMonitor.LinkSnapshot(p95 / 2, p95, p95, 0, loss, samples, lastReply,
+                lastReply);
+    }
+
+    /**
+     * @return Stats for a board no ping reply has come from, last heard from at a time
+     */
+    private static LinkMonitor.LinkSnapshot heard(long lastReceived) {
+        return new LinkMonitor.LinkSnapshot(0, 0, 0, 0, 0, 0, LinkMonitor.NO_REPLY,
+                lastReceived);
+    }
+
+    private static List<String> listOf(String... values) {
+
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private void awaitDrive(int left, int right) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((simulator.getLastLeft() != left || simulator.getLastRight() != right)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(left, simulator.getLastLeft());
+        assertEquals(right, simulator.getLastRight());
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
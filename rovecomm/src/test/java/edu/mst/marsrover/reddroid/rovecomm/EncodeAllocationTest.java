@@ -0,0 +1,224 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark checking that the steady state send path allocates nothing per packet. Runs on
+ * the host JVM, where the thread MXBean can report bytes allocated by each thread.
+ */
+public class EncodeAllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int OPERATIONS = 200000;
+
+    // Allowance for anything the measurement itself allocates, shared across all operations
+    private static final long SLACK_BYTES = 4096;
+
+    // Packets the send thread is measured over, queued a lane's worth at a time
+    private static final int SEND_LANE = 1024;
+    private static final int SEND_PACKETS = 100 * SEND_LANE;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private final byte[] payload = {1, 2, 3, 4};
+    private final byte[] packet = new byte[1500];
+    private final InetSocketAddress node = new InetSocketAddress("192.168.1.130", 11000);
+
+    @Before
+    public void setUp() {
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void encodeIntoArray_allocatesNothing() {
+
+        Runnable op = new Runnable() {
+            int seq = 0;
+
+            @Override
+            public void run() {
+                RoveProtocol.encodePacket(528, payload, 0, payload.length, seq++, false, packet, 0);
+            }
+        };
+
+        assertZeroBytesPerOp("encode into byte[]", op);
+    }
+
+    @Test
+    public void encodeIntoDirectBuffer_allocatesNothing() {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1500);
+
+        Runnable op = new Runnable() {
+            @Override
+            public void run() {
+                buffer.clear();
+                RoveProtocol.encodePacket(528, payload, 0, payload.length, 0, false, buffer);
+            }
+        };
+
+        assertZeroBytesPerOp("encode into direct ByteBuffer", op);
+    }
+
+    @Test
+    public void queueOfferAndTake_allocatesNothing() {
+
+        final SendQueue queue = new SendQueue(64, SendQueue.OverflowPolicy.DROP_OLDEST, 1492);
+        final SendQueue.Entry entry = queue.newEntry();
+
+        Runnable op = new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(528, payload, node);
+                try {
+                    queue.take(entry);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length, 0, false, packet, 0);
+            }
+        };
+
+        assertZeroBytesPerOp("queue offer, take and encode", op);
+    }
+
+    @Test
+    public void coalescedOffer_allocatesNothing() {
+
+        final SendQueue queue = new SendQueue(64, SendQueue.OverflowPolicy.DROP_OLDEST, 1492);
+        queue.setCoalesced(528, 50);
+
+        Runnable op = new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(528, payload, node);
+            }
+        };
+
+        assertZeroBytesPerOp("coalesced offer", op);
+    }
+
+    @Test
+    public void blockingSendThread_allocatesNothingPerPacket() throws Exception {
+
+        // Somewhere for the packets to go, never read so they're simply dropped once it's full
+        DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        RoveNode sinkNode = new RoveNode("127.0.0.1", sink.getLocalPort());
+
+        Set<Thread> before = threadsNamed("RoveComm-send");
+        RoveComm roveComm = new RoveComm(null, RoveComm.Transport.BLOCKING, SEND_LANE,
+                SendQueue.OverflowPolicy.DROP_NEWEST, freePort());
+
+        try {
+
+            Set<Thread> started = threadsNamed("RoveComm-send");
+            started.removeAll(before);
+            assertEquals(1, started.size());
+            long sender = started.iterator().next().getId();
+
+            sendLanes(roveComm, sinkNode, WARMUP);
+            long start = threadBean.getThreadAllocatedBytes(sender);
+            sendLanes(roveComm, sinkNode, SEND_PACKETS);
+            long allocated = threadBean.getThreadAllocatedBytes(sender) - start;
+
+            // Waiting for the queue can allocate a lock node, but anything allocated for each
+            // packet would be at least an object header, so this is well under a byte a packet
+            assertEquals(0, roveComm.getSendQueue().getDroppedCount());
+            assertTrue("send thread allocated " + bytesPerOp(allocated, SEND_PACKETS)
+                    + " bytes/packet", allocated < SEND_PACKETS);
+        } finally {
+            roveComm.onDestroy();
+            sink.close();
+        }
+    }
+
+    /**
+     * Queues packets a lane's worth at a time, and waits for each lane to be sent before the next
+     */
+    private void sendLanes(RoveComm roveComm, RoveNode node, int packets)
+            throws InterruptedException {
+
+        SendQueue queue = roveComm.getSendQueue();
+        for (int sent = 0; sent < packets; sent += SEND_LANE) {
+
+            long target = queue.getSentCount() + SEND_LANE;
+            for (int i = 0; i < SEND_LANE; i++) {
+                roveComm.sendData(528, payload, node);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (queue.getSentCount() < target) {
+                assertTrue("Send thread stalled", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Runs op enough to warm it up, then fails if the measured run allocated anything per op
+     */
+    private void assertZeroBytesPerOp(String name, Runnable op) {
+
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < OPERATIONS; i++) {
+            op.run();
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(name + " allocated " + bytesPerOp(allocated, OPERATIONS) + " bytes/op ("
+                + allocated + " bytes over " + OPERATIONS + " ops)", allocated <= SLACK_BYTES);
+    }
+
+    private static String bytesPerOp(long allocated, int operations) {
+        return String.format(Locale.US, "%.3f", (double) allocated / operations);
+    }
+
+    /**
+     * @return Live threads with the name
+     */
+    private static Set<Thread> threadsNamed(String name) {
+
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals(name)) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,81 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the NIO event loop, which both handles received packets and empties the send queue,
+ * never waits on itself for room to queue a reply
+ */
+public class EventLoopTest {
+
+    @Test
+    public void fullLaneUnderBlock_stillAnswersPings() throws Exception {
+
+        // One packet per lane, so any two PINGs handled in one drain of the socket fill it
+        RoveComm node = new RoveComm(null, RoveComm.Transport.NIO, 1,
+                SendQueue.OverflowPolicy.BLOCK, freePort());
+        DatagramSocket pinger = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        try {
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            for (int i = 0; i < 200; i++) {
+                byte[] ping = RoveProtocol.encodePacket(RoveComm.PING,
+                        ByteBuffer.allocate(4).putInt(i).array(), 0, false);
+                pinger.send(new DatagramPacket(ping, ping.length, loopback, node.getPort()));
+            }
+
+            // Whatever replies made it back, a later PING must still be answered
+            Thread.sleep(200);
+            pinger.setSoTimeout(50);
+            byte[] buffer = new byte[64];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    pinger.receive(reply);
+                }
+            } catch (SocketTimeoutException drained) {
+            }
+
+            byte[] ping = RoveProtocol.encodePacket(RoveComm.PING,
+                    ByteBuffer.allocate(4).putInt(1000).array(), 0, false);
+            pinger.send(new DatagramPacket(ping, ping.length, loopback, node.getPort()));
+
+            pinger.setSoTimeout(2000);
+            reply.setLength(buffer.length);
+            try {
+                pinger.receive(reply);
+            } catch (SocketTimeoutException e) {
+                fail("Event loop stopped answering once a lane was full");
+            }
+
+            RoveProtocol.DataObject answer = RoveProtocol.decodePacket(
+                    Arrays.copyOf(buffer, reply.getLength()));
+            assertEquals(RoveComm.PING_REPLY, answer.getDataId());
+            assertEquals(1000, ByteBuffer.wrap(answer.getData()).getInt());
+        } finally {
+            pinger.close();
+            node.onDestroy();
+        }
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,87 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DataIds;
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the messages generated from the DataID schema against the layouts the boards expect
+ */
+public class GeneratedCodecTest {
+
+    @Test
+    public void drivePower_matchesTheHandPackedLayout() {
+
+        int[][] powers = {{0, 0}, {1000, -1000}, {-1, 1}, {255, 256}, {-32768, 32767}};
+
+        for (int[] power : powers) {
+
+            byte[] legacy = new byte[4];
+            legacy[0] = (byte) (power[0] & 0xFF);
+            legacy[1] = (byte) ((power[0] >>> 8) & 0xFF);
+            legacy[2] = (byte) (power[1] & 0xFF);
+            legacy[3] = (byte) ((power[1] >>> 8) & 0xFF);
+
+            byte[] encoded = new byte[DrivePower.SIZE];
+            assertEquals(DrivePower.SIZE, new DrivePower().set(power[0], power[1]).encode(encoded, 0));
+            assertArrayEquals(legacy, encoded);
+        }
+
+        assertEquals(528, DrivePower.DATA_ID);
+        assertEquals(DrivePower.DATA_ID, DataIds.DRIVE_POWER);
+    }
+
+    @Test
+    public void drivePower_roundTripsThroughTheSendQueueAndDecoder() throws InterruptedException {
+
+        SendQueue queue = new SendQueue(4, SendQueue.OverflowPolicy.DROP_NEWEST, 64);
+        InetSocketAddress node = new InetSocketAddress("127.0.0.1", 11000);
+        DrivePower sent = new DrivePower().set(-1000, 750);
+
+        assertTrue(queue.offer(sent, node));
+        // Changing the message after queueing must not change what is sent
+        sent.set(0, 0);
+
+        SendQueue.Entry entry = new SendQueue.Entry(64);
+        queue.take(entry);
+        assertEquals(DrivePower.DATA_ID, entry.id);
+        assertEquals(DrivePower.SIZE, entry.length);
+
+        ByteBuffer packet = ByteBuffer.allocate(RoveProtocol.HEADER_SIZE + entry.length);
+        RoveProtocol.encodePacket(entry.id, entry.data, 0, entry.length, 0, false, packet);
+        packet.flip();
+
+        PacketView view = new PacketView(packet);
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, packet.limit()));
+
+        DrivePower received = new DrivePower();
+        assertTrue(received.decode(view));
+        assertEquals(-1000, received.getLeft());
+        assertEquals(750, received.getRight());
+    }
+
+    @Test
+    public void decode_rejectsOtherDataIdsAndSizes() {
+
+        DrivePower power = new DrivePower().set(1, 2);
+
+        byte[] wrongId = RoveProtocol.encodePacket(529, new byte[DrivePower.SIZE], 0, false);
+        PacketView view = new PacketView(ByteBuffer.wrap(wrongId));
+        RoveProtocol.decodePacket(view, 0, wrongId.length);
+        assertFalse(power.decode(view));
+
+        byte[] wrongSize = RoveProtocol.encodePacket(DrivePower.DATA_ID, new byte[3], 0, false);
+        view = new PacketView(ByteBuffer.wrap(wrongSize));
+        RoveProtocol.decodePacket(view, 0, wrongSize.length);
+        assertFalse(power.decode(view));
+
+        assertEquals(1, power.getLeft());
+        assertEquals(2, power.getRight());
+    }
+}
@@ -0,0 +1,203 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks DataIDs find their own handler as the table grows, that single DataIDs beat ranges, that
+ * unregistering removes everything a handler had, and that a worker drops its oldest packets when
+ * its handler falls behind
+ */
+public class HandlerRegistryTest {
+
+    private final HandlerRegistry registry = new HandlerRegistry();
+
+    @Test
+    public void exactIds_findTheirOwnHandlerAsTheTableGrows() {
+
+        // Enough to grow the table many times, and for DataIDs to share slots along the way
+        List<Recorder> handlers = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+
+            Recorder handler = new Recorder();
+            registry.register(i * 37, handler);
+            handlers.add(handler);
+
+            if (i % 50 == 0 || i == 499) {
+                for (int j = 0; j <= i; j++) {
+                    assertTrue(registry.dispatch(view(j * 37, 0)));
+                    assertEquals(j * 37, handlers.get(j).lastId);
+                }
+            }
+        }
+
+        assertFalse(registry.dispatch(view(1, 0)));
+        assertFalse(registry.dispatch(view(500 * 37, 0)));
+    }
+
+    @Test
+    public void sameId_replacesTheOldHandler() {
+
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        registry.register(100, first);
+        registry.register(100, second);
+
+        registry.dispatch(view(100, 0));
+        assertEquals(0, first.count);
+        assertEquals(1, second.count);
+    }
+
+    @Test
+    public void exactIds_takePrecedenceOverRanges() {
+
+        Recorder exact = new Recorder();
+        Recorder range = new Recorder();
+        Recorder later = new Recorder();
+        registry.registerRange(1000, 1099, range);
+        registry.register(1050, exact);
+        registry.registerRange(1000, 1199, later);
+
+        registry.dispatch(view(1050, 0));
+        assertEquals(1, exact.count);
+        assertEquals(0, range.count);
+
+        // Overlapping ranges go to whichever was registered first
+        registry.dispatch(view(1000, 0));
+        registry.dispatch(view(1099, 0));
+        assertEquals(2, range.count);
+        registry.dispatch(view(1100, 0));
+        assertEquals(1, later.count);
+
+        assertFalse(registry.dispatch(view(999, 0)));
+        assertFalse(registry.dispatch(view(1200, 0)));
+    }
+
+    @Test
+    public void unregister_removesEveryIdAndRangeOfAHandler() {
+
+        Recorder removed = new Recorder();
+        Recorder kept = new Recorder();
+        registry.register(1, removed);
+        registry.register(2, removed);
+        registry.registerRange(100, 199, removed);
+        registry.register(150, kept);
+        registry.registerRange(100, 299, kept);
+
+        registry.unregister(removed);
+
+        assertFalse(registry.dispatch(view(1, 0)));
+        assertFalse(registry.dispatch(view(2, 0)));
+        assertTrue(registry.dispatch(view(150, 0)));
+        assertTrue(registry.dispatch(view(120, 0)));
+        assertEquals(0, removed.count);
+        assertEquals(2, kept.count);
+
+        // Unregistering an unknown handler changes nothing
+        registry.unregister(new Recorder());
+        assertTrue(registry.dispatch(view(150, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRange_isRejected() {
+        registry.registerRange(10, 9, new Recorder());
+    }
+
+    @Test
+    public void inlineHandler_runsOnTheReceiveThread() {
+
+        final List<Thread> threads = new ArrayList<>();
+        registry.register(5, new RoveComm.OnReceiveData() {
+            @Override
+            public void receiveData(int id, byte[] content) {
+                threads.add(Thread.currentThread());
+            }
+        }, HandlerRegistry.INLINE);
+
+        registry.dispatch(view(5, 0));
+        assertEquals(1, threads.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void slowWorker_dropsItsOldestPackets() throws Exception {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(257);
+        final List<Integer> values = new ArrayList<>();
+        final List<String> threadNames = new ArrayList<>();
+
+        Executor worker = HandlerRegistry.newWorker("test-worker");
+        registry.register(5, new RoveComm.OnReceiveData() {
+            @Override
+            public void receiveData(int id, byte[] content) {
+
+                synchronized (values) {
+                    values.add(ByteBuffer.wrap(content).getInt());
+                    threadNames.add(Thread.currentThread().getName());
+                }
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                finished.countDown();
+            }
+        }, worker);
+
+        // The first is held by the handler while 300 more arrive for a 256 packet queue
+        registry.dispatch(view(5, 0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 300; i++) {
+            assertTrue(registry.dispatch(view(5, i)));
+        }
+        release.countDown();
+
+        assertTrue("Worker never caught up", finished.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        synchronized (values) {
+            assertEquals(257, values.size());
+            assertEquals(0, (int) values.get(0));
+            for (int i = 1; i < values.size(); i++) {
+                assertEquals(300 - 256 + i, (int) values.get(i));
+            }
+            assertEquals("test-worker", threadNames.get(0));
+        }
+    }
+
+    /**
+     * @return A decoded packet for a DataID, carrying value as its data
+     */
+    private static PacketView view(int dataId, int value) {
+
+        byte[] data = ByteBuffer.allocate(4).putInt(value).array();
+        byte[] packet = RoveProtocol.encodePacket(dataId, data, 0, false);
+        PacketView view = new PacketView(ByteBuffer.wrap(packet));
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, packet.length));
+        return view;
+    }
+
+    /**
+     * Handler that remembers the last DataID it was given and how many packets
+     */
+    private static class Recorder implements RoveComm.OnReceivePacket {
+
+        int lastId = -1;
+        int count;
+
+        @Override
+        public void receivePacket(PacketView packet) {
+            lastId = packet.getDataId();
+            count++;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks round trip percentiles, jitter and loss from synthetic probes and replies, and that old
+ * windows are forgotten as the stats roll over
+ */
+public class LinkMonitorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final InetSocketAddress BOARD = new InetSocketAddress("192.168.1.130", 11000);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("192.168.1.130", 11001);
+
+    private final List<byte[]> pings = new ArrayList<>();
+    private LinkMonitor monitor;
+    private long now;
+
+    @Before
+    public void setUp() {
+
+        monitor = new LinkMonitor(new LinkMonitor.Output() {
+            @Override
+            public void sendPing(byte[] data, InetSocketAddress address) {
+                if (address.equals(BOARD)) {
+                    pings.add(data.clone());
+                }
+            }
+        }, TimeUnit.SECONDS.toNanos(1));
+        monitor.addNode(BOARD);
+
+        // Windows are timed from when the node was added
+        now = System.nanoTime();
+    }
+
+    @Test
+    public void roundTrips_giveRoughPercentiles() {
+
+        for (int i = 1; i <= 100; i++) {
+            monitor.probe(i, now);
+            reply(i * MS);
+            now += MS;
+        }
+
+        LinkMonitor.LinkSnapshot link = monitor.getSnapshot(BOARD);
+        assertEquals(100, link.getSamples());
+        assertEquals(0, link.getLossRate(), 0);
+        assertNear(50 * MS, link.getP50());
+        assertNear(95 * MS, link.getP95());
+        assertNear(99 * MS, link.getP99());
+    }
+
+    @Test
+    public void unansweredProbes_countAsLost() {
+
+        for (int i = 0; i < 20; i++) {
+            monitor.probe(i, now);
+            if (i % 4 != 0) {
+                reply(5 * MS);
+            }
+            now += MS;
+        }
+
+        // Replies from elsewhere, or too short to hold a probe, count for nothing
+        monitor.onPingReply(OTHER, ByteBuffer.wrap(pings.get(0)), now);
+        monitor.onPingReply(BOARD, ByteBuffer.allocate(4), now);
+
+        LinkMonitor.LinkSnapshot link = monitor.getSnapshot(BOARD);
+        assertEquals(15, link.getSamples());
+        assertEquals(0.25, link.getLossRate(), 1e-9);
+        assertNull(monitor.getSnapshot(OTHER));
+    }
+
+    @Test
+    public void alternatingRoundTrips_giveJitter() {
+
+        for (int i = 0; i < 200; i++) {
+            monitor.probe(i, now);
+            reply((i % 2 == 0) ? 10 * MS : 20 * MS);
+            now += MS;
+        }
+
+        // RFC 3550 jitter settles on the mean difference between consecutive round trips
+        long jitter = monitor.getSnapshot(BOARD).getJitter();
+        assertTrue("Jitter " + jitter, jitter > 9 * MS && jitter <= 10 * MS);
+    }
+
+    @Test
+    public void statsRollOver_andForgetOldWindows() {
+
+        for (int i = 0; i < 10; i++) {
+            monitor.probe(i, now);
+            reply(5 * MS);
+            now += MS;
+        }
+
+        // One window on, the old replies are still the previous half of the stats
+        now += TimeUnit.SECONDS.toNanos(1);
+        monitor.probe(10, now);
+        LinkMonitor.LinkSnapshot link = monitor.getSnapshot(BOARD);
+        assertEquals(10, link.getSamples());
+        assertEquals(1 / 11.0, link.getLossRate(), 1e-9);
+
+        // Two windows on, they're gone, leaving only the unanswered probes
+        now += TimeUnit.SECONDS.toNanos(1);
+        monitor.probe(11, now);
+        link = monitor.getSnapshot(BOARD);
+        assertEquals(0, link.getSamples());
+        assertEquals(1, link.getLossRate(), 0);
+    }
+
+    @Test
+    public void anyPacket_countsAsHeardFrom() {
+
+        assertEquals(LinkMonitor.NO_REPLY, monitor.getSnapshot(BOARD).getLastReceived());
+
+        monitor.onReceived(OTHER.getAddress(), OTHER.getPort(), now);
+        assertEquals(LinkMonitor.NO_REPLY, monitor.getSnapshot(BOARD).getLastReceived());
+
+        monitor.onReceived(BOARD.getAddress(), BOARD.getPort(), now);
+        assertEquals(now, monitor.getSnapshot(BOARD).getLastReceived());
+        assertEquals(LinkMonitor.NO_REPLY, monitor.getSnapshot(BOARD).getLastReply());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateTooFastToSleepBetween_isRefused() {
+        monitor.start(1001);
+    }
+
+    /**
+     * Echoes the latest ping back after a round trip
+     */
+    private void reply(long rtt) {
+        monitor.onPingReply(BOARD, ByteBuffer.wrap(pings.get(pings.size() - 1)), now + rtt);
+    }
+
+    /**
+     * Percentiles come from log-linear buckets, so are only good to about 6%
+     */
+    private static void assertNear(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 0.07);
+    }
+}
@@ -0,0 +1,137 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a broadcasting node with one subscriber in a multicast group on the loopback interface and
+ * one subscribed directly, and checks each broadcast is sent once per group plus once per direct
+ * subscriber
+ */
+public class MulticastTest {
+
+    private static final String GROUP = "239.255.11.0";
+    private static final int TELEMETRY_ID = 1000;
+    private static final int COUNT = 20;
+
+    private RoveComm publisher;
+    private RoveComm member;
+    private RoveComm direct;
+    private NetworkInterface loopback;
+
+    @Before
+    public void setUp() throws Exception {
+
+        loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        publisher = newRoveComm(RoveComm.Transport.BLOCKING);
+        member = newRoveComm(RoveComm.Transport.BLOCKING);
+        // NIO can't join groups, so it is the one subscribed directly
+        direct = newRoveComm(RoveComm.Transport.NIO);
+        assertTrue(publisher.setMulticastInterface(loopback));
+    }
+
+    @After
+    public void tearDown() {
+        publisher.onDestroy();
+        member.onDestroy();
+        direct.onDestroy();
+    }
+
+    @Test
+    public void broadcast_oneDatagramPerGroupAndDirectSubscriber() throws Exception {
+
+        assertFalse(direct.joinMulticastGroup(GROUP, loopback));
+        assertTrue(member.joinMulticastGroup(GROUP, loopback));
+
+        RoveNode node = new RoveNode("127.0.0.1", publisher.getPort());
+        member.subscribe(node);
+        direct.subscribe(node);
+        awaitSubscribers(2, 1);
+
+        CountDownLatch memberReceived = countReceived(member, COUNT);
+        CountDownLatch directReceived = countReceived(direct, COUNT);
+        long sentBefore = publisher.getSendQueue().getSentCount();
+
+        for (int i = 0; i < COUNT; i++) {
+            publisher.sendData(TELEMETRY_ID, new byte[]{(byte) i});
+        }
+
+        assertTrue("Group member missed broadcasts", memberReceived.await(5, TimeUnit.SECONDS));
+        assertTrue("Direct subscriber missed broadcasts",
+                directReceived.await(5, TimeUnit.SECONDS));
+        assertEquals(2 * COUNT, publisher.getSendQueue().getSentCount() - sentBefore);
+    }
+
+    @Test
+    public void leavingAndUnsubscribing_updateTheGroups() throws Exception {
+
+        assertTrue(member.joinMulticastGroup(GROUP, loopback));
+        RoveNode node = new RoveNode("127.0.0.1", publisher.getPort());
+        member.subscribe(node);
+        awaitSubscribers(1, 1);
+
+        // Leaving asks again without the group, so the publisher falls back to sending directly
+        member.leaveMulticastGroup();
+        assertNull(member.getMulticastGroup());
+        awaitSubscribers(1, 0);
+
+        CountDownLatch received = countReceived(member, 1);
+        publisher.sendData(TELEMETRY_ID, new byte[]{1});
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        // Joining again moves it back, and unsubscribing leaves the group with nobody to send to
+        assertTrue(member.joinMulticastGroup(GROUP, loopback));
+        awaitSubscribers(1, 1);
+        member.unSubscribe(node);
+        awaitSubscribers(0, 0);
+    }
+
+    private RoveComm newRoveComm(RoveComm.Transport transport) throws SocketException {
+        return new RoveComm(null, transport, 64, SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+    }
+
+    private static CountDownLatch countReceived(RoveComm roveComm, int count) {
+
+        final CountDownLatch latch = new CountDownLatch(count);
+        roveComm.register(TELEMETRY_ID, new RoveComm.OnReceivePacket() {
+            @Override
+            public void receivePacket(PacketView packet) {
+                latch.countDown();
+            }
+        });
+        return latch;
+    }
+
+    private void awaitSubscribers(int subscribers, int groups) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((publisher.getSubscribers().size() != subscribers
+                || publisher.getMulticastGroups().size() != groups)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(subscribers, publisher.getSubscribers().size());
+        assertEquals(groups, publisher.getMulticastGroups().size());
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
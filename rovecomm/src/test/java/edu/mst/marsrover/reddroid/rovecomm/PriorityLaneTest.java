@@ -0,0 +1,151 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks critical packets jump every other lane, the rest share by weight, and an e-stop still
+ * gets out promptly while a flood keeps a slow sender saturated
+ */
+public class PriorityLaneTest {
+
+    private static final int ESTOP_ID = 528;
+    private static final int HIGH_ID = 100;
+    private static final int NORMAL_ID = 200;
+    private static final int BULK_ID = 300;
+
+    private final InetSocketAddress destination = new InetSocketAddress("127.0.0.1", 11000);
+
+    @Test
+    public void lanes_criticalFirstThenSharedByWeight() {
+
+        SendQueue queue = newQueue(16, SendQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 16; i++) {
+            queue.offer(BULK_ID, new byte[1], destination);
+            queue.offer(NORMAL_ID, new byte[1], destination);
+            queue.offer(HIGH_ID, new byte[1], destination);
+        }
+
+        // Two rounds of 4 high, 2 normal, 1 bulk
+        SendQueue.Entry entry = queue.newEntry();
+        int high = 0;
+        int normal = 0;
+        int bulk = 0;
+        for (int i = 0; i < 14; i++) {
+            assertEquals(0, queue.poll(entry));
+            if (entry.id == HIGH_ID) high++;
+            if (entry.id == NORMAL_ID) normal++;
+            if (entry.id == BULK_ID) bulk++;
+        }
+        assertEquals(8, high);
+        assertEquals(4, normal);
+        assertEquals(2, bulk);
+
+        // Critical goes next, however much else is waiting
+        queue.offer(ESTOP_ID, new byte[4], destination);
+        assertEquals(0, queue.poll(entry));
+        assertEquals(ESTOP_ID, entry.id);
+        assertEquals(SendQueue.Priority.CRITICAL, entry.priority);
+    }
+
+    @Test
+    public void estop_boundedWhileFloodSaturatesSender() throws Exception {
+
+        final SendQueue queue = newQueue(64, SendQueue.OverflowPolicy.BLOCK);
+        final long[] taken = new long[1];
+        final CountDownLatch[] estop = new CountDownLatch[1];
+
+        // Sends a packet a millisecond, far slower than the flood can queue them
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                SendQueue.Entry entry = queue.newEntry();
+                try {
+                    while (queue.take(entry)) {
+                        if (entry.id == ESTOP_ID) {
+                            synchronized (taken) {
+                                taken[0] = System.nanoTime();
+                                estop[0].countDown();
+                            }
+                        }
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    // Test is over
+                }
+            }
+        });
+        Thread bulkFlood = flood(queue, BULK_ID);
+        Thread normalFlood = flood(queue, NORMAL_ID);
+        sender.start();
+        bulkFlood.start();
+        normalFlood.start();
+
+        try {
+
+            // Both lanes full, so anything that waited its turn would wait behind 128 packets
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (queue.size() < 128 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(128, queue.size());
+
+            long worst = 0;
+            for (int i = 0; i < 10; i++) {
+
+                synchronized (taken) {
+                    estop[0] = new CountDownLatch(1);
+                }
+                long start = System.nanoTime();
+                assertTrue(queue.offer(ESTOP_ID, new byte[4], destination));
+                assertTrue("E-stop never sent", estop[0].await(5, TimeUnit.SECONDS));
+                synchronized (taken) {
+                    worst = Math.max(worst, taken[0] - start);
+                }
+            }
+
+            // At most the packet already being sent goes first
+            assertTrue("Worst e-stop wait " + TimeUnit.NANOSECONDS.toMillis(worst) + " ms",
+                    worst < TimeUnit.MILLISECONDS.toNanos(20));
+        } finally {
+            queue.close();
+            sender.interrupt();
+            bulkFlood.join(1000);
+            normalFlood.join(1000);
+        }
+    }
+
+    private SendQueue newQueue(int capacity, SendQueue.OverflowPolicy policy) {
+
+        SendQueue queue = new SendQueue(capacity, policy, 64);
+        queue.setPriority(ESTOP_ID, SendQueue.Priority.CRITICAL);
+        queue.setPriority(HIGH_ID, SendQueue.Priority.HIGH);
+        queue.setPriority(BULK_ID, SendQueue.Priority.BULK);
+        return queue;
+    }
+
+    /**
+     * @return Thread offering packets of one DataID as fast as the queue takes them, until closed
+     */
+    private Thread flood(final SendQueue queue, final int id) {
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                byte[] data = new byte[64];
+                while (queue.offer(id, data, destination)) {
+                    // Offers wait while the lane is full
+                }
+            }
+        });
+        thread.setDaemon(true);
+        return thread;
+    }
+}
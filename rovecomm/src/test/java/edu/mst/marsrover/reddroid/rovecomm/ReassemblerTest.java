@@ -0,0 +1,173 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks payloads come back together whatever order their chunks arrive in, that stalled and
+ * oversized transfers are thrown away, and that a payload sent between two instances on loopback
+ * arrives whole
+ */
+public class ReassemblerTest {
+
+    private static final int CHUNK_SIZE = 100;
+    private static final int DATA_ID = 3000;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final InetAddress source = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void outOfOrderChunks_reassembleOnceAndStream() throws Exception {
+
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE);
+        final AtomicReference<byte[]> whole = new AtomicReference<>();
+        final AtomicInteger streamed = new AtomicInteger();
+        reassembler.setOnReceiveTransfer(new Reassembler.OnReceiveTransfer() {
+            @Override
+            public void receiveTransfer(Reassembler.Transfer transfer, ByteBuffer payload) {
+                byte[] copy = new byte[payload.remaining()];
+                payload.get(copy);
+                whole.set(copy);
+            }
+        });
+        reassembler.setOnReceiveChunk(new Reassembler.OnReceiveChunk() {
+            @Override
+            public void receiveChunk(Reassembler.Transfer transfer, int offset, ByteBuffer chunk) {
+                streamed.addAndGet(chunk.remaining());
+            }
+        });
+
+        byte[] payload = payload(450);
+        int[] order = {4, 0, 2, 2, 3, 1};
+        for (int i = 0; i < order.length; i++) {
+            assertNull("Completed early", whole.get());
+            reassembler.onFragment(chunk(payload, 1, order[i]), i * MS);
+        }
+
+        // The repeated chunk is only counted once
+        assertArrayEquals(payload, whole.get());
+        assertEquals(payload.length, streamed.get());
+        assertEquals(1, reassembler.getCompletedCount());
+    }
+
+    @Test
+    public void stalledAndOversizedTransfers_areThrownAway() throws Exception {
+
+        Reassembler reassembler = new Reassembler(CHUNK_SIZE);
+        reassembler.setMemoryBudget(8192);
+        reassembler.setTimeout(100, TimeUnit.MILLISECONDS);
+        final AtomicInteger completed = new AtomicInteger();
+        reassembler.setOnReceiveTransfer(new Reassembler.OnReceiveTransfer() {
+            @Override
+            public void receiveTransfer(Reassembler.Transfer transfer, ByteBuffer payload) {
+                completed.incrementAndGet();
+            }
+        });
+
+        // Half of a transfer, then nothing until well past the timeout
+        byte[] payload = payload(200);
+        reassembler.onFragment(chunk(payload, 1, 0), 0);
+        reassembler.onFragment(chunk(payload(150), 2, 0), 500 * MS);
+        assertEquals(1, reassembler.getEvictedCount());
+
+        // The rest of the stalled transfer starts afresh, so never completes on its own
+        reassembler.onFragment(chunk(payload, 1, 1), 510 * MS);
+        assertEquals(0, completed.get());
+
+        // Too big for the budget at all
+        reassembler.onFragment(chunk(payload(10000), 3, 0), 520 * MS);
+        assertEquals(1, reassembler.getRejectedCount());
+        assertTrue(reassembler.getMemoryUsed() <= 8192);
+
+        // A chunk claiming more than a chunk's worth of a payload is garbled
+        reassembler.onFragment(chunk(payload(50), 4, 0, 300), 530 * MS);
+        assertEquals(2, reassembler.getRejectedCount());
+    }
+
+    @Test
+    public void largePayload_arrivesWholeOverLoopback() throws Exception {
+
+        RoveComm sender = new RoveComm(null, RoveComm.Transport.BLOCKING, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        RoveComm receiver = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        try {
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<byte[]> whole = new AtomicReference<>();
+            receiver.getReassembler().setOnReceiveTransfer(new Reassembler.OnReceiveTransfer() {
+                @Override
+                public void receiveTransfer(Reassembler.Transfer transfer, ByteBuffer payload) {
+                    assertEquals(DATA_ID, transfer.getDataId());
+                    byte[] copy = new byte[payload.remaining()];
+                    payload.get(copy);
+                    whole.set(copy);
+                    done.countDown();
+                }
+            });
+
+            // More chunks than the send queue holds
+            byte[] payload = payload(200 * 1024);
+            assertTrue(sender.sendFragmented(DATA_ID, payload,
+                    new RoveNode("127.0.0.1", receiver.getPort())));
+            assertTrue("Payload never completed", done.await(5, TimeUnit.SECONDS));
+            assertTrue(Arrays.equals(payload, whole.get()));
+        } finally {
+            sender.onDestroy();
+            receiver.onDestroy();
+        }
+    }
+
+    private PacketView chunk(byte[] payload, int transferId, int index) throws Exception {
+        return chunk(payload, transferId, index,
+                Math.min(CHUNK_SIZE, payload.length - index * CHUNK_SIZE));
+    }
+
+    /**
+     * @return Decoded packet holding one chunk of payload, as a sender would make it
+     */
+    private PacketView chunk(byte[] payload, int transferId, int index, int length)
+            throws Exception {
+
+        byte[] data = new byte[Reassembler.HEADER_SIZE + length];
+        Reassembler.encodeHeader(data, DATA_ID, transferId, payload.length);
+        System.arraycopy(payload, index * CHUNK_SIZE, data, Reassembler.HEADER_SIZE,
+                Math.min(length, payload.length - index * CHUNK_SIZE));
+
+        PacketView view = new PacketView(ByteBuffer.wrap(
+                RoveProtocol.encodePacket(RoveComm.FRAGMENT, data, index, false)));
+        RoveProtocol.decodePacket(view);
+        view.setSource(source, 11000);
+        return view;
+    }
+
+    private static byte[] payload(int length) {
+
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,388 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests for reliable delivery. Two channels are wired together through a simulated link
+ * that delays and randomly drops packets, all driven by a fake clock so runs are repeatable.
+ */
+public class ReliableChannelTest {
+
+    private static final InetSocketAddress IP_A = new InetSocketAddress("192.168.1.10", 11000);
+    private static final InetSocketAddress IP_B = new InetSocketAddress("192.168.1.130", 11000);
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long now = TimeUnit.SECONDS.toNanos(1000);
+
+    @Test
+    public void everyPacketArrivesOnce_despiteLossBothWays() {
+
+        Link link = new Link(0.3, 10 * MS, new Random(42), now);
+        Node a = new Node(IP_A, link, 20);
+        Node b = new Node(IP_B, link, 20);
+
+        for (int i = 0; i < 200; i++) {
+            assertNotEquals(-1, a.channel.send(1000 + i, new byte[]{(byte) i}, IP_B, now));
+            run(link, a, b, 2 * MS);
+        }
+        run(link, a, b, 30000 * MS);
+
+        assertEquals(200, b.received.size());
+        assertEquals("No packet may be handed up twice", 200, b.receivedCount);
+        assertEquals(200, a.delivered);
+        assertEquals(0, a.failed);
+        assertEquals(0, a.channel.getInFlightCount());
+        assertTrue("Loss should have forced retransmits", link.sent > 400);
+    }
+
+    @Test
+    public void retransmitTimeout_adaptsToMeasuredRoundTrip() {
+
+        Link link = new Link(0, 40 * MS, new Random(1), now);
+        Node a = new Node(IP_A, link, 8);
+        Node b = new Node(IP_B, link, 8);
+
+        for (int i = 0; i < 50; i++) {
+            a.channel.send(1000, null, IP_B, now);
+            run(link, a, b, 100 * MS);
+        }
+
+        long rto = a.channel.getRto(IP_B);
+        assertTrue("RTO " + rto / MS + "ms should be just above the 80ms round trip",
+                rto >= 80 * MS && rto <= 120 * MS);
+        assertEquals(50, a.delivered);
+        assertEquals("Nothing should be retransmitted on a clean link", 100, link.sent);
+    }
+
+    @Test
+    public void packetFails_afterMaxRetries() {
+
+        Link link = new Link(1, MS, new Random(1), now);
+        Node a = new Node(IP_A, link, 3);
+        Node b = new Node(IP_B, link, 3);
+
+        a.channel.send(1000, new byte[]{1}, IP_B, now);
+        run(link, a, b, 30000 * MS);
+
+        assertEquals(1, a.failed);
+        assertEquals(0, a.delivered);
+        assertEquals(0, a.channel.getInFlightCount());
+        assertEquals("One send plus three retries", 4, link.sent);
+    }
+
+    @Test
+    public void burstOfLosses_backsOffOnce() {
+
+        Link link = new Link(1, MS, new Random(1), now);
+        Node a = new Node(IP_A, link, 8);
+        Node b = new Node(IP_B, link, 8);
+
+        long initial = a.channel.getRto(IP_B);
+        for (int i = 0; i < 10; i++) {
+            a.channel.send(1000, null, IP_B, now);
+        }
+
+        // All ten time out together, then their retransmits time out together
+        run(link, a, b, initial + 10 * MS);
+        assertEquals(2 * initial, a.channel.getRto(IP_B));
+        assertEquals(20, link.sent);
+
+        run(link, a, b, 2 * initial);
+        assertEquals(4 * initial, a.channel.getRto(IP_B));
+        assertEquals(30, link.sent);
+    }
+
+    @Test
+    public void repeatedPacket_isAckedAgainButReportedOnce() {
+
+        final List<Integer> acks = new ArrayList<>();
+        ReliableChannel channel = new ReliableChannel(new ReliableChannel.Output() {
+            @Override
+            public void transmit(int id, byte[] data, int length, int seqNum, boolean requireAck,
+                                 InetSocketAddress address) {
+                assertEquals(RoveComm.ACK, id);
+                acks.add(seqNum);
+            }
+        });
+
+        assertTrue(channel.onReliablePacket(IP_A, 1000, 7));
+        assertFalse(channel.onReliablePacket(IP_A, 1000, 7));
+        assertTrue(channel.onReliablePacket(IP_A, 1000, 9));
+        assertTrue("Late but unseen packets still count", channel.onReliablePacket(IP_A, 1000, 8));
+        assertFalse(channel.onReliablePacket(IP_A, 1000, 8));
+
+        assertEquals(5, acks.size());
+    }
+
+    @Test
+    public void restartedSender_isNotMistakenForRepeats() {
+
+        Link link = new Link(0, MS, new Random(1), now);
+        Node a = new Node(IP_A, link, 8);
+        Node b = new Node(IP_B, link, 8);
+
+        for (int i = 0; i < 100; i++) {
+            a.channel.send(1000, null, IP_B, now);
+            run(link, a, b, 2 * MS);
+        }
+        run(link, a, b, 50 * MS);
+
+        // Same address, fresh channel, as after the app is killed and opened again
+        Node restarted = new Node(IP_A, link, 8);
+        for (int i = 0; i < 10; i++) {
+            restarted.channel.send(1000, null, IP_B, now);
+        }
+        run(link, restarted, b, 100 * MS);
+
+        assertEquals(110, b.receivedCount);
+        assertEquals(10, restarted.delivered);
+    }
+
+    @Test
+    public void initialSeqNum_isNeverZero() {
+
+        assertEquals(1, ReliableChannel.initialSeqNum(0));
+        assertEquals(0xFFFF, ReliableChannel.initialSeqNum(0xFFFE * MS));
+        assertEquals(1, ReliableChannel.initialSeqNum(0xFFFF * MS));
+        assertEquals(0xFFFF, ReliableChannel.initialSeqNum(-MS));
+    }
+
+    @Test
+    public void fullWindow_refusesMorePackets() {
+
+        Link link = new Link(1, MS, new Random(1), now);
+        Node a = new Node(IP_A, link, 8);
+
+        for (int i = 0; i < 256; i++) {
+            assertNotEquals(-1, a.channel.send(1000, null, IP_B, now));
+        }
+        assertEquals(-1, a.channel.send(1000, null, IP_B, now));
+    }
+
+    @Test
+    public void nodeNamedByHostName_isMatchedToItsAcks() throws Exception {
+
+        // Sent to itself, so the ACK comes back from 127.0.0.1 rather than "localhost"
+        RoveComm node = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        try {
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicInteger failed = new AtomicInteger();
+            node.setDeliveryListener(new ReliableChannel.DeliveryListener() {
+                @Override
+                public void delivered(int id, int seqNum, InetSocketAddress address) {
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(int id, int seqNum, InetSocketAddress address) {
+                    failed.incrementAndGet();
+                    done.countDown();
+                }
+            });
+
+            assertTrue(node.sendReliable(3000, new byte[]{1}, "localhost"));
+            assertTrue("Never acknowledged", done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, failed.get());
+        } finally {
+            node.onDestroy();
+        }
+    }
+
+    @Test
+    public void nodeOnAnotherPort_receivesAndAcks() throws Exception {
+
+        RoveComm sender = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        RoveComm board = new RoveComm(null, RoveComm.Transport.BLOCKING, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        try {
+
+            final CountDownLatch received = new CountDownLatch(1);
+            board.register(3000, new RoveComm.OnReceivePacket() {
+                @Override
+                public void receivePacket(PacketView packet) {
+                    received.countDown();
+                }
+            });
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<InetSocketAddress> ackedBy = new AtomicReference<>();
+            sender.setDeliveryListener(new ReliableChannel.DeliveryListener() {
+                @Override
+                public void delivered(int id, int seqNum, InetSocketAddress address) {
+                    ackedBy.set(address);
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(int id, int seqNum, InetSocketAddress address) {
+                    done.countDown();
+                }
+            });
+
+            RoveNode node = new RoveNode("127.0.0.1", board.getPort());
+            assertTrue(sender.sendReliable(3000, new byte[]{1}, node));
+            assertTrue("Board never got the packet", received.await(5, TimeUnit.SECONDS));
+            assertTrue("Never acknowledged", done.await(5, TimeUnit.SECONDS));
+            assertEquals(node.getAddress(), ackedBy.get());
+        } finally {
+            sender.onDestroy();
+            board.onDestroy();
+        }
+    }
+
+    /**
+     * Moves the fake clock forward a millisecond at a time, delivering packets and running timers
+     */
+    private void run(Link link, Node a, Node b, long duration) {
+
+        long end = now + duration;
+        while (now < end) {
+            now += MS;
+            link.deliver(now, a, b);
+            a.channel.advance(now);
+            b.channel.advance(now);
+        }
+    }
+
+    /**
+     * One end of the link, with its channel and what it has been told
+     */
+    private static class Node {
+
+        final InetSocketAddress ip;
+        final ReliableChannel channel;
+        final Set<Integer> received = new HashSet<>();
+        int receivedCount;
+        int delivered;
+        int failed;
+
+        Node(final InetSocketAddress ip, final Link link, int maxRetries) {
+
+            this.ip = ip;
+            channel = new ReliableChannel(new ReliableChannel.Output() {
+                @Override
+                public void transmit(int id, byte[] data, int length, int seqNum,
+                                     boolean requireAck, InetSocketAddress destination) {
+                    link.send(ip, destination, id, seqNum, requireAck);
+                }
+            }, maxRetries);
+
+            channel.setDeliveryListener(new ReliableChannel.DeliveryListener() {
+                @Override
+                public void delivered(int id, int seqNum, InetSocketAddress address) {
+                    delivered++;
+                }
+
+                @Override
+                public void failed(int id, int seqNum, InetSocketAddress address) {
+                    failed++;
+                }
+            });
+        }
+
+        void receive(Packet packet, long now) {
+
+            if (packet.id == RoveComm.ACK) {
+                channel.onAck(packet.from, packet.seqNum, now);
+            } else if (packet.requireAck && channel.onReliablePacket(packet.from, packet.id, packet.seqNum)) {
+                received.add(packet.seqNum);
+                receivedCount++;
+            }
+        }
+    }
+
+    /**
+     * Simulated network with a fixed one way delay and random loss
+     */
+    private static class Link {
+
+        final double loss;
+        final long delay;
+        final Random random;
+        final List<Packet> inTransit = new ArrayList<>();
+        long now;
+        int sent;
+
+        Link(double loss, long delay, Random random, long now) {
+            this.loss = loss;
+            this.delay = delay;
+            this.random = random;
+            this.now = now;
+        }
+
+        void send(InetSocketAddress from, InetSocketAddress to, int id, int seqNum, boolean requireAck) {
+
+            sent++;
+            if (random.nextDouble() >= loss) {
+                inTransit.add(new Packet(from, to, id, seqNum, requireAck, now + delay));
+            }
+        }
+
+        void deliver(long time, Node a, Node b) {
+
+            now = time;
+            List<Packet> due = new ArrayList<>();
+            for (Iterator<Packet> it = inTransit.iterator(); it.hasNext(); ) {
+                Packet packet = it.next();
+                if (packet.arrival <= time) {
+                    due.add(packet);
+                    it.remove();
+                }
+            }
+
+            for (Packet packet : due) {
+                (packet.to.equals(a.ip) ? a : b).receive(packet, time);
+            }
+        }
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static class Packet {
+
+        final InetSocketAddress from;
+        final InetSocketAddress to;
+        final int id;
+        final int seqNum;
+        final boolean requireAck;
+        final long arrival;
+
+        Packet(InetSocketAddress from, InetSocketAddress to, int id, int seqNum, boolean requireAck, long arrival) {
+            this.from = from;
+            this.to = to;
+            this.id = id;
+            this.seqNum = seqNum;
+            this.requireAck = requireAck;
+            this.arrival = arrival;
+        }
+    }
+}
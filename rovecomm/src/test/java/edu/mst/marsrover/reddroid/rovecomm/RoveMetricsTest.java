@@ -0,0 +1,126 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks metrics add up, from several threads and through a running rovecomm instance
+ */
+public class RoveMetricsTest {
+
+    private static final int TELEMETRY_ID = 1000;
+
+    @Test
+    public void stripedCounter_sumsAddsFromEveryThread() throws Exception {
+
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(800000, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void perDataIdCounts_overflowIntoOtherOnceTheTableIsFull() {
+
+        // 528 claims its slot before the table fills
+        RoveMetrics metrics = new RoveMetrics();
+        metrics.onSent(528, 4, 3);
+        metrics.onSent(528, 4, 1);
+        for (int id = 0; id < 1000; id++) {
+            metrics.onReceived(id, 10);
+        }
+
+        RoveMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1000, snapshot.getPacketsReceived());
+        assertEquals(10000, snapshot.getBytesReceived());
+        assertEquals(2, snapshot.getPacketsSent(528));
+        assertEquals(8, snapshot.getBytesSent(528));
+        assertEquals(3, snapshot.getQueueDepth(100));
+
+        // Every packet is counted once, whether under its own DataID or as other
+        long received = 0;
+        boolean overflowed = false;
+        for (int id : snapshot.getDataIds()) {
+            received += snapshot.getPacketsReceived(id);
+            overflowed |= (id == RoveMetrics.OTHER_DATA_ID);
+        }
+        assertEquals(1000, received);
+        assertTrue(overflowed);
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getPacketsReceived(528));
+    }
+
+    @Test
+    public void enabledMetrics_countTrafficThroughRoveComm() throws Exception {
+
+        RoverSimulator simulator = new RoverSimulator(0);
+        simulator.addTelemetry(TELEMETRY_ID, 200, 32);
+        simulator.start();
+
+        DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = probe.getLocalPort();
+        probe.close();
+
+        RoveComm roveComm = new RoveComm(null, RoveComm.Transport.NIO, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, port);
+        try {
+
+            assertNull(roveComm.getMetricsSnapshot());
+            roveComm.enableMetrics();
+
+            final CountDownLatch dumped = new CountDownLatch(1);
+            roveComm.getMetrics().startDump(50, TimeUnit.MILLISECONDS, new RoveMetrics.Dump() {
+                @Override
+                public void dump(RoveMetrics.Snapshot snapshot) {
+                    if (snapshot.getPacketsReceived(TELEMETRY_ID) > 0) {
+                        dumped.countDown();
+                    }
+                }
+            });
+
+            RoveNode board = new RoveNode("127.0.0.1", simulator.getPort());
+            roveComm.subscribe(board);
+            roveComm.sendData(new DrivePower().set(1, 2), board);
+            assertTrue("No telemetry counted", dumped.await(5, TimeUnit.SECONDS));
+
+            RoveMetrics.Snapshot snapshot = roveComm.getMetricsSnapshot();
+            assertEquals(1, snapshot.getPacketsSent(DrivePower.DATA_ID));
+            assertEquals(DrivePower.SIZE, snapshot.getBytesSent(DrivePower.DATA_ID));
+            assertEquals(32 * snapshot.getPacketsReceived(TELEMETRY_ID),
+                    snapshot.getBytesReceived(TELEMETRY_ID));
+            assertTrue(snapshot.getDecodeTime(50) > 0);
+            assertEquals(0, snapshot.getSocketErrorCount());
+
+            roveComm.disableMetrics();
+            assertNull(roveComm.getMetricsSnapshot());
+        } finally {
+            roveComm.onDestroy();
+            simulator.stop();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property and fuzz tests for the decoder. Whatever the encoder writes must decode back to the
+ * same fields, and no input at all may make the decoder throw or point outside the packet.
+ */
+public class RoveProtocolTest {
+
+    private static final int MAX_DATA = 1500 - RoveProtocol.HEADER_SIZE;
+    private static final int ROUNDS = 20000;
+
+    private final Random random = new Random(528);
+
+    @Test
+    public void encodedPackets_decodeToTheSameFields() {
+
+        byte[] packet = new byte[4096];
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            int dataId = random.nextInt(0x10000);
+            int seqNum = random.nextInt(0x10000);
+            boolean ack = random.nextBoolean();
+            byte[] data = randomBytes(random.nextInt(MAX_DATA + 1));
+            int offset = random.nextInt(packet.length - RoveProtocol.HEADER_SIZE - data.length + 1);
+
+            int length = RoveProtocol.encodePacket(dataId, data, 0, data.length, seqNum, ack,
+                    packet, offset);
+            PacketView view = new PacketView(ByteBuffer.wrap(packet));
+
+            assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, offset, length));
+            assertEquals(dataId, view.getDataId());
+            assertEquals(seqNum, view.getSeqNum());
+            assertEquals(ack, view.isRequiresAck());
+            assertFalse(view.isBatch());
+            assertArrayEquals(data, view.copyData());
+        }
+    }
+
+    @Test
+    public void fieldsWithTheTopBitSet_areNotSignExtended() throws Exception {
+
+        byte[] data = new byte[0x80];
+        byte[] packet = RoveProtocol.encodePacket(0xFFFF, data, 0x8001, false);
+
+        RoveProtocol.DataObject decoded = RoveProtocol.decodePacket(packet);
+        assertEquals(0xFFFF, decoded.getDataId());
+        assertEquals(0x8001, decoded.getSeqNum());
+        assertEquals(0x80, decoded.getData().length);
+
+        PacketView view = new PacketView(ByteBuffer.wrap(packet));
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, packet.length));
+        assertEquals(0xFFFF, view.getDataId());
+        assertEquals(0x8001, view.getSeqNum());
+        assertEquals(0x80, view.getDataLength());
+    }
+
+    @Test
+    public void malformedPackets_areReportedNotThrown() {
+
+        byte[] packet = RoveProtocol.encodePacket(528, new byte[]{1, 2, 3, 4}, 0, false);
+        PacketView view = new PacketView(ByteBuffer.wrap(packet));
+
+        assertEquals(RoveProtocol.Status.TOO_SHORT, RoveProtocol.decodePacket(view, 0, 7));
+        assertEquals(RoveProtocol.Status.TOO_SHORT, RoveProtocol.decodePacket(view, 5, 8));
+        assertEquals(RoveProtocol.Status.TOO_SHORT, RoveProtocol.decodePacket(view, -1, 8));
+        assertEquals(RoveProtocol.Status.TRUNCATED,
+                RoveProtocol.decodePacket(view, 0, packet.length - 1));
+
+        // Version 2 needs room for its timestamp
+        packet[0] = 2;
+        assertEquals(RoveProtocol.Status.TOO_SHORT, RoveProtocol.decodePacket(view, 0, 15));
+
+        packet[0] = 3;
+        assertEquals(RoveProtocol.Status.UNKNOWN_VERSION,
+                RoveProtocol.decodePacket(view, 0, packet.length));
+    }
+
+    @Test
+    public void truncatedPacket_isRejectedByTheArrayDecoder() {
+
+        byte[] packet = RoveProtocol.encodePacket(528, new byte[]{1, 2, 3, 4}, 0, false);
+        try {
+            RoveProtocol.decodePacket(Arrays.copyOf(packet, packet.length - 1));
+            fail("Decoded a packet missing data");
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void batchInsideABatch_isRejected() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(2 * RoveProtocol.HEADER_SIZE);
+        RoveProtocol.encodePacket(528, new byte[]{1}, 0, 1, 0, false, buffer);
+        RoveProtocol.encodeBatchHeader(buffer, RoveProtocol.HEADER_SIZE, RoveProtocol.HEADER_SIZE + 1);
+        RoveProtocol.encodeBatchHeader(buffer, 0, 2 * RoveProtocol.HEADER_SIZE + 1);
+        buffer.flip();
+
+        PacketView view = new PacketView(buffer);
+        assertEquals(RoveProtocol.Status.OK, RoveProtocol.decodePacket(view, 0, buffer.limit()));
+        assertTrue(view.isBatch());
+        assertEquals(RoveProtocol.Status.NESTED_BATCH, RoveProtocol.decodeRecord(view,
+                view.getDataOffset(), view.getDataLength()));
+    }
+
+    @Test
+    public void randomBytes_neverThrowOrEscapeThePacket() {
+
+        byte[] buffer = new byte[2048];
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            // Mostly short inputs, where header edge cases live
+            int length = random.nextBoolean() ? random.nextInt(32) : random.nextInt(1500);
+            int offset = random.nextInt(buffer.length - length + 1);
+            random.nextBytes(buffer);
+            if (random.nextBoolean()) {
+                buffer[offset] = 1;
+            }
+
+            checkDecode(buffer, offset, length);
+        }
+    }
+
+    @Test
+    public void mutatedPackets_neverThrowOrEscapeThePacket() {
+
+        for (int round = 0; round < ROUNDS; round++) {
+
+            byte[] packet = RoveProtocol.encodePacket(random.nextInt(0x10000),
+                    randomBytes(random.nextInt(64)), random.nextInt(0x10000), random.nextBoolean());
+
+            // Flip a few bytes, then cut it short or leave it whole
+            for (int flips = random.nextInt(4); flips > 0; flips--) {
+                packet[random.nextInt(packet.length)] = (byte) random.nextInt(256);
+            }
+            int length = random.nextBoolean() ? random.nextInt(packet.length + 1) : packet.length;
+
+            checkDecode(packet, 0, length);
+
+            try {
+                RoveProtocol.DataObject decoded = RoveProtocol.decodePacket(Arrays.copyOf(packet, length));
+                assertTrue(decoded.getData().length <= length - RoveProtocol.HEADER_SIZE);
+            } catch (Exception e) {
+                // Malformed packets may throw from the array decoder, as long as it's not a crash
+                assertFalse(e instanceof RuntimeException);
+            }
+        }
+    }
+
+    /**
+     * Decodes and checks that an OK result only ever describes bytes inside the packet
+     */
+    private static void checkDecode(byte[] buffer, int offset, int length) {
+
+        PacketView view = new PacketView(ByteBuffer.wrap(buffer));
+        RoveProtocol.Status status = RoveProtocol.decodePacket(view, offset, length);
+
+        int headerSize = (length > 0 && buffer[offset] == 2)
+                ? RoveProtocol.TIMESTAMPED_HEADER_SIZE : RoveProtocol.HEADER_SIZE;
+
+        if (status == RoveProtocol.Status.OK) {
+            assertEquals(offset + headerSize, view.getDataOffset());
+            assertTrue(view.getDataOffset() + view.getDataLength() <= offset + length);
+            assertTrue(view.getDataId() >= 0 && view.getDataId() <= 0xFFFF);
+            assertTrue(view.getSeqNum() >= 0 && view.getSeqNum() <= 0xFFFF);
+            assertEquals(view.getDataLength(), view.copyData().length);
+        } else {
+            assertTrue(length < headerSize
+                    || status == RoveProtocol.Status.UNKNOWN_VERSION
+                    || status == RoveProtocol.Status.TRUNCATED);
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,228 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which packet each overflow policy keeps when a lane is full, that a blocked offer is
+ * woken by room or by close(), that the counters agree, and that coalesced DataIDs send only
+ * their latest value, no faster than their rate
+ */
+public class SendQueueTest {
+
+    private static final int DATA_ID = 1000;
+
+    private final InetSocketAddress destination = new InetSocketAddress("127.0.0.1", 11000);
+
+    @Test
+    public void dropOldest_keepsTheNewestPackets() throws Exception {
+
+        SendQueue queue = new SendQueue(3, SendQueue.OverflowPolicy.DROP_OLDEST, 16);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(DATA_ID, new byte[]{(byte) i}, destination));
+        }
+
+        assertEquals(3, queue.size());
+        assertEquals(5, queue.getEnqueuedCount());
+        assertEquals(2, queue.getDroppedCount());
+        assertTaken(queue, 2, 3, 4);
+    }
+
+    @Test
+    public void dropNewest_keepsTheOldestPackets() throws Exception {
+
+        SendQueue queue = new SendQueue(3, SendQueue.OverflowPolicy.DROP_NEWEST, 16);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i < 3, queue.offer(DATA_ID, new byte[]{(byte) i}, destination));
+        }
+
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.getEnqueuedCount());
+        assertEquals(2, queue.getDroppedCount());
+        assertTaken(queue, 0, 1, 2);
+    }
+
+    @Test
+    public void fullLane_onlyOverflowsItself() {
+
+        SendQueue queue = new SendQueue(2, SendQueue.OverflowPolicy.DROP_NEWEST, 16);
+        queue.setPriority(DATA_ID + 1, SendQueue.Priority.HIGH);
+        queue.offer(DATA_ID, new byte[]{0}, destination);
+        queue.offer(DATA_ID, new byte[]{1}, destination);
+
+        assertFalse(queue.offer(DATA_ID, new byte[]{2}, destination));
+        assertTrue(queue.offer(DATA_ID + 1, new byte[]{3}, destination));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void block_waitsForRoomThenQueues() throws Exception {
+
+        final SendQueue queue = new SendQueue(1, SendQueue.OverflowPolicy.BLOCK, 16);
+        queue.offer(DATA_ID, new byte[]{0}, destination);
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queued.set(queue.offer(DATA_ID, new byte[]{1}, destination));
+                done.countDown();
+            }
+        });
+        producer.start();
+
+        assertFalse("Offer should wait while the lane is full",
+                done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(Thread.State.WAITING, producer.getState());
+
+        // Taking one makes room, and the waiting packet goes in behind it
+        SendQueue.Entry entry = queue.newEntry();
+        assertTrue(queue.take(entry));
+        assertEquals(0, entry.data[0]);
+        assertTrue("Offer never woke", done.await(5, TimeUnit.SECONDS));
+        assertTrue(queued.get());
+        assertTaken(queue, 1);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void block_isWokenAndDroppedByClose() throws Exception {
+
+        final SendQueue queue = new SendQueue(1, SendQueue.OverflowPolicy.BLOCK, 16);
+        queue.offer(DATA_ID, new byte[]{0}, destination);
+
+        final AtomicBoolean queued = new AtomicBoolean(true);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queued.set(queue.offer(DATA_ID, new byte[]{1}, destination));
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+
+        queue.close();
+        producer.join(5000);
+        assertFalse("Offer never woke", producer.isAlive());
+        assertFalse(queued.get());
+        assertEquals(1, queue.getDroppedCount());
+
+        // Anything offered after closing is dropped too
+        assertFalse(queue.offer(DATA_ID, new byte[]{2}, destination));
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void sentCount_onlyCountsWhatTheDispatcherReports() throws Exception {
+
+        SendQueue queue = new SendQueue(4, SendQueue.OverflowPolicy.DROP_OLDEST, 16);
+        queue.offer(DATA_ID, new byte[]{0}, destination);
+        queue.offer(DATA_ID, new byte[]{1}, destination);
+        assertTaken(queue, 0, 1);
+        assertEquals(0, queue.getSentCount());
+
+        queue.recordSent();
+        queue.recordSent();
+        assertEquals(2, queue.getSentCount());
+        assertEquals(2, queue.getEnqueuedCount());
+    }
+
+    @Test
+    public void coalescedBurst_sendsOnlyTheLatestValue() throws Exception {
+
+        SendQueue queue = new SendQueue(64, SendQueue.OverflowPolicy.DROP_OLDEST, 16);
+        queue.setCoalesced(DATA_ID, 10);
+        long interval = TimeUnit.MILLISECONDS.toNanos(100);
+
+        // The first value for a destination is due at once, but only the last of a burst goes
+        for (int i = 0; i < 50; i++) {
+            queue.offer(DATA_ID, new byte[]{(byte) i}, destination);
+        }
+        assertEquals(1, queue.size());
+        assertEquals(49, queue.getReplacedCount());
+        assertTaken(queue, 49);
+        long sent = System.nanoTime();
+
+        // A second burst waits out the rest of the interval, then goes as one packet
+        for (int i = 50; i < 100; i++) {
+            queue.offer(DATA_ID, new byte[]{(byte) i}, destination);
+        }
+        assertTaken(queue, 99);
+        long waited = System.nanoTime() - sent;
+        assertTrue("Sent again within the interval: " + waited, waited >= interval);
+        assertEquals(98, queue.getReplacedCount());
+    }
+
+    @Test
+    public void coalescedStream_isSentNoFasterThanItsRate() throws Exception {
+
+        final SendQueue queue = new SendQueue(64, SendQueue.OverflowPolicy.DROP_OLDEST, 16);
+        queue.setCoalesced(DATA_ID, 20);
+        long interval = TimeUnit.MILLISECONDS.toNanos(50);
+        long slack = TimeUnit.MILLISECONDS.toNanos(2);
+
+        final ArrayList<Long> sendTimes = new ArrayList<>();
+        final ArrayList<Integer> values = new ArrayList<>();
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                SendQueue.Entry entry = queue.newEntry();
+                try {
+                    while (queue.take(entry)) {
+                        sendTimes.add(System.nanoTime());
+                        values.add(entry.data[0] & 0xFF);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        dispatcher.start();
+
+        // A new value every 2 ms for half a second
+        int last = 0;
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (System.nanoTime() < end) {
+            last = (last + 1) & 0xFF;
+            queue.offer(DATA_ID, new byte[]{(byte) last}, destination);
+            Thread.sleep(2);
+        }
+
+        // The value left over when the stream stops still goes out within an interval
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        queue.close();
+        dispatcher.join(5000);
+        assertFalse(dispatcher.isAlive());
+
+        assertTrue("Only " + values.size() + " sent", values.size() >= 5);
+        assertEquals(last, (int) values.get(values.size() - 1));
+        for (int i = 1; i < sendTimes.size(); i++) {
+            long gap = sendTimes.get(i) - sendTimes.get(i - 1);
+            assertTrue("Sent " + gap + " ns after the last", gap >= interval - slack);
+        }
+    }
+
+    /**
+     * Takes from the queue and checks the first data byte of each packet, then that it is empty
+     */
+    private static void assertTaken(SendQueue queue, int... values) throws InterruptedException {
+
+        SendQueue.Entry entry = queue.newEntry();
+        for (int value : values) {
+            assertTrue(queue.take(entry));
+            assertEquals(value, entry.data[0]);
+        }
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,86 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.mst.marsrover.reddroid.rovecomm.messages.DrivePower;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs rovecomm against the simulated board on loopback, on ports of its own, for each transport
+ */
+public class SimulatorLoopbackTest {
+
+    private static final int TELEMETRY_ID = 1000;
+
+    @Test
+    public void blocking_subscribesReceivesTelemetryAndDrives() throws Exception {
+        subscribeReceiveAndDrive(RoveComm.Transport.BLOCKING);
+    }
+
+    @Test
+    public void nio_subscribesReceivesTelemetryAndDrives() throws Exception {
+        subscribeReceiveAndDrive(RoveComm.Transport.NIO);
+    }
+
+    private void subscribeReceiveAndDrive(RoveComm.Transport transport) throws Exception {
+
+        RoverSimulator simulator = new RoverSimulator(0);
+        simulator.addTelemetry(TELEMETRY_ID, 200, 32);
+        simulator.start();
+
+        RoveComm roveComm = new RoveComm(null, transport, 64,
+                SendQueue.OverflowPolicy.DROP_OLDEST, freePort());
+        try {
+
+            final CountDownLatch telemetry = new CountDownLatch(10);
+            roveComm.register(TELEMETRY_ID, new RoveComm.OnReceivePacket() {
+                @Override
+                public void receivePacket(PacketView packet) {
+                    telemetry.countDown();
+                }
+            });
+
+            RoveNode board = new RoveNode("127.0.0.1", simulator.getPort());
+            roveComm.subscribe(board);
+            assertTrue("No telemetry", telemetry.await(5, TimeUnit.SECONDS));
+            assertEquals(1, simulator.getSubscriberCount());
+
+            roveComm.sendData(new DrivePower().set(-250, 750), board);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (simulator.getDriveCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, simulator.getDriveCount());
+            assertEquals(-250, simulator.getLastLeft());
+            assertEquals(750, simulator.getLastRight());
+
+            roveComm.unSubscribe(board);
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (simulator.getSubscriberCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, simulator.getSubscriberCount());
+        } finally {
+            roveComm.onDestroy();
+            simulator.stop();
+        }
+    }
+
+    /**
+     * @return A loopback port that was free a moment ago
+     */
+    private static int freePort() throws SocketException {
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
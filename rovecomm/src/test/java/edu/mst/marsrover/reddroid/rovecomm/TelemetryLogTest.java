@@ -0,0 +1,252 @@
+package edu.mst.marsrover.reddroid.rovecomm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records packets and checks they read back, and replay, the same way through the index
+ */
+public class TelemetryLogTest {
+
+    // Small segments so a test recording spans several
+    private static final int SEGMENT_SIZE = 64 << 10;
+    private static final int PACKETS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(528);
+
+    @Test
+    public void recordedPackets_readBackInOrderAcrossSegments() throws Exception {
+
+        File directory = folder.newFolder();
+        List<Sample> samples = record(directory);
+
+        TelemetryLog log = new TelemetryLog(directory);
+        assertTrue(log.getSegmentCount() > 1);
+
+        TelemetryLog.Cursor cursor = log.cursor(Long.MIN_VALUE, -1);
+        long last = Long.MIN_VALUE;
+        for (Sample sample : samples) {
+
+            assertTrue(cursor.next());
+            assertTrue(cursor.getTimestamp() >= last);
+            last = cursor.getTimestamp();
+            assertEquals(sample.direction, cursor.getDirection());
+            assertEquals(sample.address, cursor.getAddress());
+            assertEquals(sample.port, cursor.getPort());
+            assertEquals(sample.dataId, cursor.getDataId());
+            assertArrayEquals(sample.data, cursor.copyData());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void indexedCursor_findsTheSameRecordsAsAFullScan() throws Exception {
+
+        File directory = folder.newFolder();
+        record(directory);
+        TelemetryLog log = new TelemetryLog(directory);
+
+        List<Long> times = new ArrayList<>();
+        TelemetryLog.Cursor all = log.cursor(Long.MIN_VALUE, -1);
+        while (all.next()) {
+            times.add(all.getTimestamp());
+        }
+        long from = times.get(times.size() / 2);
+
+        for (int dataId : new int[]{-1, 528, 1000, 4242}) {
+
+            int expected = 0;
+            all = log.cursor(Long.MIN_VALUE, -1);
+            while (all.next()) {
+                if (all.getTimestamp() >= from && (dataId < 0 || all.getDataId() == dataId)) {
+                    expected++;
+                }
+            }
+
+            int found = 0;
+            TelemetryLog.Cursor indexed = log.cursor(from, dataId);
+            while (indexed.next()) {
+                assertTrue(indexed.getTimestamp() >= from);
+                assertTrue(dataId < 0 || indexed.getDataId() == dataId);
+                found++;
+            }
+            assertEquals("DataID " + dataId, expected, found);
+        }
+    }
+
+    @Test
+    public void unclosedRecording_readsBackWhatWasCommitted() throws Exception {
+
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = new TelemetryRecorder(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(TelemetryRecorder.Direction.RECEIVED, null, 0, i, new byte[]{(byte) i},
+                    0, 1);
+        }
+
+        TelemetryLog.Cursor cursor = new TelemetryLog(directory).cursor(Long.MIN_VALUE, -1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getDataId());
+            assertNull(cursor.getAddress());
+        }
+        assertFalse(cursor.next());
+        recorder.close();
+    }
+
+    @Test
+    public void closedRecorder_stopsItsWorker() throws Exception {
+
+        // Other tests' workers may still be stopping, so only this recorder's is watched
+        Set<Thread> before = recordThreads();
+        TelemetryRecorder recorder = new TelemetryRecorder(folder.newFolder(), SEGMENT_SIZE);
+        byte[] data = new byte[1024];
+        for (int i = 0; i < 200; i++) {
+            recorder.record(TelemetryRecorder.Direction.SENT, null, 0, 1000, data, 0, data.length);
+        }
+        Set<Thread> started = recordThreads();
+        started.removeAll(before);
+        assertFalse("Worker never started", started.isEmpty());
+        recorder.close();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        started.retainAll(recordThreads());
+        while (!started.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            started.retainAll(recordThreads());
+        }
+        assertTrue("Worker still running after close()", started.isEmpty());
+    }
+
+    @Test
+    public void replay_deliversReceivedPacketsAsFastAsPossible() throws Exception {
+
+        File directory = folder.newFolder();
+        List<Sample> samples = record(directory);
+
+        final List<Integer> replayed = new ArrayList<>();
+        TelemetryReplay replay = new TelemetryReplay(new TelemetryLog(directory),
+                new RoveComm.OnReceiveData() {
+                    @Override
+                    public void receiveData(int id, byte[] content) {
+                        replayed.add(id);
+                    }
+                });
+        replay.setSpeed(TelemetryReplay.AS_FAST_AS_POSSIBLE);
+
+        List<Integer> expected = new ArrayList<>();
+        for (Sample sample : samples) {
+            if (sample.direction == TelemetryRecorder.Direction.RECEIVED) {
+                expected.add(sample.dataId);
+            }
+        }
+
+        assertEquals(expected.size(), replay.run());
+        assertEquals(expected, replayed);
+    }
+
+    @Test
+    public void replay_atRecordedSpeed_keepsTheGapsBetweenPackets() throws Exception {
+
+        File directory = folder.newFolder();
+        TelemetryRecorder recorder = new TelemetryRecorder(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 3; i++) {
+            recorder.record(TelemetryRecorder.Direction.RECEIVED, null, 0, 528, new byte[0], 0, 0);
+            Thread.sleep(50);
+        }
+        recorder.close();
+
+        TelemetryReplay replay = new TelemetryReplay(new TelemetryLog(directory),
+                new RoveComm.OnReceiveData() {
+                    @Override
+                    public void receiveData(int id, byte[] content) {
+                    }
+                });
+
+        long start = System.nanoTime();
+        assertEquals(3, replay.run());
+        assertTrue(System.nanoTime() - start >= 95000000L);
+    }
+
+    /**
+     * @return Recorder worker threads still running
+     */
+    private static Set<Thread> recordThreads() {
+
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals("RoveComm-record")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Records random packets to a directory
+     * @return What was recorded, in order
+     */
+    private List<Sample> record(File directory) throws Exception {
+
+        InetAddress[] nodes = {InetAddress.getByName("192.168.1.130"),
+                InetAddress.getByName("::1"), null};
+        int[] ids = {528, 1000, 1001, 2};
+        List<Sample> samples = new ArrayList<>();
+
+        TelemetryRecorder recorder = new TelemetryRecorder(directory, SEGMENT_SIZE);
+        for (int i = 0; i < PACKETS; i++) {
+
+            Sample sample = new Sample();
+            sample.direction = random.nextBoolean() ? TelemetryRecorder.Direction.RECEIVED
+                    : TelemetryRecorder.Direction.SENT;
+            sample.address = nodes[random.nextInt(nodes.length)];
+            sample.port = sample.address == null ? 0 : 11000;
+            sample.dataId = ids[random.nextInt(ids.length)];
+            sample.data = new byte[random.nextInt(64)];
+            random.nextBytes(sample.data);
+            samples.add(sample);
+
+            // Half from arrays, half from buffers, as rovecomm does for sent and received
+            if (random.nextBoolean()) {
+                assertTrue(recorder.record(sample.direction, sample.address, sample.port,
+                        sample.dataId, sample.data, 0, sample.data.length));
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(sample.data);
+                assertTrue(recorder.record(sample.direction, sample.address, sample.port,
+                        sample.dataId, buffer));
+                assertEquals(0, buffer.position());
+            }
+        }
+        recorder.close();
+
+        assertEquals(PACKETS, recorder.getRecordedCount());
+        assertEquals(0, recorder.getDroppedCount());
+        assertFalse(new File(directory, "next.spare").exists());
+        return samples;
+    }
+
+    private static class Sample {
+
+        TelemetryRecorder.Direction direction;
+        InetAddress address;
+        int port;
+        int dataId;
+        byte[] data;
+    }
+}